@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb.bench;
+
+/* Java imports. */
+import java.io.*;
+import java.util.concurrent.*;
+
+/* JMH imports. */
+import org.openjdk.jmh.annotations.*;
+
+/* TRE imports. */
+import com.strangegizmo.cdb.*;
+
+/**
+ * Measures building CDB files: adding records with
+ * <code>CdbMake.add</code> and <code>finish</code>, and parsing the
+ * cdbmake text format with <code>CdbMake.make</code>.  Each
+ * invocation builds a complete file.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BuildBenchmark {
+	/** The number of records in the data set.  Larger data sets, up
+	 * to 100000000 records, can be selected with <code>-p</code>. */
+	@Param({"1000", "100000", "10000000"})
+	public int records;
+
+	/** The size of each value. */
+	@Param({"16", "1024"})
+	public int valueSize;
+
+	/** The number of threads used to parse the text format. */
+	@Param({"1", "4"})
+	public int threads;
+
+
+	/** The text form of the data set. */
+	private String text_ = null;
+
+	/** The CDB file to build. */
+	private String cdb_ = null;
+
+	/** The value added with every key. */
+	private byte[] value_ = null;
+
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		text_ = Datasets.text(records, valueSize, 1);
+		cdb_ = Datasets.scratch("build.cdb").getPath();
+		value_ = new byte[valueSize];
+		Datasets.value(0, 0, value_);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		new File(cdb_).delete();
+	}
+
+
+	/** Adds every record with <code>CdbMake.add</code> and finishes
+	 * the file. */
+	@Benchmark
+	public void addFinish() throws IOException {
+		CdbMake cdbMake = new CdbMake(Datasets.flags(records, valueSize));
+		cdbMake.start(cdb_);
+		for (int i = 0; i < records; i++)
+			cdbMake.add(Datasets.key(i), value_);
+		cdbMake.finish();
+	}
+
+	/** Builds the file from the text format with
+	 * <code>CdbMake.make</code>. */
+	@Benchmark
+	public void make() throws IOException {
+		CdbMake.make(text_, cdb_, cdb_ + ".tmp", null, threads,
+			Datasets.flags(records, valueSize));
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb.bench;
+
+/* Java imports. */
+import java.io.*;
+import java.util.concurrent.*;
+
+/* JMH imports. */
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/* TRE imports. */
+import com.strangegizmo.cdb.*;
+
+/**
+ * Measures lookups against a freshly opened (cold) CDB file.  Each
+ * iteration opens the file again and times a single batch of random
+ * lookups.
+ *
+ * <p>Reopening the file does not evict it from the operating system's
+ * page cache.  For truly cold reads, set the
+ * <code>cdb.bench.dropCaches</code> system property to a command which
+ * drops the cache, such as
+ * <code>sh -c "sync; echo 3 > /proc/sys/vm/drop_caches"</code>; it is
+ * run before every iteration.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ColdLookupBenchmark {
+	/** The number of lookups in each batch. */
+	private static final int BATCH = 10000;
+
+
+	/** The number of records in the data set.  Larger data sets, up
+	 * to 100000000 records, can be selected with <code>-p</code>. */
+	@Param({"1000", "100000", "10000000"})
+	public int records;
+
+	/** The size of each value. */
+	@Param({"16", "1024"})
+	public int valueSize;
+
+	/** The open flags: 0 for the file-handle store, 1 for MMAP. */
+	@Param({"0", "1"})
+	public int flags;
+
+
+	/** The path to the CDB file. */
+	private String path_ = null;
+
+	/** The CDB file, opened for each iteration. */
+	private Cdb cdb_ = null;
+
+	/** The keys to look up. */
+	private byte[][] keys_ = null;
+
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		path_ = Datasets.cdb(records, valueSize, 1);
+
+		/* Pick the keys up front so that every iteration does the
+		 * same work. */
+		keys_ = new byte[BATCH][];
+		long seed = 42;
+		for (int i = 0; i < BATCH; i++) {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			keys_[i] = Datasets.key((int)((seed >>> 33) % records));
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void open() throws IOException, InterruptedException {
+		String dropCaches = System.getProperty("cdb.bench.dropCaches");
+		if (dropCaches != null)
+			new ProcessBuilder("sh", "-c", dropCaches).inheritIO()
+				.start().waitFor();
+
+		cdb_ = new Cdb(path_, flags);
+	}
+
+	@TearDown(Level.Iteration)
+	public void close() {
+		cdb_.close();
+	}
+
+
+	/** Looks up a batch of keys in the newly opened file. */
+	@Benchmark
+	public void findBatch(Blackhole blackhole) {
+		for (int i = 0; i < keys_.length; i++)
+			blackhole.consume(cdb_.find(keys_[i]));
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb.bench;
+
+/* Java imports. */
+import java.io.*;
+import java.util.*;
+
+/* TRE imports. */
+import com.strangegizmo.cdb.*;
+
+/**
+ * Datasets generates the deterministic data sets used by the
+ * benchmarks.  A data set has <code>records</code> records spread over
+ * <code>records / values</code> keys, each with <code>values</code>
+ * values of <code>valueSize</code> bytes.  Key <i>i</i> is the decimal
+ * string <code>k</code><i>i</i>; keys which are not in a data set are
+ * spelled <code>m</code><i>i</i>.
+ *
+ * <p>Generated files are kept in the directory named by the
+ * <code>cdb.bench.dir</code> system property (by default
+ * <code>cdb-bench</code> in the temporary directory) and reused by
+ * later runs, since the larger data sets take a long time to build.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class Datasets {
+	/** The directory that data sets are kept in. */
+	private static final File DIR = new File(System.getProperty(
+		"cdb.bench.dir",
+		new File(System.getProperty("java.io.tmpdir"), "cdb-bench")
+			.getPath()));
+
+
+	/** Not instantiable. */
+	private Datasets() {}
+
+
+	/**
+	 * Returns the number of distinct keys in a data set.
+	 *
+	 * @param records The number of records.
+	 * @param values The number of values stored under each key.
+	 * @return The number of keys.
+	 */
+	public static int keyCount(int records, int values) {
+		return Math.max(1, records / values);
+	}
+
+	/**
+	 * Returns key <code>i</code> of a data set.
+	 *
+	 * @param i The number of the key.
+	 * @return The key.
+	 */
+	public static byte[] key(int i) {
+		return ascii("k" + i);
+	}
+
+	/**
+	 * Returns a key which is not in any data set.
+	 *
+	 * @param i The number of the missing key.
+	 * @return The key.
+	 */
+	public static byte[] missingKey(int i) {
+		return ascii("m" + i);
+	}
+
+	/**
+	 * Fills <code>value</code> with the contents of value
+	 * <code>j</code> of key <code>i</code>.
+	 *
+	 * @param i The number of the key.
+	 * @param j The number of the value.
+	 * @param value The array to fill.
+	 */
+	public static void value(int i, int j, byte[] value) {
+		long seed = ((long)i << 8) ^ j;
+		for (int u = 0; u < value.length; u++) {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			value[u] = (byte)('a' + ((seed >>> 33) % 26));
+		}
+	}
+
+	/**
+	 * Returns the path of a data set in the cdbmake text format,
+	 * generating it if necessary.
+	 *
+	 * @param records The number of records.
+	 * @param valueSize The size of each value.
+	 * @param values The number of values stored under each key.
+	 * @return The path to the text file.
+	 * @exception java.io.IOException if the file could not be written.
+	 */
+	public static synchronized String text(int records, int valueSize,
+		int values) throws IOException
+	{
+		File file = file(records, valueSize, values, ".txt");
+		if (file.exists())
+			return file.getPath();
+
+		/* Write the data set to a temporary file and then move it
+		 * into place, so that an interrupted run is not reused. */
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream out = new BufferedOutputStream(
+			new FileOutputStream(tmp), 1 << 16);
+		try {
+			byte[] value = new byte[valueSize];
+			int keys = keyCount(records, values);
+			for (int i = 0; i < keys; i++) {
+				byte[] key = key(i);
+				for (int j = 0; j < values; j++) {
+					value(i, j, value);
+					out.write(ascii("+" + key.length + "," + valueSize + ":"));
+					out.write(key);
+					out.write('-');
+					out.write('>');
+					out.write(value);
+					out.write('\n');
+				}
+			}
+			out.write('\n');
+		} finally {
+			out.close();
+		}
+		tmp.renameTo(file);
+
+		return file.getPath();
+	}
+
+	/**
+	 * Returns the path of a data set as a CDB file, generating it if
+	 * necessary.
+	 *
+	 * @param records The number of records.
+	 * @param valueSize The size of each value.
+	 * @param values The number of values stored under each key.
+	 * @return The path to the CDB file.
+	 * @exception java.io.IOException if the file could not be written.
+	 */
+	public static synchronized String cdb(int records, int valueSize,
+		int values) throws IOException
+	{
+		File file = file(records, valueSize, values, ".cdb");
+		if (!file.exists())
+			CdbMake.make(text(records, valueSize, values), file.getPath(),
+				file.getPath() + ".tmp", null,
+				Runtime.getRuntime().availableProcessors(),
+				flags(records, valueSize));
+		return file.getPath();
+	}
+
+	/**
+	 * Returns the CdbMake format flags for a data set: the classic
+	 * format, unless the data set is too big for it.
+	 *
+	 * @param records The number of records.
+	 * @param valueSize The size of each value.
+	 * @return The format flags.
+	 */
+	public static int flags(int records, int valueSize) {
+		long size = 2048 + (long)records * (8 + 10 + valueSize + 16);
+		return size > Integer.MAX_VALUE ? CdbMake.CDB64 : 0;
+	}
+
+	/**
+	 * Returns a fresh scratch file in the data set directory.
+	 *
+	 * @param name The name of the scratch file.
+	 * @return The scratch file.
+	 */
+	public static File scratch(String name) {
+		DIR.mkdirs();
+		return new File(DIR, name);
+	}
+
+
+	/**
+	 * Returns the path of a data set file.
+	 *
+	 * @param records The number of records.
+	 * @param valueSize The size of each value.
+	 * @param values The number of values stored under each key.
+	 * @param suffix The suffix of the file.
+	 * @return The data set file.
+	 */
+	private static File file(int records, int valueSize, int values,
+		String suffix)
+	{
+		return scratch("r" + records + "-s" + valueSize + "-v" + values
+			+ suffix);
+	}
+
+	/**
+	 * Encodes an ASCII string.
+	 *
+	 * @param s The string to encode.
+	 * @return The bytes of the string.
+	 */
+	private static byte[] ascii(String s) {
+		byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte)s.charAt(i);
+		return b;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb.bench;
+
+/* Java imports. */
+import java.io.*;
+import java.util.concurrent.*;
+
+/* JMH imports. */
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/* TRE imports. */
+import com.strangegizmo.cdb.*;
+
+/**
+ * Measures lookups against an open (warm) CDB file: hits, misses and
+ * walks over every value of a multi-valued key, through both the
+ * file-handle and the memory-mapped store.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmark {
+	/** The number of records in the data set.  Larger data sets, up
+	 * to 100000000 records, can be selected with <code>-p</code>. */
+	@Param({"1000", "100000", "10000000"})
+	public int records;
+
+	/** The size of each value. */
+	@Param({"16", "1024"})
+	public int valueSize;
+
+	/** The number of values stored under each key. */
+	@Param({"1", "8"})
+	public int values;
+
+	/** The open flags: 0 for the file-handle store, 1 for MMAP. */
+	@Param({"0", "1"})
+	public int flags;
+
+
+	/** The CDB file. */
+	private Cdb cdb_ = null;
+
+	/** The number of keys in the data set. */
+	private int keys_ = 0;
+
+
+	/** Per-thread state: a random sequence of key numbers. */
+	@State(Scope.Thread)
+	public static class Keys {
+		/** The state of the random sequence. */
+		private long seed_ = System.nanoTime();
+
+		/**
+		 * Returns the next key number.
+		 *
+		 * @param bound The number of keys.
+		 * @return A key number below <code>bound</code>.
+		 */
+		int next(int bound) {
+			seed_ = seed_ * 6364136223846793005L + 1442695040888963407L;
+			return (int)((seed_ >>> 33) % bound);
+		}
+	}
+
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		cdb_ = new Cdb(Datasets.cdb(records, valueSize, values), flags);
+		keys_ = Datasets.keyCount(records, values);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		cdb_.close();
+	}
+
+
+	/** Finds the first value of a key which is present. */
+	@Benchmark
+	public byte[] findHit(Keys keys) {
+		return cdb_.find(Datasets.key(keys.next(keys_)));
+	}
+
+	/** Looks for a key which is not present. */
+	@Benchmark
+	public byte[] findMiss(Keys keys) {
+		return cdb_.find(Datasets.missingKey(keys.next(keys_)));
+	}
+
+	/** Finds every value of a key with <code>findstart</code> and
+	 * <code>findnext</code>. */
+	@Benchmark
+	public void findnextAll(Keys keys, Blackhole blackhole) {
+		byte[] key = Datasets.key(keys.next(keys_));
+		cdb_.findstart(key);
+		for (byte[] data; (data = cdb_.findnext(key)) != null; /* */)
+			blackhole.consume(data);
+	}
+}
@@ -34,7 +34,6 @@ package cdb;
 
 /* Java imports. */
 import java.io.*;
-import java.util.*;
 
 /* strangeGizmo imports. */
 import com.strangegizmo.cdb.*;
@@ -60,25 +59,31 @@ public class dump {
 		
 		/* Dump the CDB file. */
 		try {
-			Enumeration e = Cdb.elements(cdbFile);
-			while (e.hasMoreElements())  {
-				/* Get the element and its component parts. */
-				CdbElement element = (CdbElement)e.nextElement();
-				byte[] key = element.getKey();
-				byte[] data = element.getData();
+			OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+			CdbScanner scanner = CdbScanner.open(cdbFile, 0);
+			try {
+				while (scanner.hasNext())  {
+					/* Get the element and its component parts. */
+					CdbElement element = scanner.next();
+					byte[] key = element.getKey();
+					byte[] data = element.getData();
 
-				/* Write the line directly to stdout to avoid any
-				 * charset conversion that System.print() might want to
-				 * perform. */
-				System.out.write(
-					("+" + key.length + "," + data.length + ":").getBytes());
-				System.out.write(key);
-				System.out.write('-');
-				System.out.write('>');
-				System.out.write(data);
-				System.out.write('\n');
+					/* Write the line directly to stdout to avoid any
+					 * charset conversion that System.print() might
+					 * want to perform. */
+					out.write(
+						("+" + key.length + "," + data.length + ":").getBytes());
+					out.write(key);
+					out.write('-');
+					out.write('>');
+					out.write(data);
+					out.write('\n');
+				}
+			} finally {
+				scanner.close();
 			}
-			System.out.write('\n');
+			out.write('\n');
+			out.flush();
 		} catch (IOException ioException) {
 			System.out.println("Couldn't dump CDB file: "
 				+ ioException);
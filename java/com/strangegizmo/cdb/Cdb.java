@@ -34,7 +34,10 @@ package com.strangegizmo.cdb;
 
 /* Java imports. */
 import java.io.*;
+import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
 
 /**
  * Cdb implements a Java interface to D.&nbsp;J.&nbsp;Bernstein's CDB
@@ -44,31 +47,122 @@ import java.util.*;
  * @version		1.0.3
  */
 public class Cdb {
-	/** The RandomAccessFile for the CDB file. */
-	private RandomAccessFile file_ = null;
+	/** Open flag: read the CDB file through memory-mapped segments
+	 * instead of a file handle. */
+	public static final int MMAP = 0x01;
 
-	/** The slot pointers, cached here for efficiency as we do not have
-	 * mmap() to do it for us.  These entries are paired as (pos, len)
+	/** Open flag: load all of the hash tables into memory at open, so
+	 * that looking up a key reads only the record itself from the
+	 * file. */
+	public static final int PIN_INDEX = 0x02;
+
+	/** Open flag: read the whole CDB file into memory outside of the
+	 * Java heap at open, in one sequential pass, and close it.  All
+	 * lookups and scans then run against that memory.  Meant for
+	 * databases which fit comfortably in memory. */
+	public static final int MEMORY = 0x04;
+
+	/** Open flag, for scans: open the CDB file alone, without loading
+	 * its Bloom filter or opening its key index.  A scan reads every
+	 * record in file order and needs neither. */
+	static final int NO_SIDECARS = 0x100;
+
+	/** The size of the chunks in which pinned hash tables are read. */
+	private static final int PIN_CHUNK = 1 << 20;
+
+
+	/** The magic number which follows the leading zero word of a
+	 * cdb64 file ("cd64" in little-endian order).  The first word of a
+	 * classic CDB file is the position of its first hash table, which
+	 * is never zero. */
+	static final int MAGIC64 = 0x34366463;
+
+	/** The size of the header which precedes the slot table of a cdb64
+	 * file.  The header holds the zero word, the magic number, the
+	 * format flags (at offset 8) and the position of the first record
+	 * (at offset 16). */
+	static final int HEADER64_SIZE = 32;
+
+	/** The size of the slot table of a cdb64 file. */
+	static final int SLOTS64_SIZE = 256 * 16;
+
+	/** cdb64 format flag: the data of every record is compressed
+	 * against a shared dictionary, which sits between the slot table
+	 * and the first record. */
+	static final int COMPRESSED64 = 0x01;
+
+	/** cdb64 format flag: keys are hashed with <code>hash64</code>
+	 * instead of the DJB hash. */
+	static final int WORDHASH64 = 0x02;
+
+	/** The format flags understood by this version of Cdb. */
+	static final int KNOWN_FLAGS64 = COMPRESSED64 | WORDHASH64;
+
+	/* The multipliers used by hash64, taken from xxHash64. */
+	private static final long PRIME64_1 = 0x9e3779b185ebca87L;
+	private static final long PRIME64_2 = 0xc2b2ae3d27d4eb4fL;
+	private static final long PRIME64_3 = 0x165667b19e3779f9L;
+	private static final long PRIME64_4 = 0x85ebca77c2b2ae63L;
+	private static final long PRIME64_5 = 0x27d4eb2f165667c5L;
+
+
+	/** The storage backend for the CDB file. */
+	private CdbStore store_ = null;
+
+	/** The slot pointers, cached here so that the slot lookup never
+	 * touches the store.  These entries are paired as (pos, len)
 	 * tuples. */
-	private int[] slotTable_ = null;
+	private long[] slotTable_ = null;
 
+	/** Set if the CDB file is in the cdb64 format, with 64-bit
+	 * positions and hash values. */
+	private boolean wide_ = false;
 
-	/** The number of hash slots searched under this key. */
-	private int loop_ = 0;
+	/** Set if keys are hashed with <code>hash64</code>. */
+	private boolean hash64_ = false;
 
-	/** The hash value for the current key. */
-	private int khash_ = 0;
+	/** The size of each hash table entry: 8 bytes in a classic file, 16
+	 * bytes in a cdb64 file. */
+	private int entrySize_ = 8;
 
+	/** The position of the first record. */
+	private long dataStart_ = 2048;
 
-	/** The number of hash slots in the hash table for the current key. */
-	private int hslots_ = 0;
 
-	/** The position of the hash table for the current key */
-	private int hpos_ = 0;
+	/** The Bloom filter loaded from the database's sidecar file, or
+	 * <code>null</code> if there is none. */
+	private CdbBloomFilter bloom_ = null;
 
+	/** The sorted key index loaded from the database's sidecar file,
+	 * or <code>null</code> if there is none. */
+	private CdbKeyIndex keyIndex_ = null;
 
-	/** The position of the current key in the slot. */
-	private int kpos_ = 0;
+	/** The dictionary that record data is compressed against, or
+	 * <code>null</code> if the data is not compressed. */
+	private CdbDictionary dictionary_ = null;
+
+
+	/** The hash table entries, if they are pinned in memory: one long
+	 * per entry packed as <code>(pos &lt;&lt; 32) | hash</code> in a
+	 * classic file, two longs per entry (hash, pos) in a cdb64 file.
+	 * Otherwise <code>null</code>. */
+	private long[] pinned_ = null;
+
+	/** The position of the first pinned hash table entry. */
+	private long pinStart_ = 0;
+
+	/** The time taken to pin the hash tables, in nanoseconds. */
+	private long pinTime_ = 0;
+
+
+	/** The cursor used by the findstart/findnext interface. */
+	private CdbCursor cursor_ = null;
+
+
+	/** Per-thread scratch space which ByteBuffer and CharSequence keys
+	 * are copied into before being looked up. */
+	private static final ThreadLocal<byte[]> keyScratch_
+		= new ThreadLocal<>();
 
 
 	/**
@@ -80,36 +174,104 @@ public class Cdb {
 	 *  opened.
 	 */
 	public Cdb(String filepath) throws IOException {
+		this(filepath, 0);
+	}
+
+	/**
+	 * Creates an instance of the Cdb class and loads the given CDB
+	 * file using the given open flags.
+	 *
+	 * @param filepath The path to the CDB file to open.
+	 * @param flags Zero or more open flags (such as <code>MMAP</code>)
+	 *  or'd together.
+	 * @exception java.io.IOException if the CDB file could not be
+	 *  opened.
+	 */
+	public Cdb(String filepath, int flags) throws IOException {
 		/* Open the CDB file. */
-		file_ = new RandomAccessFile(filepath, "r");
+		if ((flags & MEMORY) != 0)
+			store_ = CdbMappedStore.load(filepath);
+		else if ((flags & MMAP) != 0)
+			store_ = new CdbMappedStore(filepath);
+		else
+			store_ = new CdbFileStore(filepath);
 
-		/* Read and parse the slot table.  We do not throw an exception
-		 * if this fails; the file might empty, which is not an error. */
+		/* Close the file again if it turns out not to be one we can
+		 * read. */
 		try {
-			/* Read the table. */
+			/* Read the slot table.  We do not throw an exception if this
+			 * fails; the file might empty, which is not an error. */
 			byte[] table = new byte[2048];
-			file_.readFully(table);
+			try {
+				store_.readFully(0, table, 0, table.length);
+			} catch (IOException ignored) {
+				return;
+			}
 
-			/* Create and parse the table. */
-			slotTable_ = new int[256 * 2];
+			/* Switch to the cdb64 slot table if this is a cdb64 file. */
+			ByteBuffer slots = ByteBuffer.wrap(table)
+				.order(ByteOrder.LITTLE_ENDIAN);
+			if ((slots.getInt(0) == 0) && (slots.getInt(4) == MAGIC64)) {
+				int format = slots.getInt(8);
+				if ((format & ~KNOWN_FLAGS64) != 0)
+					throw new IOException("unsupported cdb64 format flags");
+
+				wide_ = true;
+				hash64_ = (format & WORDHASH64) != 0;
+				entrySize_ = 16;
+				dataStart_ = slots.getLong(16);
+
+				table = new byte[SLOTS64_SIZE];
+				store_.readFully(HEADER64_SIZE, table, 0, table.length);
+				slots = ByteBuffer.wrap(table).order(ByteOrder.LITTLE_ENDIAN);
 
-			int offset = 0;
+				/* Load the compression dictionary. */
+				if ((format & COMPRESSED64) != 0) {
+					long dictStart = HEADER64_SIZE + SLOTS64_SIZE;
+					long dictLen = dataStart_ - dictStart;
+					if ((dictLen < 0) || (dictLen > CdbDictionary.MAX_SIZE))
+						throw new IOException("invalid cdb format");
+
+					byte[] dict = new byte[(int)dictLen];
+					store_.readFully(dictStart, dict, 0, dict.length);
+					dictionary_ = new CdbDictionary(dict);
+				}
+			}
+
+			/* Create and parse the table. */
+			slotTable_ = new long[256 * 2];
 			for (int i = 0; i < 256; i++) {
-				int pos = table[offset++] & 0xff
-					| ((table[offset++] & 0xff) <<  8)
-					| ((table[offset++] & 0xff) << 16)
-					| ((table[offset++] & 0xff) << 24);
+				long pos, len;
+				if (wide_) {
+					pos = slots.getLong(i * 16);
+					len = slots.getLong((i * 16) + 8);
+				} else {
+					pos = slots.getInt(i * 8) & 0xffffffffL;
+					len = slots.getInt((i * 8) + 4) & 0xffffffffL;
+				}
 
-				int len = table[offset++] & 0xff
-					| ((table[offset++] & 0xff) <<  8)
-					| ((table[offset++] & 0xff) << 16)
-					| ((table[offset++] & 0xff) << 24);
+				if (len > Integer.MAX_VALUE)
+					throw new IOException("invalid cdb format");
 
 				slotTable_[i << 1] = pos;
 				slotTable_[(i << 1) + 1] = len;
 			}
-		} catch (IOException ignored) {
-			slotTable_ = null;
+
+			/* Load the Bloom filter and open the sorted key index, if
+			 * CdbMake wrote them for this file. */
+			if ((flags & NO_SIDECARS) == 0) {
+				bloom_ = CdbBloomFilter.read(
+					filepath + CdbBloomFilter.SUFFIX, store_);
+				keyIndex_ = CdbKeyIndex.read(
+					filepath + CdbKeyIndex.SUFFIX, store_);
+			}
+
+			/* Load the hash tables if asked to. */
+			if ((flags & PIN_INDEX) != 0)
+				pin();
+		} catch (IOException | RuntimeException exception) {
+			close();
+			throw exception;
 		}
 	}
 
@@ -120,9 +282,51 @@ public class Cdb {
 	public final void close() {
 		/* Close the CDB file. */
 		try {
-			file_.close();
-			file_ = null;
+			store_.close();
+			store_ = null;
 		} catch (IOException ignored) {}
+
+		/* Close the key index. */
+		if (keyIndex_ != null) {
+			keyIndex_.close();
+			keyIndex_ = null;
+		}
+	}
+
+	/**
+	 * Returns the memory used by the Bloom filter loaded from the
+	 * database's sidecar file.  A database built with the
+	 * <code>CdbMake.BLOOM</code> flag has such a filter, which lets
+	 * most lookups of missing keys return without reading the file.
+	 *
+	 * @return The size of the Bloom filter in bytes, or zero if the
+	 *  database has no Bloom filter.
+	 */
+	public final long bloomFilterSize() {
+		return bloom_ == null ? 0 : bloom_.size();
+	}
+
+
+	/**
+	 * Returns the memory used by the hash tables pinned in memory by
+	 * the <code>PIN_INDEX</code> open flag.
+	 *
+	 * @return The size of the pinned hash tables in bytes, or zero if
+	 *  they are not pinned.
+	 */
+	public final long pinnedIndexSize() {
+		return pinned_ == null ? 0 : (long)pinned_.length * 8;
+	}
+
+	/**
+	 * Returns the time taken to load the hash tables pinned in memory
+	 * by the <code>PIN_INDEX</code> open flag.
+	 *
+	 * @return The load time in milliseconds, or zero if the hash tables
+	 *  are not pinned.
+	 */
+	public final long pinnedIndexLoadTime() {
+		return TimeUnit.NANOSECONDS.toMillis(pinTime_);
 	}
 
 
@@ -133,24 +337,80 @@ public class Cdb {
 	 * @return The hash value of <code>key</code>.
 	 */
 	static final int hash(byte[] key) {
+		return hash(key, 0, key.length);
+	}
+
+	/**
+	 * Computes and returns the hash value for the key stored in the
+	 * given range of <code>key</code>.
+	 *
+	 * @param key The array containing the key.
+	 * @param off The offset of the key in <code>key</code>.
+	 * @param len The length of the key.
+	 * @return The hash value of the key.
+	 */
+	static final int hash(byte[] key, int off, int len) {
 		/* Initialize the hash value. */
-		long h = 5381;
+		int h = 5381;
+
+		/* Add each byte to the hash value.  The arithmetic wraps at 32
+		 * bits, just as the reference implementation's does. */
+		for (int i = off; i < off + len; i++)
+			h = ((h << 5) + h) ^ (key[i] & 0xff);
+
+		/* Return the hash value. */
+		return h;
+	}
 
-		/* Add each byte to the hash value. */
-		for (int i = 0; i < key.length; i++ ) {
-//			h = ((h << 5) + h) ^ key[i];
-			long l = h << 5;
-			h += (l & 0x00000000ffffffffL);
-			h = (h & 0x00000000ffffffffL);
+	/**
+	 * Computes the 64-bit hash value used by cdb64 files built with
+	 * <code>CdbMake.HASH64</code> for the key stored in the given range
+	 * of <code>key</code>.  The key is consumed eight bytes at a time
+	 * with the rounds and final mix of xxHash64.  The result is rotated
+	 * left by eight bits, so that the top byte of the hash picks the
+	 * hash table and the rest of it picks the slot, in the places that
+	 * the DJB hash has them.  The whole value is stored in the hash
+	 * table and checked before any key is compared.
+	 *
+	 * @param key The array containing the key.
+	 * @param off The offset of the key in <code>key</code>.
+	 * @param len The length of the key.
+	 * @return The hash value of the key.
+	 */
+	static final long hash64(byte[] key, int off, int len) {
+		long h = PRIME64_5 + len;
+		int i = 0;
 
-			int k = key[i];
-			k = (k + 0x100) & 0xff;
+		/* Mix in each whole word... */
+		for (; i + 8 <= len; i += 8) {
+			long k = (long)CdbStore.LE_LONGS.get(key, off + i);
+			k = Long.rotateLeft(k * PRIME64_2, 31) * PRIME64_1;
+			h = (Long.rotateLeft(h ^ k, 27) * PRIME64_1) + PRIME64_4;
+		}
 
-			h = h ^ k;
+		/* ...then a half word and the remaining bytes. */
+		if (i + 4 <= len) {
+			long k = ((key[off + i] & 0xffL)
+				| ((key[off + i + 1] & 0xffL) << 8)
+				| ((key[off + i + 2] & 0xffL) << 16)
+				| ((key[off + i + 3] & 0xffL) << 24));
+			h = (Long.rotateLeft(h ^ (k * PRIME64_1), 23) * PRIME64_2)
+				+ PRIME64_3;
+			i += 4;
+		}
+		for (; i < len; i++) {
+			h ^= (key[off + i] & 0xffL) * PRIME64_5;
+			h = Long.rotateLeft(h, 11) * PRIME64_1;
 		}
 
-		/* Return the hash value. */
-		return (int)(h & 0x00000000ffffffffL);
+		/* Avalanche. */
+		h ^= h >>> 33;
+		h *= PRIME64_2;
+		h ^= h >>> 29;
+		h *= PRIME64_3;
+		h ^= h >>> 32;
+
+		return Long.rotateLeft(h, 8);
 	}
 
 
@@ -160,7 +420,7 @@ public class Cdb {
 	 * @param key The key to search for.
 	 */
 	public final void findstart(byte[] key) {
-		loop_ = 0;
+		cursor_ = null;
 	}
 
 	/**
@@ -176,113 +436,1090 @@ public class Cdb {
 	}
 
 	/**
-	 * Finds the next record stored under the given key.
+	 * Finds the next record stored under the given key.  The search
+	 * position is shared by every caller of this Cdb object; use
+	 * {@link #findAll(byte[])} to walk duplicate keys from several
+	 * threads.
 	 *
 	 * @param key The key to search for.
 	 * @return The next record store under the given key, or
 	 *  <code>null</code> if no record with that key could be found.
 	 */
 	public final synchronized byte[] findnext(byte[] key) {
-		/* There are no keys if we could not read the slot table. */
-		if (slotTable_ == null)
+		/* Locate the hash entry if we have not yet done so. */
+		if (cursor_ == null)
+			cursor_ = findAll(key);
+
+		/* Return the next record from the cursor.  This method has
+		 * always reported read errors as a missing record. */
+		try {
+			return cursor_.next();
+		} catch (UncheckedIOException ignored) {
 			return null;
+		}
+	}
 
-		/* Locate the hash entry if we have not yet done so. */
-		if (loop_ == 0) {
-			/* Get the hash value for the key. */
-			int u = hash(key);
-
-			/* Unpack the information for this record. */
-			int slot = u & 255;
-			hslots_ = slotTable_[(slot << 1) + 1];
-			if (hslots_ == 0)
-				return null;
-			hpos_ = slotTable_[slot << 1];
-
-			/* Store the hash value. */
-			khash_ = u;
-
-			/* Locate the slot containing this key. */
-			u >>>= 8;
-			u %= hslots_;
-			u <<= 3;
-			kpos_ = hpos_ + u;
+
+	/**
+	 * Finds the first record stored under the given key.  Unlike
+	 * {@link #find(byte[])}, this method keeps no search state in the
+	 * Cdb object and can be called from any number of threads at once.
+	 *
+	 * @param key The key to search for.
+	 * @return The record stored under the given key, or
+	 *  <code>null</code> if no record with that key could be found.
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public final byte[] get(byte[] key) {
+		return get(key, 0, key.length);
+	}
+
+	/**
+	 * Finds the first record stored under the key in the given range of
+	 * <code>key</code>.
+	 *
+	 * @param key The array containing the key.
+	 * @param off The offset of the key in <code>key</code>.
+	 * @param len The length of the key.
+	 * @return The record stored under the given key, or
+	 *  <code>null</code> if no record with that key could be found.
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public final byte[] get(byte[] key, int off, int len) {
+		try {
+			long rpos = locate(key, off, len);
+			return rpos != 0 ? readData(rpos, len) : null;
+		} catch (IOException ioException) {
+			throw new UncheckedIOException(ioException);
 		}
+	}
 
-		/* Search all of the hash slots for this key. */
+	/**
+	 * Finds the first record stored under the key in the remaining
+	 * bytes of <code>key</code>.  The buffer's position is not changed.
+	 *
+	 * @param key The buffer containing the key.
+	 * @return The record stored under the given key, or
+	 *  <code>null</code> if no record with that key could be found.
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public final byte[] get(ByteBuffer key) {
+		byte[] b = keyBytes(key);
+		return get(b, keyOffset(key), key.remaining());
+	}
+
+	/**
+	 * Finds the first record stored under the UTF-8 encoding of the
+	 * given key.
+	 *
+	 * @param key The key to search for.
+	 * @return The record stored under the given key, or
+	 *  <code>null</code> if no record with that key could be found.
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public final byte[] get(CharSequence key) {
+		byte[] b = keyBytes(key);
+		return get(b, 0, utf8Length(key));
+	}
+
+	/**
+	 * Finds the first record stored under the given key and returns a
+	 * read-only view of its data.  When the database is memory mapped
+	 * the view refers directly to the mapping and no data is copied,
+	 * unless the data is compressed.
+	 *
+	 * @param key The key to search for.
+	 * @return A read-only buffer containing the record stored under
+	 *  the given key, or <code>null</code> if no record with that key
+	 *  could be found.
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public final ByteBuffer getBuffer(byte[] key) {
+		return getBuffer(key, 0, key.length);
+	}
+
+	/**
+	 * Finds the first record stored under the key in the given range of
+	 * <code>key</code> and returns a read-only view of its data.
+	 *
+	 * @param key The array containing the key.
+	 * @param off The offset of the key in <code>key</code>.
+	 * @param len The length of the key.
+	 * @return A read-only buffer containing the record stored under
+	 *  the given key, or <code>null</code> if no record with that key
+	 *  could be found.
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public final ByteBuffer getBuffer(byte[] key, int off, int len) {
 		try {
-			while (loop_ < hslots_) {
-				/* Read the entry for this key from the hash slot. */
-				file_.seek(kpos_);
-
-				int h = file_.readUnsignedByte()
-					| (file_.readUnsignedByte() <<  8)
-					| (file_.readUnsignedByte() << 16)
-					| (file_.readUnsignedByte() << 24);
-
-				int pos = file_.readUnsignedByte()
-					| (file_.readUnsignedByte() <<  8)
-					| (file_.readUnsignedByte() << 16)
-					| (file_.readUnsignedByte() << 24);
-				if (pos == 0)
-					return null;
-
-				/* Advance the loop count and key position.  Wrap the
-				 * key position around to the beginning of the hash slot
-				 * if we are at the end of the table. */
-				loop_ += 1;
-
-				kpos_ += 8;
-				if (kpos_ == (hpos_ + (hslots_ << 3)))
-					kpos_ = hpos_;
-
-				/* Ignore this entry if the hash values do not match. */
-				if (h != khash_)
-					continue;
-
-				/* Get the length of the key and data in this hash slot
-				 * entry. */
-				file_.seek(pos);
-
-				int klen = file_.readUnsignedByte()
-					| (file_.readUnsignedByte() <<  8)
-					| (file_.readUnsignedByte() << 16)
-					| (file_.readUnsignedByte() << 24);
-				if (klen != key.length)
-					continue;
-
-				int dlen = file_.readUnsignedByte()
-					| (file_.readUnsignedByte() <<  8)
-					| (file_.readUnsignedByte() << 16)
-					| (file_.readUnsignedByte() << 24);
-
-				/* Read the key stored in this entry and compare it to
-				 * the key we were given. */
-				boolean match = true;
-				byte[] k = new byte[klen];
-				file_.readFully(k);
-				for (int i = 0; i < k.length; i++) {
-					if (k[i] != key[i]) {
-						match = false;
-						break;
+			long rpos = locate(key, off, len);
+			return rpos != 0 ? dataBuffer(rpos, len) : null;
+		} catch (IOException ioException) {
+			throw new UncheckedIOException(ioException);
+		}
+	}
+
+	/**
+	 * Finds the first record stored under the key in the remaining
+	 * bytes of <code>key</code> and returns a read-only view of its
+	 * data.  The buffer's position is not changed.
+	 *
+	 * @param key The buffer containing the key.
+	 * @return A read-only buffer containing the record stored under
+	 *  the given key, or <code>null</code> if no record with that key
+	 *  could be found.
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public final ByteBuffer getBuffer(ByteBuffer key) {
+		byte[] b = keyBytes(key);
+		return getBuffer(b, keyOffset(key), key.remaining());
+	}
+
+	/**
+	 * Finds the first record stored under the UTF-8 encoding of the
+	 * given key and returns a read-only view of its data.
+	 *
+	 * @param key The key to search for.
+	 * @return A read-only buffer containing the record stored under
+	 *  the given key, or <code>null</code> if no record with that key
+	 *  could be found.
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public final ByteBuffer getBuffer(CharSequence key) {
+		byte[] b = keyBytes(key);
+		return getBuffer(b, 0, utf8Length(key));
+	}
+
+	/**
+	 * Finds the first record stored under the given key and passes its
+	 * data to <code>visitor</code>.  No data is copied when the
+	 * database is memory mapped, and no memory is allocated in either
+	 * case once the calling thread has warmed up.
+	 *
+	 * @param key The key to search for.
+	 * @param visitor The visitor to pass the record's data to.
+	 * @return <code>true</code> if a record was found and visited;
+	 *  <code>false</code> otherwise.
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public final boolean get(byte[] key, CdbDataVisitor visitor) {
+		return get(key, 0, key.length, visitor);
+	}
+
+	/**
+	 * Finds the first record stored under the key in the given range of
+	 * <code>key</code> and passes its data to <code>visitor</code>.
+	 *
+	 * @param key The array containing the key.
+	 * @param off The offset of the key in <code>key</code>.
+	 * @param len The length of the key.
+	 * @param visitor The visitor to pass the record's data to.
+	 * @return <code>true</code> if a record was found and visited;
+	 *  <code>false</code> otherwise.
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public final boolean get(byte[] key, int off, int len,
+		CdbDataVisitor visitor)
+	{
+		try {
+			long rpos = locate(key, off, len);
+			if (rpos == 0)
+				return false;
+
+			visitData(rpos, len, visitor);
+			return true;
+		} catch (IOException ioException) {
+			throw new UncheckedIOException(ioException);
+		}
+	}
+
+	/**
+	 * Finds the first record stored under the key in the remaining
+	 * bytes of <code>key</code> and passes its data to
+	 * <code>visitor</code>.  The buffer's position is not changed.  A
+	 * direct buffer is copied into per-thread scratch space, so this
+	 * allocates nothing once the calling thread has warmed up.
+	 *
+	 * @param key The buffer containing the key.
+	 * @param visitor The visitor to pass the record's data to.
+	 * @return <code>true</code> if a record was found and visited;
+	 *  <code>false</code> otherwise.
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public final boolean get(ByteBuffer key, CdbDataVisitor visitor) {
+		byte[] b = keyBytes(key);
+		return get(b, keyOffset(key), key.remaining(), visitor);
+	}
+
+	/**
+	 * Finds the first record stored under the UTF-8 encoding of the
+	 * given key and passes its data to <code>visitor</code>.  The key
+	 * is encoded into per-thread scratch space, so this allocates
+	 * nothing once the calling thread has warmed up.  Unpaired
+	 * surrogates are encoded as '?', as <code>String.getBytes</code>
+	 * does.
+	 *
+	 * @param key The key to search for.
+	 * @param visitor The visitor to pass the record's data to.
+	 * @return <code>true</code> if a record was found and visited;
+	 *  <code>false</code> otherwise.
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public final boolean get(CharSequence key, CdbDataVisitor visitor) {
+		byte[] b = keyBytes(key);
+		return get(b, 0, utf8Length(key), visitor);
+	}
+
+	/**
+	 * Returns a scanner over every record in the database, in file
+	 * order.  Closing the scanner does not close the database.
+	 *
+	 * @return A scanner over the records.
+	 */
+	public final CdbScanner scan() {
+		return new CdbScanner(this, false);
+	}
+
+	/**
+	 * Returns <code>true</code> if the database has a sorted key index,
+	 * which <code>range</code> and <code>prefix</code> need.  A
+	 * database built with the <code>CdbMake.KEY_INDEX</code> flag has
+	 * one in a sidecar file.
+	 *
+	 * @return <code>true</code> if the database has a key index.
+	 */
+	public final boolean hasKeyIndex() {
+		return keyIndex_ != null;
+	}
+
+	/**
+	 * Returns the records whose keys lie in the given range, in
+	 * unsigned byte order.  Records with the same key are returned in
+	 * file order.  Finding the first key reads one block of the key
+	 * index; the hash tables are not used.
+	 *
+	 * @param from The smallest key to return, or <code>null</code> to
+	 *  start at the first key.
+	 * @param to The key to stop before, or <code>null</code> to go on
+	 *  to the last key.
+	 * @return An Iterator of CdbElement objects.
+	 * @exception java.lang.IllegalStateException if the database has no
+	 *  key index.
+	 * @exception java.lang.IllegalArgumentException if the key index
+	 *  could not be read.
+	 */
+	public final Iterator<CdbElement> range(byte[] from, byte[] to) {
+		if (keyIndex_ == null)
+			throw new IllegalStateException("no sorted key index");
+		return keyIndex_.range(this, from, to);
+	}
+
+	/**
+	 * Returns the records whose keys start with the given prefix, in
+	 * unsigned byte order.
+	 *
+	 * @param prefix The prefix.
+	 * @return An Iterator of CdbElement objects.
+	 * @exception java.lang.IllegalStateException if the database has no
+	 *  key index.
+	 * @exception java.lang.IllegalArgumentException if the key index
+	 *  could not be read.
+	 */
+	public final Iterator<CdbElement> prefix(byte[] prefix) {
+		return range(prefix, CdbKeyIndex.successor(prefix));
+	}
+
+	/**
+	 * Returns a sequential Stream of every record in the database, in
+	 * file order.
+	 *
+	 * @return A Stream of CdbElement objects.
+	 * @exception java.lang.IllegalArgumentException if the hash tables
+	 *  could not be read.
+	 */
+	public final Stream<CdbElement> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * Returns a parallel Stream of every record in the database.  The
+	 * records are divided between threads at boundaries sampled from
+	 * the hash tables, so each thread reads its own part of the file
+	 * sequentially.
+	 *
+	 * @return A parallel Stream of CdbElement objects.
+	 * @exception java.lang.IllegalArgumentException if the hash tables
+	 *  could not be read.
+	 */
+	public final Stream<CdbElement> parallelStream() {
+		return StreamSupport.stream(spliterator(), true);
+	}
+
+	/**
+	 * Returns a Spliterator over every record in the database.
+	 *
+	 * @return A Spliterator of CdbElement objects.
+	 * @exception java.lang.IllegalArgumentException if the hash tables
+	 *  could not be read.
+	 */
+	public final Spliterator<CdbElement> spliterator() {
+		try {
+			return new CdbSpliterator(this);
+		} catch (IOException ioException) {
+			throw new IllegalArgumentException("invalid cdb format");
+		}
+	}
+
+	/**
+	 * Finds the first record stored under each of the given keys.  The
+	 * keys are hashed up front, their hash tables are then read in
+	 * ascending file order and finally the records themselves are read
+	 * in ascending file order, which turns a batch of random lookups
+	 * into a single forward sweep over the file.
+	 *
+	 * @param keys The keys to search for.
+	 * @return An array containing, for each key in <code>keys</code>,
+	 *  the record stored under that key, or <code>null</code> if no
+	 *  record with that key could be found.
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public final byte[][] getAll(byte[][] keys) {
+		/* Allocate the results and the per-key search state. */
+		int count = keys.length;
+		byte[][] results = new byte[count][];
+		if (slotTable_ == null)
+			return results;
+
+		/* The keys are sorted by packing a file position and a key index
+		 * into a single long.  Split batches which are too large for the
+		 * index to fit next to this file's positions. */
+		int posBits = 64 - Long.numberOfLeadingZeros(store_.length());
+		int maxBatch = 1 << Math.max(0, Math.min(30, 62 - posBits));
+		if (count > maxBatch) {
+			for (int from = 0; from < count; from += maxBatch) {
+				int to = Math.min(count, from + maxBatch);
+				byte[][] batch = getAll(Arrays.copyOfRange(keys, from, to));
+				System.arraycopy(batch, 0, results, from, to - from);
+			}
+			return results;
+		}
+		int indexBits = 32 - Integer.numberOfLeadingZeros(count);
+
+		long[] khash = new long[count];
+		long[] hpos = new long[count];
+		int[] hslots = new int[count];
+		int[] loop = new int[count];
+		long[] kpos = new long[count];
+		long[] rpos = new long[count];
+		long[] order = new long[count];
+
+		/* Hash every key and locate its first hash slot.  Keys whose
+		 * hash table is empty are not found and drop out now. */
+		int[] pending = new int[count];
+		int numPending = 0;
+		for (int i = 0; i < count; i++) {
+			if (!mightContain(keys[i]))
+				continue;
+			khash[i] = hashOf(keys[i]);
+			int slot = (int)khash[i] & 255;
+			hslots[i] = (int)slotTable_[(slot << 1) + 1];
+			if (hslots[i] == 0)
+				continue;
+			hpos[i] = slotTable_[slot << 1];
+			kpos[i] = firstSlot(khash[i], hpos[i], hslots[i]);
+			pending[numPending++] = i;
+		}
+
+		try {
+			while (numPending > 0) {
+				/* Walk the hash tables in ascending position order,
+				 * stopping each key at its next hash match. */
+				sortBy(pending, numPending, kpos, order, indexBits);
+
+				int numCandidates = 0;
+				for (int j = 0; j < numPending; j++) {
+					int i = pending[j];
+
+					rpos[i] = 0;
+					while (loop[i] < hslots[i]) {
+						/* Read the hash slot; an empty slot ends the
+						 * search for this key. */
+						long h = entryHash(kpos[i]);
+						long pos = entryPos(kpos[i]);
+						if (pos == 0) {
+							loop[i] = hslots[i];
+							break;
+						}
+
+						/* Advance to the next slot, wrapping around to
+						 * the beginning of the hash table. */
+						loop[i] += 1;
+						kpos[i] += entrySize_;
+						if (kpos[i] == hpos[i]
+								+ ((long)hslots[i] * entrySize_))
+							kpos[i] = hpos[i];
+
+						/* Stop at the first slot with a matching hash
+						 * value. */
+						if (h == khash[i]) {
+							rpos[i] = pos;
+							break;
+						}
 					}
+
+					if (rpos[i] != 0)
+						pending[numCandidates++] = pending[j];
 				}
 
-				/* No match; check the next slot. */
-				if (!match)
-					continue;
+				/* Verify the candidates in ascending record order.
+				 * Hash collisions go back around for another pass
+				 * over their hash tables. */
+				sortBy(pending, numCandidates, rpos, order, indexBits);
 
-				/* The keys match, return the data. */
-				byte[] d = new byte[dlen];
-				file_.readFully(d);
-				return d;
+				numPending = 0;
+				for (int j = 0; j < numCandidates; j++) {
+					int i = pending[j];
+					if (matches(rpos[i], keys[i]))
+						results[i] = readData(rpos[i], keys[i].length);
+					else
+						pending[numPending++] = pending[j];
+				}
 			}
-		} catch (IOException ignored) {
-			return null;
+		} catch (IOException ioException) {
+			throw new UncheckedIOException(ioException);
 		}
 
-		/* No more data values for this key. */
-		return null;
+		/* Return the results in the caller's order. */
+		return results;
+	}
+
+	/**
+	 * Sorts the first <code>n</code> key indexes in <code>keys</code> by
+	 * their file positions, without boxing them.
+	 *
+	 * @param keys The key indexes to sort.
+	 * @param n The number of key indexes to sort.
+	 * @param pos The file position of each key, by key index.
+	 * @param order Scratch space for at least <code>n</code> sort keys.
+	 * @param indexBits The number of bits needed to hold a key index.
+	 */
+	private static void sortBy(int[] keys, int n, long[] pos, long[] order,
+		int indexBits)
+	{
+		for (int j = 0; j < n; j++)
+			order[j] = (pos[keys[j]] << indexBits) | keys[j];
+		Arrays.sort(order, 0, n);
+
+		long mask = (1L << indexBits) - 1;
+		for (int j = 0; j < n; j++)
+			keys[j] = (int)(order[j] & mask);
+	}
+
+	/**
+	 * Returns a cursor over every record stored under the given key.
+	 * Each cursor carries its own search position, so any number of
+	 * threads can walk the same key (or different keys) at once.  As
+	 * with <code>findnext</code>, the records come back in reverse file
+	 * order: the last one added first.
+	 *
+	 * @param key The key to search for.
+	 * @return A cursor over the records stored under <code>key</code>.
+	 */
+	public final CdbCursor findAll(byte[] key) {
+		/* There are no keys if we could not read the slot table, nor any
+		 * that the Bloom filter rules out. */
+		if ((slotTable_ == null) || !mightContain(key))
+			return new CdbCursor(this, key, 0, 0, 0);
+
+		/* Get the hash value for the key and unpack the information
+		 * for its hash table. */
+		long khash = hashOf(key);
+		int slot = (int)khash & 255;
+		int hslots = (int)slotTable_[(slot << 1) + 1];
+		long hpos = slotTable_[slot << 1];
+
+		return new CdbCursor(this, key, khash, hpos, hslots);
+	}
+
+
+	/**
+	 * Locates the first record stored under the key in the given range
+	 * of <code>key</code>.
+	 *
+	 * @param key The array containing the key.
+	 * @param off The offset of the key in <code>key</code>.
+	 * @param len The length of the key.
+	 * @return The position of the record, or zero if no record with
+	 *  that key could be found.
+	 * @exception java.io.IOException if the hash table or a record
+	 *  could not be read.
+	 */
+	private long locate(byte[] key, int off, int len) throws IOException {
+		/* There are no keys if we could not read the slot table, nor any
+		 * that the Bloom filter rules out. */
+		if ((slotTable_ == null) || !mightContain(key, off, len))
+			return 0;
+
+		/* Get the hash value for the key and unpack the information
+		 * for its hash table. */
+		long khash = hashOf(key, off, len);
+		int slot = (int)khash & 255;
+		int hslots = (int)slotTable_[(slot << 1) + 1];
+		if (hslots == 0)
+			return 0;
+		long hpos = slotTable_[slot << 1];
+
+		/* Search all of the hash slots for this key. */
+		long kpos = firstSlot(khash, hpos, hslots);
+		long hend = hpos + ((long)hslots * entrySize_);
+		for (int loop = 0; loop < hslots; loop++) {
+			/* Check this slot; stop at the first empty one. */
+			long rpos = probe(kpos, khash, key, off, len);
+			if (rpos >= 0)
+				return rpos;
+
+			/* Advance to the next slot, wrapping around to the
+			 * beginning of the hash table if necessary. */
+			kpos += entrySize_;
+			if (kpos == hend)
+				kpos = hpos;
+		}
+
+		/* No data value for this key. */
+		return 0;
+	}
+
+	/**
+	 * Checks the Bloom filter, if there is one, for the given key.
+	 *
+	 * @param key The key to check.
+	 * @return <code>false</code> if the key is certainly not in the
+	 *  database; <code>true</code> if it might be.
+	 */
+	final boolean mightContain(byte[] key) {
+		return mightContain(key, 0, key.length);
+	}
+
+	/**
+	 * Checks the Bloom filter, if there is one, for the key in the
+	 * given range of <code>key</code>.
+	 *
+	 * @param key The array containing the key.
+	 * @param off The offset of the key in <code>key</code>.
+	 * @param len The length of the key.
+	 * @return <code>false</code> if the key is certainly not in the
+	 *  database; <code>true</code> if it might be.
+	 */
+	private boolean mightContain(byte[] key, int off, int len) {
+		return (bloom_ == null)
+			|| bloom_.mightContain(CdbBloomFilter.hash(key, off, len));
+	}
+
+	/**
+	 * Computes the hash value that this CDB file uses for the given key.
+	 *
+	 * @param key The key to compute the hash value for.
+	 * @return The hash value of <code>key</code>.
+	 */
+	final long hashOf(byte[] key) {
+		return hashOf(key, 0, key.length);
+	}
+
+	/**
+	 * Computes the hash value that this CDB file uses for the key in
+	 * the given range of <code>key</code>.
+	 *
+	 * @param key The array containing the key.
+	 * @param off The offset of the key in <code>key</code>.
+	 * @param len The length of the key.
+	 * @return The hash value of the key.
+	 */
+	private long hashOf(byte[] key, int off, int len) {
+		if (hash64_)
+			return hash64(key, off, len);
+		return hash(key, off, len) & 0xffffffffL;
+	}
+
+	/**
+	 * Returns the size of each hash table entry in this CDB file.
+	 *
+	 * @return The size of a hash table entry, in bytes.
+	 */
+	final int entrySize() {
+		return entrySize_;
+	}
+
+	/**
+	 * Returns the position of the first record.
+	 *
+	 * @return The position of the first record.
+	 */
+	final long dataStart() {
+		return dataStart_;
+	}
+
+	/**
+	 * Returns the position following the last record, which is where
+	 * the first hash table starts.
+	 *
+	 * @return The position following the last record.
+	 */
+	final long dataEnd() {
+		if (slotTable_ == null)
+			return dataStart_;
+
+		long end = store_.length();
+		for (int i = 0; i < 256; i++)
+			end = Math.min(end, slotTable_[i << 1]);
+		return end;
+	}
+
+	/**
+	 * Reads the hash tables once from start to end, so that the first
+	 * lookups do not have to wait for them to come in from disk.
+	 *
+	 * @exception java.io.IOException if the hash tables could not be
+	 *  read.
+	 */
+	final void warm() throws IOException {
+		if ((slotTable_ == null) || (pinned_ != null))
+			return;
+
+		/* The hash tables follow the records and run to the end of
+		 * the file. */
+		long pos = dataEnd();
+		byte[] buf = new byte[1 << 16];
+		for (long end = store_.length(); pos < end; pos += buf.length)
+			store_.readFully(pos, buf, 0, (int)Math.min(buf.length, end - pos));
+	}
+
+	/**
+	 * Loads the hash tables into <code>pinned_</code>.  The tables sit
+	 * together at the end of the file; they are read in large chunks,
+	 * each chunk from start to end, with several chunks in flight at
+	 * once.
+	 *
+	 * @exception java.io.IOException if the hash tables could not be
+	 *  read or are too large to pin.
+	 */
+	private void pin() throws IOException {
+		if (slotTable_ == null)
+			return;
+		long start = System.nanoTime();
+
+		final long first = dataEnd();
+		final long count = (store_.length() - first) / entrySize_;
+		final int perEntry = wide_ ? 2 : 1;
+		if (count * perEntry > Integer.MAX_VALUE - 8)
+			throw new IOException("hash tables are too large to pin");
+		final long[] pinned = new long[(int)(count * perEntry)];
+
+		/* Read and unpack the chunks in parallel. */
+		final int chunkEntries = PIN_CHUNK / entrySize_;
+		int chunks = (int)((count + chunkEntries - 1) / chunkEntries);
+		RecursiveAction[] tasks = new RecursiveAction[chunks];
+		for (int i = 0; i < chunks; i++) {
+			final int base = i * chunkEntries;
+			tasks[i] = new RecursiveAction() {
+				protected void compute() {
+					int n = (int)Math.min(chunkEntries, count - base);
+					byte[] b = new byte[n * entrySize_];
+					try {
+						store_.readFully(first + (long)base * entrySize_,
+							b, 0, b.length);
+					} catch (IOException ioException) {
+						throw new UncheckedIOException(ioException);
+					}
+
+					ByteBuffer buf = ByteBuffer.wrap(b)
+						.order(ByteOrder.LITTLE_ENDIAN);
+					for (int j = 0; j < n; j++) {
+						if (wide_) {
+							pinned[(base + j) << 1] = buf.getLong();
+							pinned[((base + j) << 1) + 1] = buf.getLong();
+						} else {
+							long hash = buf.getInt() & 0xffffffffL;
+							long pos = buf.getInt() & 0xffffffffL;
+							pinned[base + j] = (pos << 32) | hash;
+						}
+					}
+				}
+			};
+		}
+
+		try {
+			ForkJoinTask.invokeAll(tasks);
+		} catch (UncheckedIOException uncheckedIOException) {
+			throw uncheckedIOException.getCause();
+		}
+
+		pinStart_ = first;
+		pinned_ = pinned;
+		pinTime_ = System.nanoTime() - start;
+	}
+
+	/**
+	 * Returns the position of the given hash table.
+	 *
+	 * @param table The number of the hash table.
+	 * @return The position of the hash table.
+	 */
+	final long tablePosition(int table) {
+		return slotTable_ == null ? 0 : slotTable_[table << 1];
+	}
+
+	/**
+	 * Returns the number of slots in the given hash table.
+	 *
+	 * @param table The number of the hash table.
+	 * @return The number of slots in the hash table.
+	 */
+	final int tableSlots(int table) {
+		return slotTable_ == null ? 0 : (int)slotTable_[(table << 1) + 1];
+	}
+
+	/**
+	 * Reads <code>len</code> bytes from the given position in the CDB
+	 * file.
+	 *
+	 * @param pos The position to read from.
+	 * @param b The array to read into.
+	 * @param off The offset in <code>b</code> to read into.
+	 * @param len The number of bytes to read.
+	 * @exception java.io.IOException if the bytes could not be read.
+	 */
+	final void readFully(long pos, byte[] b, int off, int len)
+		throws IOException
+	{
+		store_.readFully(pos, b, off, len);
+	}
+
+	/**
+	 * Returns the position of the hash slot at which the search for a
+	 * key with the given hash value begins.
+	 *
+	 * @param khash The hash value of the key.
+	 * @param hpos The position of the key's hash table.
+	 * @param hslots The number of slots in the key's hash table.
+	 * @return The position of the first hash slot to search.
+	 */
+	final long firstSlot(long khash, long hpos, int hslots) {
+		return hpos + (((khash >>> 8) % hslots) * entrySize_);
+	}
+
+	/**
+	 * Reads the hash value stored in the hash slot at
+	 * <code>kpos</code>.
+	 *
+	 * @param kpos The position of the hash slot.
+	 * @return The hash value stored in the slot.
+	 * @exception java.io.IOException if the slot could not be read.
+	 */
+	final long entryHash(long kpos) throws IOException {
+		if (pinned_ != null) {
+			int i = (int)((kpos - pinStart_) / entrySize_);
+			return wide_ ? pinned_[i << 1] : pinned_[i] & 0xffffffffL;
+		}
+		if (wide_)
+			return store_.readLeLong(kpos);
+		return store_.readLeInt(kpos) & 0xffffffffL;
+	}
+
+	/**
+	 * Reads the record position stored in the hash slot at
+	 * <code>kpos</code>.
+	 *
+	 * @param kpos The position of the hash slot.
+	 * @return The record position stored in the slot, or zero if the
+	 *  slot is empty.
+	 * @exception java.io.IOException if the slot could not be read.
+	 */
+	final long entryPos(long kpos) throws IOException {
+		if (pinned_ != null) {
+			int i = (int)((kpos - pinStart_) / entrySize_);
+			return wide_ ? pinned_[(i << 1) + 1] : pinned_[i] >>> 32;
+		}
+		if (wide_)
+			return store_.readLeLong(kpos + 8);
+		return store_.readLeInt(kpos + 4) & 0xffffffffL;
+	}
+
+	/**
+	 * Checks the hash slot at <code>kpos</code> for the given key.
+	 *
+	 * @param kpos The position of the hash slot.
+	 * @param khash The hash value of the key.
+	 * @param key The key to search for.
+	 * @return The position of the record if the slot refers to
+	 *  <code>key</code>, zero if the slot is empty (which ends the
+	 *  search), or -1 if the slot refers to some other key.
+	 * @exception java.io.IOException if the slot or record could not be
+	 *  read.
+	 */
+	final long probe(long kpos, long khash, byte[] key) throws IOException {
+		return probe(kpos, khash, key, 0, key.length);
+	}
+
+	/**
+	 * Checks the hash slot at <code>kpos</code> for the key in the
+	 * given range of <code>key</code>.
+	 *
+	 * @param kpos The position of the hash slot.
+	 * @param khash The hash value of the key.
+	 * @param key The array containing the key.
+	 * @param off The offset of the key in <code>key</code>.
+	 * @param len The length of the key.
+	 * @return The position of the record if the slot refers to the
+	 *  key, zero if the slot is empty (which ends the search), or -1 if
+	 *  the slot refers to some other key.
+	 * @exception java.io.IOException if the slot or record could not be
+	 *  read.
+	 */
+	private long probe(long kpos, long khash, byte[] key, int off, int len)
+		throws IOException
+	{
+		/* Read the entry for this key from the hash slot. */
+		long pos = entryPos(kpos);
+		if (pos == 0)
+			return 0;
+
+		/* Ignore this entry if the hash values do not match. */
+		if (entryHash(kpos) != khash)
+			return -1;
+
+		/* Compare the record's key with the key we were given. */
+		return matches(pos, key, off, len) ? pos : -1;
+	}
+
+	/**
+	 * Returns <code>true</code> if the record at <code>rpos</code> is
+	 * stored under the given key.
+	 *
+	 * @param rpos The position of the record.
+	 * @param key The key to compare against.
+	 * @return <code>true</code> if the record's key equals
+	 *  <code>key</code>; <code>false</code> otherwise.
+	 * @exception java.io.IOException if the record could not be read.
+	 */
+	private boolean matches(long rpos, byte[] key) throws IOException {
+		return matches(rpos, key, 0, key.length);
+	}
+
+	/**
+	 * Returns <code>true</code> if the record at <code>rpos</code> is
+	 * stored under the key in the given range of <code>key</code>.
+	 *
+	 * @param rpos The position of the record.
+	 * @param key The array containing the key.
+	 * @param off The offset of the key in <code>key</code>.
+	 * @param len The length of the key.
+	 * @return <code>true</code> if the record's key equals the key;
+	 *  <code>false</code> otherwise.
+	 * @exception java.io.IOException if the record could not be read.
+	 */
+	private boolean matches(long rpos, byte[] key, int off, int len)
+		throws IOException
+	{
+		/* The key lengths must match. */
+		int klen = store_.readLeInt(rpos);
+		if (klen != len)
+			return false;
+
+		/* Compare the key stored in this record to the key we were
+		 * given, in place. */
+		return store_.equals(rpos + 8, key, off, klen);
+	}
+
+	/**
+	 * Returns the array holding the remaining bytes of a key buffer:
+	 * its backing array if it has an accessible one, or otherwise this
+	 * thread's key scratch space with the bytes copied into it.
+	 *
+	 * @param key The buffer containing the key.
+	 * @return The array holding the key.
+	 */
+	static byte[] keyBytes(ByteBuffer key) {
+		if (key.hasArray())
+			return key.array();
+
+		/* Copy with absolute gets, which leave the position alone
+		 * without allocating a duplicate of the buffer. */
+		int pos = key.position();
+		int len = key.remaining();
+		byte[] b = keyScratch(len);
+		for (int i = 0; i < len; i++)
+			b[i] = key.get(pos + i);
+		return b;
+	}
+
+	/**
+	 * Returns the offset of a key buffer's remaining bytes in the array
+	 * returned by <code>keyBytes</code>.
+	 *
+	 * @param key The buffer containing the key.
+	 * @return The offset of the key in the array.
+	 */
+	static int keyOffset(ByteBuffer key) {
+		return key.hasArray() ? key.arrayOffset() + key.position() : 0;
+	}
+
+	/**
+	 * Encodes a key as UTF-8 into this thread's key scratch space.
+	 * Unpaired surrogates are encoded as '?'.
+	 *
+	 * @param key The key to encode.
+	 * @return The array holding the encoded key, which is
+	 *  <code>utf8Length(key)</code> bytes long.
+	 */
+	static byte[] keyBytes(CharSequence key) {
+		int n = key.length();
+		byte[] b = keyScratch(n * 3);
+		int len = 0;
+		for (int i = 0; i < n; i++) {
+			char c = key.charAt(i);
+			if (c < 0x80) {
+				b[len++] = (byte)c;
+			} else if (c < 0x800) {
+				b[len++] = (byte)(0xc0 | (c >> 6));
+				b[len++] = (byte)(0x80 | (c & 0x3f));
+			} else if (!Character.isSurrogate(c)) {
+				b[len++] = (byte)(0xe0 | (c >> 12));
+				b[len++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+				b[len++] = (byte)(0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && (i + 1 < n)
+					&& Character.isLowSurrogate(key.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, key.charAt(++i));
+				b[len++] = (byte)(0xf0 | (cp >> 18));
+				b[len++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+				b[len++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+				b[len++] = (byte)(0x80 | (cp & 0x3f));
+			} else {
+				b[len++] = (byte)'?';
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Returns the length of the UTF-8 encoding of a key, as produced by
+	 * <code>keyBytes(CharSequence)</code>.
+	 *
+	 * @param key The key.
+	 * @return The length of the encoded key.
+	 */
+	static int utf8Length(CharSequence key) {
+		int n = key.length();
+		int len = 0;
+		for (int i = 0; i < n; i++) {
+			char c = key.charAt(i);
+			if (c < 0x80) {
+				len += 1;
+			} else if (c < 0x800) {
+				len += 2;
+			} else if (!Character.isSurrogate(c)) {
+				len += 3;
+			} else if (Character.isHighSurrogate(c) && (i + 1 < n)
+					&& Character.isLowSurrogate(key.charAt(i + 1))) {
+				len += 4;
+				i++;
+			} else {
+				len += 1;
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Returns this thread's key scratch space, grown if necessary to
+	 * hold at least <code>len</code> bytes.
+	 *
+	 * @param len The number of bytes needed.
+	 * @return The scratch space.
+	 */
+	private static byte[] keyScratch(int len) {
+		byte[] b = keyScratch_.get();
+		if ((b == null) || (b.length < len)) {
+			b = new byte[Math.max(len, 256)];
+			keyScratch_.set(b);
+		}
+		return b;
+	}
+
+	/**
+	 * Reads the data stored in the record at <code>rpos</code>.
+	 *
+	 * @param rpos The position of the record.
+	 * @param klen The length of the record's key.
+	 * @return The record's data.
+	 * @exception java.io.IOException if the data could not be read.
+	 */
+	final byte[] readData(long rpos, int klen) throws IOException {
+		int dlen = store_.readLeInt(rpos + 4);
+		byte[] d = new byte[dlen];
+		store_.readFully(rpos + 8 + klen, d, 0, dlen);
+		return dictionary_ != null ? dictionary_.decompress(d, 0, dlen) : d;
+	}
+
+	/**
+	 * Returns a read-only view of the data stored in the record at
+	 * <code>rpos</code>.
+	 *
+	 * @param rpos The position of the record.
+	 * @param klen The length of the record's key.
+	 * @return A read-only buffer containing the record's data.
+	 * @exception java.io.IOException if the data could not be read.
+	 */
+	final ByteBuffer dataBuffer(long rpos, int klen) throws IOException {
+		if (dictionary_ != null)
+			return ByteBuffer.wrap(readData(rpos, klen)).asReadOnlyBuffer();
+
+		int dlen = store_.readLeInt(rpos + 4);
+		return store_.slice(rpos + 8 + klen, dlen);
+	}
+
+	/**
+	 * Passes the data stored in the record at <code>rpos</code> to
+	 * <code>visitor</code>.
+	 *
+	 * @param rpos The position of the record.
+	 * @param klen The length of the record's key.
+	 * @param visitor The visitor to pass the data to.
+	 * @exception java.io.IOException if the data could not be read.
+	 */
+	final void visitData(long rpos, int klen, CdbDataVisitor visitor)
+		throws IOException
+	{
+		if (dictionary_ != null) {
+			byte[] d = readData(rpos, klen);
+			visitor.visit(ByteBuffer.wrap(d).asReadOnlyBuffer(), 0, d.length);
+			return;
+		}
+
+		int dlen = store_.readLeInt(rpos + 4);
+		store_.visit(rpos + 8 + klen, dlen, visitor);
+	}
+
+	/**
+	 * Returns the dictionary that record data is compressed against.
+	 *
+	 * @return The dictionary, or <code>null</code> if the data is not
+	 *  compressed.
+	 */
+	final CdbDictionary dictionary() {
+		return dictionary_;
 	}
 
 
@@ -296,86 +1533,35 @@ public class Cdb {
 	 * @exception java.io.IOException if an error occurs reading the
 	 *  constant database.
 	 */
-	public static Enumeration elements(final String filepath)
+	public static Enumeration<CdbElement> elements(final String filepath)
 		throws IOException
 	{
-		/* Open the data file. */
-		final InputStream in
-			= new BufferedInputStream(
-				new FileInputStream(
-					filepath));
-
-		/* Read the end-of-data value. */
-		final int eod = (in.read() & 0xff)
-				| ((in.read() & 0xff) <<  8)
-				| ((in.read() & 0xff) << 16)
-				| ((in.read() & 0xff) << 24);
-
-		/* Skip the rest of the hashtable. */
-		in.skip(2048 - 4);
+		/* Scan the file; the scanner closes it after the last
+		 * element. */
+		final CdbScanner scanner = CdbScanner.open(filepath, 0);
 
 		/* Return the Enumeration. */
-		return new Enumeration() {
-			/* Current data pointer. */
-			int pos = 2048;
-
+		return new Enumeration<CdbElement>() {
 			/* Finalizer. */
+			@SuppressWarnings("deprecation")
 			protected void finalize() {
-				try { in.close(); } catch (Exception ignored) {}
+				scanner.close();
 			}
 
 
 			/* Returns <code>true</code> if there are more elements in
-			 * the constant database (pos < eod); <code>false</code>
-			 * otherwise. */
+			 * the constant database; <code>false</code> otherwise. */
 			public boolean hasMoreElements() {
-				return pos < eod;
-			}
+				if (scanner.hasNext())
+					return true;
 
-			/* Returns the next data element in the CDB file. */
-			public synchronized Object nextElement() {
-				try {
-					/* Read the key and value lengths. */
-					int klen = readLeInt(); pos += 4;
-					int dlen = readLeInt(); pos += 4;
-
-					/* Read the key. */
-					byte[] key = new byte[klen];
-					for (int off = 0; off < klen; /* below */) {
-						int count = in.read(key, off, klen - off);
-						if (count == -1)
-							throw new IllegalArgumentException(
-								"invalid cdb format");
-						off += count;
-					}
-					pos += klen;
-
-					/* Read the data. */
-					byte[] data = new byte[dlen];
-					for (int off = 0; off < dlen; /* below */) {
-						int count = in.read(data, off, dlen - off);
-						if (count == -1)
-							throw new IllegalArgumentException(
-								"invalid cdb format");
-						off += count;
-					}
-					pos += dlen;
-
-					/* Return a CdbElement with the key and data. */
-					return new CdbElement(key, data);
-				} catch (IOException ioException) {
-					throw new IllegalArgumentException(
-						"invalid cdb format");
-				}
+				scanner.close();
+				return false;
 			}
 
-
-			/* Reads a little-endian integer from <code>in</code>. */
-			private int readLeInt() throws IOException {
-				return (in.read() & 0xff)
-					| ((in.read() & 0xff) <<  8)
-					| ((in.read() & 0xff) << 16)
-					| ((in.read() & 0xff) << 24);
+			/* Returns the next data element in the CDB file. */
+			public synchronized CdbElement nextElement() {
+				return scanner.next();
 			}
 		};
 	}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * CdbAsync looks up keys in a Cdb without blocking the caller.  Each
+ * lookup returns a CompletableFuture which is completed by one of a
+ * bounded pool of I/O threads, so an event loop never waits on a cold
+ * page of the file.  The pool has one thread per read that may be in
+ * flight at once; lookups beyond that wait in a queue, which lets a
+ * slow disk be kept busy with a deep queue without the number of
+ * threads growing with the load.  A lookup which would overflow the
+ * queue fails with a RejectedExecutionException instead of blocking.
+ *
+ * <p>Lookups that the database's Bloom filter rules out are completed
+ * at once, on the calling thread.  Other futures are completed on an
+ * I/O thread, so callers should use the <code>...Async</code> forms of
+ * the CompletableFuture methods to move work back onto their own
+ * threads.  Reads use the database's positional reads, which are safe
+ * from many threads at once.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class CdbAsync implements Closeable {
+	/** The default number of lookups that may wait for each I/O
+	 * thread. */
+	private static final int QUEUE_PER_READ = 256;
+
+	/** The number used to name the next I/O thread. */
+	private static final AtomicInteger threadNumber_ = new AtomicInteger();
+
+
+	/** The database to look up keys in. */
+	private final Cdb cdb_;
+
+	/** The I/O threads. */
+	private final ThreadPoolExecutor executor_;
+
+
+	/**
+	 * Creates an asynchronous view of the given database.
+	 *
+	 * @param cdb The database to look up keys in.
+	 * @param maxReads The most reads that may be in flight at once.
+	 */
+	public CdbAsync(Cdb cdb, int maxReads) {
+		this(cdb, maxReads, maxReads * QUEUE_PER_READ);
+	}
+
+	/**
+	 * Creates an asynchronous view of the given database with a queue
+	 * of the given size.
+	 *
+	 * @param cdb The database to look up keys in.
+	 * @param maxReads The most reads that may be in flight at once.
+	 * @param maxQueued The most lookups that may wait for a read.
+	 */
+	public CdbAsync(Cdb cdb, int maxReads, int maxQueued) {
+		if ((maxReads < 1) || (maxQueued < 1))
+			throw new IllegalArgumentException(
+				"maxReads and maxQueued must be positive");
+
+		cdb_ = cdb;
+		executor_ = new ThreadPoolExecutor(maxReads, maxReads,
+			60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxQueued),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r,
+						"CdbAsync " + threadNumber_.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		executor_.allowCoreThreadTimeOut(true);
+	}
+
+
+	/**
+	 * Finds the first record stored under the given key.
+	 *
+	 * @param key The key to search for.
+	 * @return A future of the record stored under the given key, or of
+	 *  <code>null</code> if no record with that key could be found.
+	 *  The future fails with a RejectedExecutionException if the queue
+	 *  is full or the CdbAsync has been closed, and with an IOException
+	 *  if the database could not be read.
+	 */
+	public CompletableFuture<byte[]> get(final byte[] key) {
+		/* Answer at once if the Bloom filter rules the key out. */
+		if (!cdb_.mightContain(key))
+			return CompletableFuture.completedFuture(null);
+
+		final CompletableFuture<byte[]> future = new CompletableFuture<>();
+		submit(future, new Runnable() {
+			public void run() {
+				future.complete(cdb_.get(key));
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Finds the first record stored under each of the given keys.  The
+	 * whole batch is looked up by a single I/O thread with
+	 * <code>Cdb.getAll</code>, which reads the file in one forward
+	 * sweep.
+	 *
+	 * @param keys The keys to search for.
+	 * @return A future of an array parallel to <code>keys</code>
+	 *  holding the first record stored under each key, or
+	 *  <code>null</code> where no record could be found.  The future
+	 *  fails with a RejectedExecutionException if the queue is full or
+	 *  the CdbAsync has been closed, and with an IOException if the
+	 *  database could not be read.
+	 */
+	public CompletableFuture<byte[][]> getAll(final byte[][] keys) {
+		final CompletableFuture<byte[][]> future = new CompletableFuture<>();
+		submit(future, new Runnable() {
+			public void run() {
+				future.complete(cdb_.getAll(keys));
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Returns the number of lookups waiting for an I/O thread.
+	 *
+	 * @return The number of queued lookups.
+	 */
+	public int getQueuedCount() {
+		return executor_.getQueue().size();
+	}
+
+	/**
+	 * Stops accepting lookups.  Lookups already accepted are still
+	 * completed; the database is not closed.
+	 */
+	public void close() {
+		executor_.shutdown();
+	}
+
+
+	/**
+	 * Hands a lookup to the I/O threads, failing its future if the
+	 * lookup is rejected or throws.  A read error fails the future
+	 * with the underlying IOException.
+	 *
+	 * @param future The future of the lookup.
+	 * @param lookup The lookup, which completes <code>future</code>.
+	 */
+	private void submit(final CompletableFuture<?> future,
+		final Runnable lookup)
+	{
+		try {
+			executor_.execute(new Runnable() {
+				public void run() {
+					try {
+						lookup.run();
+					} catch (UncheckedIOException uncheckedIOException) {
+						future.completeExceptionally(
+							uncheckedIOException.getCause());
+					} catch (RuntimeException | Error throwable) {
+						future.completeExceptionally(throwable);
+					}
+				}
+			});
+		} catch (RejectedExecutionException rejected) {
+			future.completeExceptionally(rejected);
+		}
+	}
+}
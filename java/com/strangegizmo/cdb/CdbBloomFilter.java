@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * CdbBloomFilter is a Bloom filter over the keys of a constant
+ * database.  CdbMake can write one to a sidecar file next to the
+ * database, and Cdb loads it at open so that most lookups of missing
+ * keys can be answered without reading the database at all.
+ *
+ * <p>The sidecar starts with a 32-byte little-endian header: the magic
+ * number, the number of hash functions, the number of bits in the
+ * filter, and the length and fingerprint (see
+ * <code>CdbStore.fingerprint</code>) of the CDB file it belongs to,
+ * which let Cdb ignore a sidecar left over from an older database.  A
+ * stale filter would report keys of the new database as missing.  The
+ * bits follow
+ * as little-endian longs.  Keys are hashed with 64-bit FNV-1a, so the
+ * filter is independent of the CDB hash.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+final class CdbBloomFilter {
+	/** The suffix of the sidecar file name. */
+	static final String SUFFIX = ".bloom";
+
+	/** The magic number at the start of the sidecar ("cdbb" in
+	 * little-endian order). */
+	private static final int MAGIC = 0x62626463;
+
+	/** The size of the sidecar header. */
+	private static final int HEADER_SIZE = 32;
+
+	/** The largest number of hash functions used. */
+	private static final int MAX_HASHES = 30;
+
+
+	/** The filter bits. */
+	private final long[] bits_;
+
+	/** The number of bits in the filter. */
+	private final long numBits_;
+
+	/** The number of hash functions. */
+	private final int numHashes_;
+
+
+	/**
+	 * Creates an empty filter sized for the given number of keys and
+	 * false-positive rate.
+	 *
+	 * @param keys The number of keys that will be added.
+	 * @param fpp The desired false-positive rate, between 0 and 1.
+	 */
+	CdbBloomFilter(long keys, double fpp) {
+		/* m = -n ln p / (ln 2)^2 and k = (m / n) ln 2. */
+		keys = Math.max(keys, 1);
+		double ln2 = Math.log(2);
+		long numBits = (long)Math.ceil(-keys * Math.log(fpp) / (ln2 * ln2));
+		numBits = Math.max(64, (numBits + 63) & ~63L);
+		int numHashes = (int)Math.round((double)numBits / keys * ln2);
+
+		numBits_ = numBits;
+		numHashes_ = Math.max(1, Math.min(MAX_HASHES, numHashes));
+		bits_ = new long[(int)(numBits >>> 6)];
+	}
+
+	/**
+	 * Creates a filter with the given contents.
+	 *
+	 * @param bits The filter bits.
+	 * @param numHashes The number of hash functions.
+	 */
+	private CdbBloomFilter(long[] bits, int numHashes) {
+		bits_ = bits;
+		numBits_ = (long)bits.length << 6;
+		numHashes_ = numHashes;
+	}
+
+
+	/**
+	 * Computes the filter hash of the key stored in the given range of
+	 * <code>key</code>.
+	 *
+	 * @param key The array containing the key.
+	 * @param off The offset of the key in <code>key</code>.
+	 * @param len The length of the key.
+	 * @return The 64-bit filter hash of the key.
+	 */
+	static long hash(byte[] key, int off, int len) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = off; i < off + len; i++) {
+			h ^= key[i] & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * Adds a key to the filter.
+	 *
+	 * @param hash The filter hash of the key.
+	 */
+	void add(long hash) {
+		long h2 = Long.rotateLeft(hash, 32) | 1;
+		for (int i = 0; i < numHashes_; i++) {
+			long bit = Long.remainderUnsigned(hash + (i * h2), numBits_);
+			bits_[(int)(bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Returns <code>false</code> if the key is certainly not in the
+	 * filter, or <code>true</code> if it might be.
+	 *
+	 * @param hash The filter hash of the key.
+	 * @return <code>true</code> if the key might have been added.
+	 */
+	boolean mightContain(long hash) {
+		long h2 = Long.rotateLeft(hash, 32) | 1;
+		for (int i = 0; i < numHashes_; i++) {
+			long bit = Long.remainderUnsigned(hash + (i * h2), numBits_);
+			if ((bits_[(int)(bit >>> 6)] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the memory used by the filter bits.
+	 *
+	 * @return The size of the filter in bytes.
+	 */
+	long size() {
+		return (long)bits_.length << 3;
+	}
+
+
+	/**
+	 * Writes the filter to a sidecar file.
+	 *
+	 * @param filepath The path of the sidecar file.
+	 * @param cdbLength The length of the CDB file the filter belongs
+	 *  to.
+	 * @param fingerprint The fingerprint of the CDB file.
+	 * @exception java.io.IOException if the sidecar could not be
+	 *  written.
+	 */
+	void write(String filepath, long cdbLength, long fingerprint)
+		throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(filepath, "rw");
+		try {
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+
+			ByteBuffer buf = ByteBuffer.allocate(1 << 16)
+				.order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(MAGIC);
+			buf.putInt(numHashes_);
+			buf.putLong(numBits_);
+			buf.putLong(cdbLength);
+			buf.putLong(fingerprint);
+			for (int i = 0; i < bits_.length; i++) {
+				if (!buf.hasRemaining())
+					drain(channel, buf);
+				buf.putLong(bits_[i]);
+			}
+			drain(channel, buf);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Reads the filter from a sidecar file.
+	 *
+	 * @param filepath The path of the sidecar file.
+	 * @param store The CDB file being opened.
+	 * @return The filter, or <code>null</code> if there is no sidecar
+	 *  or it does not belong to the CDB file.
+	 */
+	static CdbBloomFilter read(String filepath, CdbStore store) {
+		File sidecar = new File(filepath);
+		if (!sidecar.isFile())
+			return null;
+
+		try {
+			long cdbLength = store.length();
+			long fingerprint = store.fingerprint();
+
+			RandomAccessFile file = new RandomAccessFile(sidecar, "r");
+			try {
+				FileChannel channel = file.getChannel();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+					.order(ByteOrder.LITTLE_ENDIAN);
+				readFully(channel, header, 0);
+
+				/* Check that the sidecar is ours and is intact. */
+				int numHashes = header.getInt(4);
+				long numBits = header.getLong(8);
+				if ((header.getInt(0) != MAGIC)
+						|| (header.getLong(16) != cdbLength)
+						|| (header.getLong(24) != fingerprint)
+						|| (numHashes < 1) || (numHashes > MAX_HASHES)
+						|| (numBits <= 0) || ((numBits & 63) != 0)
+						|| ((numBits >>> 6) > Integer.MAX_VALUE)
+						|| (channel.size() != HEADER_SIZE + (numBits >>> 3)))
+					return null;
+
+				/* Read the bits. */
+				long[] bits = new long[(int)(numBits >>> 6)];
+				ByteBuffer buf = ByteBuffer.allocate(1 << 16)
+					.order(ByteOrder.LITTLE_ENDIAN);
+				long pos = HEADER_SIZE;
+				for (int i = 0; i < bits.length; /* below */) {
+					buf.clear();
+					buf.limit((int)Math.min(buf.capacity(),
+						(long)(bits.length - i) << 3));
+					readFully(channel, buf, pos);
+					pos += buf.limit();
+					while (buf.hasRemaining())
+						bits[i++] = buf.getLong();
+				}
+
+				return new CdbBloomFilter(bits, numHashes);
+			} finally {
+				file.close();
+			}
+		} catch (IOException ioException) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Writes out the contents of <code>buf</code> and empties it.
+	 *
+	 * @param channel The channel to write to.
+	 * @param buf The buffer to write.
+	 * @exception java.io.IOException if the buffer could not be
+	 *  written.
+	 */
+	private static void drain(FileChannel channel, ByteBuffer buf)
+		throws IOException
+	{
+		buf.flip();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		buf.clear();
+	}
+
+	/**
+	 * Fills <code>buf</code> from the given position and flips it.
+	 *
+	 * @param channel The channel to read.
+	 * @param buf The buffer to fill.
+	 * @param pos The position to read from.
+	 * @exception java.io.IOException if the channel ends first.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buf,
+		long pos) throws IOException
+	{
+		while (buf.hasRemaining()) {
+			int count = channel.read(buf, pos);
+			if (count < 0)
+				throw new EOFException();
+			pos += count;
+		}
+		buf.flip();
+	}
+}
@@ -0,0 +1,563 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * CdbCache is a bounded read-through cache of the first value stored
+ * under each key of a Cdb.  Values are held as read-only buffers which
+ * can be shared freely between threads, and misses are cached too.
+ *
+ * <p>The cache is split into independently locked segments, chosen by
+ * key, so that threads looking up different keys rarely contend.  Each
+ * segment keeps its entries in a segmented LRU: new entries start on
+ * probation and are promoted to the protected area (80% of the
+ * segment's budget) when they are hit again.  A small frequency sketch
+ * decides admission: when the segment is full, a new entry is only
+ * admitted if its key has been asked for more often than the entry it
+ * would evict, so a scan over many cold keys cannot flush the hot
+ * ones.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class CdbCache {
+	/** The number of segments. */
+	private static final int SEGMENTS = 16;
+
+	/** The estimated memory used by an entry beyond its key and
+	 * value. */
+	private static final int ENTRY_OVERHEAD = 96;
+
+	/** The share of each segment's budget given to protected
+	 * entries. */
+	private static final double PROTECTED_SHARE = 0.8;
+
+	/** The value cached for keys which are not in the database. */
+	private static final ByteBuffer MISSING
+		= ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+
+	/** The database being cached. */
+	private final Cdb cdb_;
+
+	/** The segments. */
+	private final Segment[] segments_ = new Segment[SEGMENTS];
+
+	/** The number of lookups answered by the cache. */
+	private final LongAdder hits_ = new LongAdder();
+
+	/** The number of lookups that went to the database. */
+	private final LongAdder misses_ = new LongAdder();
+
+	/** The number of entries evicted to make room for others. */
+	private final LongAdder evictions_ = new LongAdder();
+
+
+	/**
+	 * Creates a cache in front of the given database.
+	 *
+	 * @param cdb The database to cache.
+	 * @param maxBytes The most memory, in bytes, that cached keys and
+	 *  values may use.
+	 */
+	public CdbCache(Cdb cdb, long maxBytes) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("maxBytes must not be negative");
+
+		cdb_ = cdb;
+		for (int i = 0; i < SEGMENTS; i++)
+			segments_[i] = new Segment(maxBytes / SEGMENTS);
+	}
+
+
+	/**
+	 * Finds the first record stored under the given key, from the
+	 * cache if possible.  The returned buffer is a read-only view of
+	 * the cached value; its position and limit belong to the caller.
+	 *
+	 * @param key The key to search for.
+	 * @return A read-only buffer containing the record stored under
+	 *  the given key, or <code>null</code> if no record with that key
+	 *  could be found.
+	 */
+	public final ByteBuffer getBuffer(byte[] key) {
+		Key k = new Key(key);
+		Segment segment = segments_[k.hash_ & (SEGMENTS - 1)];
+
+		/* Answer from the cache if we can. */
+		ByteBuffer value = segment.get(k);
+		if (value != null) {
+			hits_.increment();
+			return value == MISSING ? null : value.duplicate();
+		}
+
+		/* Read through to the database, outside of any lock. */
+		misses_.increment();
+		byte[] data = cdb_.get(key);
+		value = data == null
+			? MISSING : ByteBuffer.wrap(data).asReadOnlyBuffer();
+		evictions_.add(segment.put(k, value));
+
+		return value == MISSING ? null : value.duplicate();
+	}
+
+	/**
+	 * Finds the first record stored under the given key, from the
+	 * cache if possible, and returns a copy of its data.
+	 *
+	 * @param key The key to search for.
+	 * @return The record stored under the given key, or
+	 *  <code>null</code> if no record with that key could be found.
+	 */
+	public final byte[] get(byte[] key) {
+		ByteBuffer value = getBuffer(key);
+		if (value == null)
+			return null;
+
+		byte[] data = new byte[value.remaining()];
+		value.get(data);
+		return data;
+	}
+
+	/**
+	 * Removes every entry from the cache.
+	 */
+	public final void clear() {
+		for (int i = 0; i < SEGMENTS; i++)
+			segments_[i].clear();
+	}
+
+
+	/**
+	 * Returns the number of lookups answered by the cache, including
+	 * cached misses.
+	 *
+	 * @return The number of cache hits.
+	 */
+	public final long getHitCount() {
+		return hits_.sum();
+	}
+
+	/**
+	 * Returns the number of lookups that went to the database.
+	 *
+	 * @return The number of cache misses.
+	 */
+	public final long getMissCount() {
+		return misses_.sum();
+	}
+
+	/**
+	 * Returns the number of entries evicted to make room for others.
+	 *
+	 * @return The number of evictions.
+	 */
+	public final long getEvictionCount() {
+		return evictions_.sum();
+	}
+
+	/**
+	 * Returns the estimated memory used by the cached keys and values.
+	 *
+	 * @return The size of the cache in bytes.
+	 */
+	public final long getSize() {
+		long size = 0;
+		for (int i = 0; i < SEGMENTS; i++)
+			size += segments_[i].size();
+		return size;
+	}
+
+
+	/**
+	 * A key, compared by value.
+	 */
+	private static final class Key {
+		/** The bytes of the key. */
+		final byte[] key_;
+
+		/** The hash code of the key. */
+		final int hash_;
+
+		/**
+		 * Wraps the given key.
+		 *
+		 * @param key The bytes of the key.
+		 */
+		Key(byte[] key) {
+			key_ = key;
+
+			/* Spread the bits so that both the segment and the
+			 * sketch get well-mixed hashes. */
+			int h = Arrays.hashCode(key) * 0x9e3779b9;
+			hash_ = h ^ (h >>> 16);
+		}
+
+		/**
+		 * Creates a key with a known hash code.
+		 *
+		 * @param key The bytes of the key.
+		 * @param hash The hash code of the key.
+		 */
+		private Key(byte[] key, int hash) {
+			key_ = key;
+			hash_ = hash;
+		}
+
+		/**
+		 * Returns a copy of this key which does not share the
+		 * caller's array.  Lookups wrap the caller's array; entries
+		 * must own their keys, since callers may reuse the array.
+		 *
+		 * @return A copy of the key.
+		 */
+		Key copy() {
+			return new Key(key_.clone(), hash_);
+		}
+
+		public int hashCode() {
+			return hash_;
+		}
+
+		public boolean equals(Object o) {
+			return (o instanceof Key) && Arrays.equals(key_, ((Key)o).key_);
+		}
+	}
+
+	/**
+	 * One independently locked part of the cache.
+	 */
+	private static final class Segment {
+		/** The budget of the segment. */
+		private final long maxBytes_;
+
+		/** The budget of the protected area. */
+		private final long maxProtected_;
+
+		/** Entries which have been hit once, in access order. */
+		private final LinkedHashMap<Key, ByteBuffer> probation_
+			= new LinkedHashMap<>(16, 0.75f, true);
+
+		/** Entries which have been hit more than once, in access
+		 * order. */
+		private final LinkedHashMap<Key, ByteBuffer> protected_
+			= new LinkedHashMap<>(16, 0.75f, true);
+
+		/** The key access frequencies. */
+		private final Sketch sketch_;
+
+		/** The size of the entries in both areas. */
+		private long size_ = 0;
+
+		/** The size of the protected entries. */
+		private long protectedSize_ = 0;
+
+
+		/**
+		 * Creates a segment with the given budget.
+		 *
+		 * @param maxBytes The budget of the segment.
+		 */
+		Segment(long maxBytes) {
+			maxBytes_ = maxBytes;
+			maxProtected_ = (long)(maxBytes * PROTECTED_SHARE);
+			sketch_ = new Sketch(maxBytes / 128);
+		}
+
+
+		/**
+		 * Looks up a key, promoting it on a hit.
+		 *
+		 * @param key The key.
+		 * @return The cached value, <code>MISSING</code> for a cached
+		 *  miss, or <code>null</code> if the key is not cached.
+		 */
+		synchronized ByteBuffer get(Key key) {
+			sketch_.increment(key.hash_);
+
+			/* A protected hit just refreshes the entry. */
+			ByteBuffer value = protected_.get(key);
+			if (value != null)
+				return value;
+
+			/* A second hit on probation promotes the entry, demoting
+			 * the least recently used protected entries if there is
+			 * no room for it. */
+			value = probation_.remove(key);
+			if (value != null) {
+				protected_.put(key, value);
+				protectedSize_ += cost(key, value);
+				while (protectedSize_ > maxProtected_) {
+					Iterator<Map.Entry<Key, ByteBuffer>> it
+						= protected_.entrySet().iterator();
+					Map.Entry<Key, ByteBuffer> eldest = it.next();
+					it.remove();
+					protectedSize_ -= cost(eldest.getKey(),
+						eldest.getValue());
+					probation_.put(eldest.getKey(), eldest.getValue());
+				}
+			}
+
+			return value;
+		}
+
+		/**
+		 * Offers a newly loaded value to the segment.
+		 *
+		 * @param key The key.
+		 * @param value The value, or <code>MISSING</code>.
+		 * @return The number of entries evicted.
+		 */
+		synchronized int put(Key key, ByteBuffer value) {
+			/* Another thread may have loaded the key already. */
+			if (probation_.containsKey(key) || protected_.containsKey(key))
+				return 0;
+
+			long cost = cost(key, value);
+			if (cost > maxBytes_)
+				return 0;
+
+			/* Decide admission before evicting anything: walk the
+			 * would-be victims in eviction order and refuse the new
+			 * entry if any of them is used at least as often. */
+			int frequency = sketch_.frequency(key.hash_);
+			long needed = size_ + cost - maxBytes_;
+			int probationVictims = victims(probation_, needed, frequency);
+			if (probationVictims < 0)
+				return 0;
+			needed -= freed(probation_, probationVictims);
+			int protectedVictims = victims(protected_, needed, frequency);
+			if (protectedVictims < 0)
+				return 0;
+
+			/* Make room. */
+			protectedSize_ -= evict(protected_, protectedVictims);
+			evict(probation_, probationVictims);
+
+			probation_.put(key.copy(), value);
+			size_ += cost;
+			return probationVictims + protectedVictims;
+		}
+
+		/**
+		 * Counts the least recently used entries of an area which
+		 * must be evicted to free the given number of bytes.
+		 *
+		 * @param area The area to evict from.
+		 * @param needed The number of bytes to free; nothing is
+		 *  evicted if this is not positive.
+		 * @param frequency The access frequency of the new entry.
+		 * @return The number of entries to evict, which is every entry
+		 *  in the area if that is not enough, or -1 if one of them is
+		 *  used at least as often as the new entry.
+		 */
+		private int victims(LinkedHashMap<Key, ByteBuffer> area,
+			long needed, int frequency)
+		{
+			int count = 0;
+			for (Map.Entry<Key, ByteBuffer> victim : area.entrySet()) {
+				if (needed <= 0)
+					break;
+
+				Key victimKey = victim.getKey();
+				if (sketch_.frequency(victimKey.hash_) >= frequency)
+					return -1;
+
+				needed -= cost(victimKey, victim.getValue());
+				count++;
+			}
+
+			return count;
+		}
+
+		/**
+		 * Returns the size of the least recently used entries of an
+		 * area.
+		 *
+		 * @param area The area.
+		 * @param count The number of entries.
+		 * @return The size of the entries in bytes.
+		 */
+		private static long freed(LinkedHashMap<Key, ByteBuffer> area,
+			int count)
+		{
+			long freed = 0;
+			Iterator<Map.Entry<Key, ByteBuffer>> it
+				= area.entrySet().iterator();
+			for (int i = 0; i < count; i++) {
+				Map.Entry<Key, ByteBuffer> victim = it.next();
+				freed += cost(victim.getKey(), victim.getValue());
+			}
+
+			return freed;
+		}
+
+		/**
+		 * Evicts the least recently used entries of an area.
+		 *
+		 * @param area The area to evict from.
+		 * @param count The number of entries to evict.
+		 * @return The size of the evicted entries in bytes.
+		 */
+		private long evict(LinkedHashMap<Key, ByteBuffer> area, int count) {
+			long freed = 0;
+			Iterator<Map.Entry<Key, ByteBuffer>> it
+				= area.entrySet().iterator();
+			for (int i = 0; i < count; i++) {
+				Map.Entry<Key, ByteBuffer> victim = it.next();
+				it.remove();
+				freed += cost(victim.getKey(), victim.getValue());
+			}
+
+			size_ -= freed;
+			return freed;
+		}
+
+		/**
+		 * Removes every entry from the segment.
+		 */
+		synchronized void clear() {
+			probation_.clear();
+			protected_.clear();
+			size_ = 0;
+			protectedSize_ = 0;
+		}
+
+		/**
+		 * Returns the size of the entries in the segment.
+		 *
+		 * @return The size of the segment in bytes.
+		 */
+		synchronized long size() {
+			return size_;
+		}
+
+		/**
+		 * Returns the estimated memory used by an entry.
+		 *
+		 * @param key The key of the entry.
+		 * @param value The value of the entry.
+		 * @return The cost of the entry in bytes.
+		 */
+		private static long cost(Key key, ByteBuffer value) {
+			return ENTRY_OVERHEAD + key.key_.length + value.capacity();
+		}
+	}
+
+	/**
+	 * A count-min sketch of 4-bit access counters, halved
+	 * periodically so that old popularity fades.
+	 */
+	private static final class Sketch {
+		/** The number of counter rows. */
+		private static final int DEPTH = 4;
+
+		/** The counters, one byte each. */
+		private final byte[] counters_;
+
+		/** The mask for a counter index within a row. */
+		private final int mask_;
+
+		/** The number of increments between halvings. */
+		private final int sampleSize_;
+
+		/** The number of increments since the last halving. */
+		private int increments_ = 0;
+
+
+		/**
+		 * Creates a sketch sized for the given number of keys.
+		 *
+		 * @param keys The expected number of cached keys.
+		 */
+		Sketch(long keys) {
+			int width = Integer.highestOneBit(
+				(int)Math.max(64, Math.min(keys, 1 << 22)) * 2 - 1);
+			counters_ = new byte[width * DEPTH];
+			mask_ = width - 1;
+			sampleSize_ = width * 10;
+		}
+
+
+		/**
+		 * Counts an access to the key with the given hash.
+		 *
+		 * @param hash The hash of the key.
+		 */
+		void increment(int hash) {
+			for (int i = 0; i < DEPTH; i++) {
+				int index = index(hash, i);
+				if (counters_[index] < 15)
+					counters_[index]++;
+			}
+
+			if (++increments_ == sampleSize_) {
+				for (int i = 0; i < counters_.length; i++)
+					counters_[i] >>= 1;
+				increments_ = 0;
+			}
+		}
+
+		/**
+		 * Estimates the number of accesses to the key with the given
+		 * hash.
+		 *
+		 * @param hash The hash of the key.
+		 * @return The estimated access count.
+		 */
+		int frequency(int hash) {
+			int min = 15;
+			for (int i = 0; i < DEPTH; i++)
+				min = Math.min(min, counters_[index(hash, i)]);
+			return min;
+		}
+
+		/**
+		 * Returns the index of the key's counter in the given row.
+		 *
+		 * @param hash The hash of the key.
+		 * @param row The row.
+		 * @return The index of the counter.
+		 */
+		private int index(int hash, int row) {
+			int h = (hash ^ (row * 0x9e3779b9)) * 0x85ebca6b;
+			h ^= h >>> 15;
+			return (row * (mask_ + 1)) + (h & mask_);
+		}
+	}
+}
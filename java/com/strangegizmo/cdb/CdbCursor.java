@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.*;
+
+/**
+ * CdbCursor walks every record stored under a single key.  A cursor is
+ * obtained from {@link Cdb#findAll(byte[])} and carries its own search
+ * position, so cursors never interfere with one another.  A single
+ * cursor should only be used by one thread at a time.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class CdbCursor {
+	/** The Cdb object being searched. */
+	private final Cdb cdb_;
+
+	/** The key being searched for. */
+	private final byte[] key_;
+
+	/** The hash value for the key. */
+	private final long khash_;
+
+
+	/** The position of the hash table for the key. */
+	private final long hpos_;
+
+	/** The number of hash slots in the hash table for the key. */
+	private final int hslots_;
+
+
+	/** The number of hash slots searched so far. */
+	private int loop_ = 0;
+
+	/** The position of the next hash slot to search. */
+	private long kpos_ = 0;
+
+
+	/**
+	 * Creates a cursor over the records stored under the given key.
+	 *
+	 * @param cdb The Cdb object to search.
+	 * @param key The key to search for.
+	 * @param khash The hash value for the key.
+	 * @param hpos The position of the hash table for the key.
+	 * @param hslots The number of hash slots in the hash table.
+	 */
+	CdbCursor(Cdb cdb, byte[] key, long khash, long hpos, int hslots) {
+		cdb_ = cdb;
+		key_ = key;
+		khash_ = khash;
+		hpos_ = hpos;
+		hslots_ = hslots;
+
+		/* Locate the slot containing this key. */
+		if (hslots_ != 0)
+			kpos_ = cdb_.firstSlot(khash_, hpos_, hslots_);
+	}
+
+
+	/**
+	 * Returns the next record stored under the cursor's key.
+	 *
+	 * @return The next record stored under the key, or
+	 *  <code>null</code> if there are no more records.
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public byte[] next() {
+		try {
+			long rpos = nextRecord();
+			return rpos != 0 ? cdb_.readData(rpos, key_.length) : null;
+		} catch (IOException ioException) {
+			throw new UncheckedIOException(ioException);
+		}
+	}
+
+	/**
+	 * Returns a read-only view of the next record stored under the
+	 * cursor's key.
+	 *
+	 * @return A read-only buffer containing the next record stored
+	 *  under the key, or <code>null</code> if there are no more
+	 *  records.
+	 * @see Cdb#getBuffer(byte[])
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public ByteBuffer nextBuffer() {
+		try {
+			long rpos = nextRecord();
+			return rpos != 0 ? cdb_.dataBuffer(rpos, key_.length) : null;
+		} catch (IOException ioException) {
+			throw new UncheckedIOException(ioException);
+		}
+	}
+
+	/**
+	 * Passes the next record stored under the cursor's key to
+	 * <code>visitor</code>.
+	 *
+	 * @param visitor The visitor to pass the record's data to.
+	 * @return <code>true</code> if a record was found and visited;
+	 *  <code>false</code> if there are no more records.
+	 * @see Cdb#get(byte[], CdbDataVisitor)
+	 * @exception java.io.UncheckedIOException if the database could
+	 *  not be read.
+	 */
+	public boolean next(CdbDataVisitor visitor) {
+		try {
+			long rpos = nextRecord();
+			if (rpos == 0)
+				return false;
+
+			cdb_.visitData(rpos, key_.length, visitor);
+			return true;
+		} catch (IOException ioException) {
+			throw new UncheckedIOException(ioException);
+		}
+	}
+
+
+	/**
+	 * Locates the next record stored under the cursor's key.
+	 *
+	 * @return The position of the next record, or zero if there are no
+	 *  more records.
+	 * @exception java.io.IOException if the hash table or a record
+	 *  could not be read.
+	 */
+	private long nextRecord() throws IOException {
+		/* Search the remaining hash slots for this key. */
+		while (loop_ < hslots_) {
+			/* Check this slot; an empty slot ends the search. */
+			long rpos = cdb_.probe(kpos_, khash_, key_);
+			if (rpos == 0) {
+				loop_ = hslots_;
+				return 0;
+			}
+
+			/* Advance the loop count and key position.  Wrap the key
+			 * position around to the beginning of the hash slot if we
+			 * are at the end of the table. */
+			loop_ += 1;
+
+			kpos_ += cdb_.entrySize();
+			if (kpos_ == (hpos_ + ((long)hslots_ * cdb_.entrySize())))
+				kpos_ = hpos_;
+
+			/* Return the record if the keys matched. */
+			if (rpos > 0)
+				return rpos;
+		}
+
+		/* No more data values for this key. */
+		return 0;
+	}
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * CdbDictionary is the shared dictionary of a compressed constant
+ * database, along with the code which compresses and decompresses
+ * record data against it.  Each record's data is deflated on its own,
+ * so any record can be read without touching the others; priming the
+ * compressor with a dictionary of byte strings common to many records
+ * is what lets small values compress at all.
+ *
+ * <p>Compressed data starts with a tag byte.  <code>STORED</code>
+ * data follows as-is; <code>DEFLATED</code> data is followed by the
+ * original length as an unsigned LEB128 varint and then a raw deflate
+ * stream.  Data is only stored deflated if that makes it smaller.
+ *
+ * <p>A dictionary is trained from a sample of the data with a
+ * simplified form of the "cover" algorithm: every 8-byte substring of
+ * the sample is counted, the sample is cut into overlapping segments,
+ * and the segments covering the most frequent substrings are picked
+ * greedily until the dictionary is full.  The best segments go at the
+ * end of the dictionary, closest to the data that refers to them.
+ *
+ * <p>Compression is not safe for use by several threads at once;
+ * decompression is.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+final class CdbDictionary {
+	/** The largest useful dictionary: the size of the deflate
+	 * window. */
+	static final int MAX_SIZE = 32 * 1024;
+
+	/** The tag of data stored as-is. */
+	private static final int STORED = 0;
+
+	/** The tag of deflated data. */
+	private static final int DEFLATED = 1;
+
+	/** Data shorter than this is always stored as-is. */
+	private static final int MIN_DEFLATE = 16;
+
+	/** The length of the substrings counted during training. */
+	private static final int GRAM = 8;
+
+	/** The length of the segments picked during training. */
+	private static final int SEGMENT = 64;
+
+	/** The most that deflate can expand its input: a 258-byte match
+	 * costs at least two bits. */
+	private static final int MAX_RATIO = 1032;
+
+	/** The log2 of the number of substring counters. */
+	private static final int COUNTER_BITS = 20;
+
+
+	/** The dictionary bytes. */
+	private final byte[] bytes_;
+
+	/** The compressor, created on first use. */
+	private Deflater deflater_ = null;
+
+	/** The compressed data produced by the last call to
+	 * <code>compress</code>. */
+	private byte[] compressed_ = new byte[256];
+
+	/** The per-thread decompressors. */
+	private final ThreadLocal<Inflater> inflater_ = new ThreadLocal<>();
+
+
+	/**
+	 * Creates a dictionary with the given contents.  Only the last
+	 * <code>MAX_SIZE</code> bytes are kept.
+	 *
+	 * @param bytes The dictionary bytes.
+	 */
+	CdbDictionary(byte[] bytes) {
+		if (bytes.length > MAX_SIZE)
+			bytes = Arrays.copyOfRange(
+				bytes, bytes.length - MAX_SIZE, bytes.length);
+		bytes_ = bytes;
+	}
+
+	/**
+	 * Trains a dictionary of at most <code>size</code> bytes from the
+	 * given sample of record data.
+	 *
+	 * @param samples The sample, as a list of byte arrays.
+	 * @param size The largest dictionary to build.
+	 * @return The dictionary, which may be empty if the sample has
+	 *  nothing in common.
+	 */
+	static CdbDictionary train(List<byte[]> samples, int size) {
+		size = Math.min(size, MAX_SIZE);
+
+		/* Count the substrings of the sample. */
+		int mask = (1 << COUNTER_BITS) - 1;
+		int[] counts = new int[1 << COUNTER_BITS];
+		for (byte[] sample : samples) {
+			for (int i = 0; i + GRAM <= sample.length; i++)
+				counts[gram(sample, i) & mask]++;
+		}
+
+		/* Score the segments of each sample, counting a substring only
+		 * if it occurs more than once.  Segments overlap by half. */
+		PriorityQueue<Segment> queue = new PriorityQueue<>();
+		for (int s = 0; s < samples.size(); s++) {
+			byte[] sample = samples.get(s);
+			for (int off = 0; off + GRAM <= sample.length;
+					off += SEGMENT / 2) {
+				int len = Math.min(SEGMENT, sample.length - off);
+				long score = score(counts, mask, sample, off, len);
+				if (score > 0)
+					queue.add(new Segment(s, off, len, score));
+			}
+		}
+
+		/* Pick segments greedily.  Picking a segment zeroes the counts
+		 * of its substrings, so each segment's score is brought up to
+		 * date when it reaches the head of the queue and the segment is
+		 * put back if it is no longer the best. */
+		List<Segment> picked = new ArrayList<>();
+		int total = 0;
+		while ((total < size) && !queue.isEmpty()) {
+			Segment seg = queue.poll();
+			byte[] sample = samples.get(seg.sample);
+			long score = score(counts, mask, sample, seg.off, seg.len);
+			if (score <= 0)
+				continue;
+			if (!queue.isEmpty()
+					&& (score < queue.peek().score)) {
+				seg.score = score;
+				queue.add(seg);
+				continue;
+			}
+
+			for (int i = seg.off; i + GRAM <= seg.off + seg.len; i++)
+				counts[gram(sample, i) & mask] = 0;
+			picked.add(seg);
+			total += seg.len;
+		}
+
+		/* Lay the segments out with the best one last. */
+		byte[] bytes = new byte[Math.min(total, size)];
+		int pos = bytes.length;
+		for (int i = 0; (i < picked.size()) && (pos > 0); i++) {
+			Segment seg = picked.get(i);
+			int len = Math.min(seg.len, pos);
+			pos -= len;
+			System.arraycopy(samples.get(seg.sample),
+				seg.off + seg.len - len, bytes, pos, len);
+		}
+
+		return new CdbDictionary(bytes);
+	}
+
+
+	/**
+	 * Returns the dictionary bytes.
+	 *
+	 * @return The dictionary bytes.
+	 */
+	byte[] bytes() {
+		return bytes_;
+	}
+
+	/**
+	 * Compresses the given data.  The result is left in the array
+	 * returned by <code>compressed</code>, which is reused by the next
+	 * call.
+	 *
+	 * @param data The array containing the data.
+	 * @param off The offset of the data in <code>data</code>.
+	 * @param len The length of the data.
+	 * @return The length of the compressed data.
+	 */
+	int compress(byte[] data, int off, int len) {
+		/* Deflate the data after the tag and the length. */
+		int start = 1 + varintSize(len);
+		int clen = -1;
+		if (len >= MIN_DEFLATE) {
+			if (deflater_ == null)
+				deflater_ = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			deflater_.reset();
+			if (bytes_.length > 0)
+				deflater_.setDictionary(bytes_);
+			deflater_.setInput(data, off, len);
+			deflater_.finish();
+
+			int limit = start + len;
+			if (compressed_.length < limit + 1)
+				compressed_ = new byte[Math.max(limit + 1,
+					compressed_.length * 2)];
+			clen = start;
+			while (!deflater_.finished() && (clen < limit))
+				clen += deflater_.deflate(compressed_, clen, limit - clen);
+			if (!deflater_.finished() || (clen >= 1 + len))
+				clen = -1;
+		}
+
+		/* Store the data as-is if deflating did not pay. */
+		if (clen < 0) {
+			if (compressed_.length < 1 + len)
+				compressed_ = new byte[Math.max(1 + len,
+					compressed_.length * 2)];
+			compressed_[0] = STORED;
+			System.arraycopy(data, off, compressed_, 1, len);
+			return 1 + len;
+		}
+
+		compressed_[0] = DEFLATED;
+		for (int i = 1, v = len; i < start; i++, v >>>= 7)
+			compressed_[i] = (byte)((i < start - 1) ? (v | 0x80) : v);
+		return clen;
+	}
+
+	/**
+	 * Returns the array holding the output of the last call to
+	 * <code>compress</code>.
+	 *
+	 * @return The compressed data.
+	 */
+	byte[] compressed() {
+		return compressed_;
+	}
+
+	/**
+	 * Decompresses the given data.
+	 *
+	 * @param data The array containing the compressed data.
+	 * @param off The offset of the compressed data in
+	 *  <code>data</code>.
+	 * @param len The length of the compressed data.
+	 * @return The original data.
+	 * @exception java.io.IOException if the compressed data is
+	 *  invalid.
+	 */
+	byte[] decompress(byte[] data, int off, int len) throws IOException {
+		if (len < 1)
+			throw new IOException("invalid compressed data");
+
+		/* Stored data is simply copied. */
+		if (data[off] == STORED)
+			return Arrays.copyOfRange(data, off + 1, off + len);
+		if (data[off] != DEFLATED)
+			throw new IOException("invalid compressed data");
+
+		/* Read the original length. */
+		int end = off + len;
+		int pos = off + 1;
+		int dlen = 0;
+		for (int shift = 0; ; shift += 7) {
+			if ((pos == end) || (shift > 28))
+				throw new IOException("invalid compressed data");
+			int b = data[pos++];
+			dlen |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				break;
+		}
+		if ((dlen < 0) || (dlen > (long)(end - pos) * MAX_RATIO + 258))
+			throw new IOException("invalid compressed data");
+
+		/* Inflate the rest. */
+		Inflater inflater = inflater_.get();
+		if (inflater == null) {
+			inflater = new Inflater(true);
+			inflater_.set(inflater);
+		}
+		inflater.reset();
+		if (bytes_.length > 0)
+			inflater.setDictionary(bytes_);
+		inflater.setInput(data, pos, end - pos);
+
+		byte[] result = new byte[dlen];
+		try {
+			int count = 0;
+			while (count < dlen) {
+				int n = inflater.inflate(result, count, dlen - count);
+				if ((n == 0) && (inflater.finished()
+						|| inflater.needsInput()))
+					break;
+				count += n;
+			}
+			if (count != dlen)
+				throw new IOException("invalid compressed data");
+		} catch (DataFormatException dataFormatException) {
+			throw new IOException("invalid compressed data");
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Returns the number of bytes needed to store the given value as
+	 * an unsigned LEB128 varint.
+	 *
+	 * @param value The value, which must not be negative.
+	 * @return The size of the varint.
+	 */
+	private static int varintSize(int value) {
+		int size = 1;
+		while ((value >>>= 7) != 0)
+			size++;
+		return size;
+	}
+
+	/**
+	 * Hashes the substring of length <code>GRAM</code> at the given
+	 * offset.
+	 *
+	 * @param b The array containing the substring.
+	 * @param off The offset of the substring in <code>b</code>.
+	 * @return The hash of the substring.
+	 */
+	private static int gram(byte[] b, int off) {
+		long v = 0;
+		for (int i = 0; i < GRAM; i++)
+			v = (v << 8) | (b[off + i] & 0xff);
+		v *= 0x9e3779b97f4a7c15L;
+		return (int)(v >>> 32);
+	}
+
+	/**
+	 * Scores a segment: the sum of the counts of its substrings which
+	 * occur more than once.
+	 *
+	 * @param counts The substring counts.
+	 * @param mask The mask applied to substring hashes.
+	 * @param b The array containing the segment.
+	 * @param off The offset of the segment in <code>b</code>.
+	 * @param len The length of the segment.
+	 * @return The score of the segment.
+	 */
+	private static long score(int[] counts, int mask, byte[] b, int off,
+		int len)
+	{
+		long score = 0;
+		for (int i = off; i + GRAM <= off + len; i++) {
+			int count = counts[gram(b, i) & mask];
+			if (count > 1)
+				score += count;
+		}
+		return score;
+	}
+
+
+	/**
+	 * A segment of the training sample, ordered so that the segment
+	 * with the highest score comes first.
+	 */
+	private static final class Segment implements Comparable<Segment> {
+		/** The index of the sample containing the segment. */
+		final int sample;
+
+		/** The offset of the segment in its sample. */
+		final int off;
+
+		/** The length of the segment. */
+		final int len;
+
+		/** The score of the segment when it was last computed. */
+		long score;
+
+		Segment(int sample, int off, int len, long score) {
+			this.sample = sample;
+			this.off = off;
+			this.len = len;
+			this.score = score;
+		}
+
+		public int compareTo(Segment o) {
+			return Long.compare(o.score, score);
+		}
+	}
+}
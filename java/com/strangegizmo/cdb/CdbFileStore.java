@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+/**
+ * CdbFileStore reads a constant database through a FileChannel.  All
+ * reads are positional, so a single store can be shared by any number
+ * of threads without locking.
+ *
+ * <p>A FileChannel is closed for every thread when a thread reading
+ * from it is interrupted.  CdbFileStore therefore reads through a
+ * RandomAccessFile, which ignores interrupts, in threads that have
+ * been interrupted, and replaces the channel if it is closed anyway.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+final class CdbFileStore extends CdbStore {
+	/** The path to the CDB file. */
+	private final Path path_;
+
+	/** The identity of the CDB file, used to make sure that a reopened
+	 * channel reads the same file. */
+	private Object fileKey_ = null;
+
+	/** The RandomAccessFile for the CDB file, read under its own lock
+	 * by threads which have been interrupted. */
+	private RandomAccessFile file_ = null;
+
+	/** The channel used for positional reads, or <code>null</code> if
+	 * the channel was closed and could not be safely reopened. */
+	private volatile FileChannel channel_ = null;
+
+	/** Set once the store has been closed. */
+	private volatile boolean closed_ = false;
+
+	/** Per-thread scratch space for integer reads. */
+	private final ThreadLocal<ByteBuffer> intBuf_ =
+		ThreadLocal.withInitial(
+			() -> ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN));
+
+	/** Per-thread scratch space for long reads. */
+	private final ThreadLocal<ByteBuffer> longBuf_ =
+		ThreadLocal.withInitial(
+			() -> ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN));
+
+
+	/**
+	 * Opens the given CDB file.
+	 *
+	 * @param filepath The path to the CDB file to open.
+	 * @exception java.io.IOException if the CDB file could not be
+	 *  opened.
+	 */
+	CdbFileStore(String filepath) throws IOException {
+		path_ = Paths.get(filepath);
+
+		/* Open the file twice, and retry if it was replaced while we
+		 * did so: both handles, and any reopened channel, must refer to
+		 * the same file. */
+		while (true) {
+			Object before = fileKey(path_);
+			file_ = new RandomAccessFile(filepath, "r");
+			try {
+				channel_ = FileChannel.open(path_, StandardOpenOption.READ);
+			} catch (IOException ioException) {
+				file_.close();
+				throw ioException;
+			}
+
+			Object after = fileKey(path_);
+			if ((before != null) && before.equals(after)) {
+				fileKey_ = before;
+				break;
+			}
+
+			/* Without file keys there is no way to tell; read through
+			 * the file handle alone. */
+			if ((before == null) && (after == null)) {
+				channel_.close();
+				channel_ = null;
+				fileKey_ = null;
+				break;
+			}
+
+			channel_.close();
+			file_.close();
+		}
+	}
+
+
+	long length() {
+		try {
+			return file_.length();
+		} catch (IOException ignored) {
+			return 0;
+		}
+	}
+
+	int readLeInt(long pos) throws IOException {
+		ByteBuffer buf = intBuf_.get();
+		buf.clear();
+		readFully(pos, buf);
+		return buf.getInt(0);
+	}
+
+	long readLeLong(long pos) throws IOException {
+		ByteBuffer buf = longBuf_.get();
+		buf.clear();
+		readFully(pos, buf);
+		return buf.getLong(0);
+	}
+
+	void readFully(long pos, byte[] b, int off, int len)
+		throws IOException
+	{
+		readFully(pos, ByteBuffer.wrap(b, off, len));
+	}
+
+	boolean equals(long pos, byte[] key, int off, int len)
+		throws IOException
+	{
+		/* Read the stored bytes into scratch space and compare them
+		 * with a single (vectorized) array comparison. */
+		ByteBuffer buf = scratch(len);
+		readFully(pos, buf);
+		return Arrays.equals(buf.array(), 0, len, key, off, off + len);
+	}
+
+	ByteBuffer slice(long pos, int len) throws IOException {
+		byte[] b = new byte[len];
+		readFully(pos, b, 0, len);
+		return ByteBuffer.wrap(b).asReadOnlyBuffer();
+	}
+
+	void visit(long pos, int len, CdbDataVisitor visitor)
+		throws IOException
+	{
+		/* Read the bytes into scratch space and hand that out. */
+		ByteBuffer buf = scratch(len);
+		readFully(pos, buf);
+		buf.flip();
+		visitor.visit(buf, 0, len);
+	}
+
+	void close() throws IOException {
+		closed_ = true;
+		FileChannel channel = channel_;
+		channel_ = null;
+		if (channel != null)
+			channel.close();
+		file_.close();
+	}
+
+
+	/**
+	 * Fills <code>buf</code> with the bytes at the given position.
+	 *
+	 * @param pos The position to read from.
+	 * @param buf The buffer to fill.
+	 * @exception java.io.IOException if the buffer could not be
+	 *  filled.
+	 */
+	private void readFully(long pos, ByteBuffer buf) throws IOException {
+		int start = buf.position();
+		while (true) {
+			/* Read through the file handle if a read from this thread
+			 * would close the channel, or if there is no channel. */
+			FileChannel channel = channel_;
+			if ((channel == null)
+					|| Thread.currentThread().isInterrupted()) {
+				readUninterruptibly(pos + (buf.position() - start), buf);
+				return;
+			}
+
+			try {
+				while (buf.hasRemaining()) {
+					int count = channel.read(buf,
+						pos + (buf.position() - start));
+					if (count < 0)
+						throw new EOFException();
+				}
+				return;
+			} catch (ClosedChannelException closedChannelException) {
+				/* An interrupt closed the channel, in this thread or
+				 * another one.  Replace it and carry on. */
+				reopen(channel);
+			}
+		}
+	}
+
+	/**
+	 * Fills <code>buf</code> with the bytes at the given position,
+	 * reading through the RandomAccessFile.
+	 *
+	 * @param pos The position to read from.
+	 * @param buf The buffer to fill.
+	 * @exception java.io.IOException if the buffer could not be
+	 *  filled.
+	 */
+	private void readUninterruptibly(long pos, ByteBuffer buf)
+		throws IOException
+	{
+		if (closed_)
+			throw new ClosedChannelException();
+
+		int len = buf.remaining();
+		synchronized (file_) {
+			file_.seek(pos);
+			file_.readFully(buf.array(), buf.arrayOffset() + buf.position(),
+				len);
+		}
+		buf.position(buf.position() + len);
+	}
+
+	/**
+	 * Replaces a channel which has been closed.  Only the first of the
+	 * threads which saw <code>failed</code> close reopens it.  If the
+	 * path no longer refers to the file we opened, reads go through the
+	 * RandomAccessFile from then on.
+	 *
+	 * @param failed The channel which was closed.
+	 * @exception java.io.IOException if the store itself has been
+	 *  closed.
+	 */
+	private synchronized void reopen(FileChannel failed) throws IOException {
+		if (closed_)
+			throw new ClosedChannelException();
+		if (channel_ != failed)
+			return;
+
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(path_, StandardOpenOption.READ);
+			if (!fileKey_.equals(fileKey(path_))) {
+				channel.close();
+				channel = null;
+			}
+		} catch (IOException ignored) {
+			if (channel != null)
+				channel.close();
+			channel = null;
+		}
+		channel_ = channel;
+	}
+
+	/**
+	 * Returns the identity of the file at the given path.
+	 *
+	 * @param path The path to the file.
+	 * @return The file's key, or <code>null</code> if the file system
+	 *  does not provide one.
+	 * @exception java.io.IOException if the file's attributes could not
+	 *  be read.
+	 */
+	private static Object fileKey(Path path) throws IOException {
+		return Files.readAttributes(path, BasicFileAttributes.class)
+			.fileKey();
+	}
+}
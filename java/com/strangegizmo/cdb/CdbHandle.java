@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * CdbHandle is a reloadable reference to a CDB file which is rebuilt
+ * and renamed into place from time to time, as
+ * <code>CdbMake.make</code> does.  A background thread watches the
+ * file; when it has been replaced the new file is opened and its hash
+ * tables are read in, and then it is swapped in with a single atomic
+ * store.  Lookups never wait for a reload: each one holds a reference
+ * on the database it started with, and the old database is closed once
+ * the last lookup using it has finished.
+ *
+ * <p>The file's Bloom filter and key index sidecars are watched too.
+ * A sidecar which does not match the file it sits next to is ignored
+ * (see <code>CdbStore.fingerprint</code>), and replacing a sidecar
+ * makes the handle open the file again, so a generation that was
+ * opened before its sidecars were in place picks them up later.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class CdbHandle {
+	/** The path to the CDB file. */
+	private final String filepath_;
+
+	/** The open flags used for every generation of the file. */
+	private final int flags_;
+
+	/** The current generation. */
+	private final AtomicReference<Generation> current_
+		= new AtomicReference<>();
+
+	/** The number of times a new file has been swapped in. */
+	private final AtomicLong reloads_ = new AtomicLong();
+
+	/** The thread which watches the file, or <code>null</code>. */
+	private ScheduledExecutorService watcher_ = null;
+
+	/** The error from the watcher's most recent check of the file, or
+	 * <code>null</code> if it succeeded. */
+	private final AtomicReference<Exception> lastError_
+		= new AtomicReference<>();
+
+
+	/**
+	 * Opens the given CDB file without watching it for changes.  Call
+	 * <code>reload</code> to pick up a new file.
+	 *
+	 * @param filepath The path to the CDB file.
+	 * @param flags Zero or more open flags (such as
+	 *  <code>Cdb.MMAP</code>) or'd together.
+	 * @exception java.io.IOException if the CDB file could not be
+	 *  opened.
+	 */
+	public CdbHandle(String filepath, int flags) throws IOException {
+		filepath_ = filepath;
+		flags_ = flags;
+		current_.set(open());
+	}
+
+	/**
+	 * Opens the given CDB file and checks it for replacement every
+	 * <code>periodMillis</code> milliseconds.
+	 *
+	 * @param filepath The path to the CDB file.
+	 * @param flags Zero or more open flags (such as
+	 *  <code>Cdb.MMAP</code>) or'd together.
+	 * @param periodMillis How often to check the file, in
+	 *  milliseconds.
+	 * @exception java.io.IOException if the CDB file could not be
+	 *  opened.
+	 */
+	public CdbHandle(String filepath, int flags, long periodMillis)
+		throws IOException
+	{
+		this(filepath, flags);
+
+		watcher_ = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "CdbHandle " + filepath_);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		watcher_.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				/* Keep the old file and try again next time.  An
+				 * exception escaping from here would cancel the
+				 * schedule for good. */
+				try {
+					reload();
+					lastError_.set(null);
+				} catch (IOException | RuntimeException exception) {
+					lastError_.set(exception);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Stops watching the file and closes it once the lookups in
+	 * progress have finished.
+	 */
+	public final void close() {
+		if (watcher_ != null)
+			watcher_.shutdownNow();
+
+		Generation generation = current_.getAndSet(null);
+		if (generation != null)
+			generation.release();
+	}
+
+	/**
+	 * Opens the file again if it has been replaced since it was last
+	 * opened, and swaps the new file in.  This is called periodically
+	 * by the watcher thread, if there is one.
+	 *
+	 * @return <code>true</code> if a new file was swapped in.
+	 * @exception java.io.IOException if the new file could not be
+	 *  opened; the old file stays in use.
+	 */
+	public final synchronized boolean reload() throws IOException {
+		Generation old = current_.get();
+		if ((old == null) || old.identity_.equals(identity()))
+			return false;
+
+		/* Open and warm up the new file before anyone can see it. */
+		Generation generation = open();
+		if (!current_.compareAndSet(old, generation)) {
+			/* The handle was closed in the meantime. */
+			generation.release();
+			return false;
+		}
+
+		reloads_.incrementAndGet();
+		old.release();
+		return true;
+	}
+
+	/**
+	 * Returns the number of times a new file has been swapped in.
+	 *
+	 * @return The number of reloads.
+	 */
+	public final long getReloadCount() {
+		return reloads_.get();
+	}
+
+	/**
+	 * Returns the error from the watcher thread's most recent check of
+	 * the file, such as a replacement file which could not be opened.
+	 * The watcher keeps the old file and tries again at its next
+	 * check.
+	 *
+	 * @return The error, or <code>null</code> if the most recent check
+	 *  succeeded or there is no watcher.
+	 */
+	public final Exception getLastError() {
+		return lastError_.get();
+	}
+
+
+	/**
+	 * Finds the first record stored under the given key in the current
+	 * file.
+	 *
+	 * @param key The key to search for.
+	 * @return The record stored under the given key, or
+	 *  <code>null</code> if no record with that key could be found.
+	 * @see Cdb#get(byte[])
+	 */
+	public final byte[] get(byte[] key) {
+		Generation generation = acquire();
+		try {
+			return generation.cdb_.get(key);
+		} finally {
+			generation.release();
+		}
+	}
+
+	/**
+	 * Finds the first record stored under the given key in the current
+	 * file and passes its data to <code>visitor</code>.
+	 *
+	 * @param key The key to search for.
+	 * @param visitor The visitor to pass the record's data to.
+	 * @return <code>true</code> if a record was found and visited;
+	 *  <code>false</code> otherwise.
+	 * @see Cdb#get(byte[], CdbDataVisitor)
+	 */
+	public final boolean get(byte[] key, CdbDataVisitor visitor) {
+		Generation generation = acquire();
+		try {
+			return generation.cdb_.get(key, visitor);
+		} finally {
+			generation.release();
+		}
+	}
+
+	/**
+	 * Finds the first record stored under each of the given keys, all
+	 * in the same file.
+	 *
+	 * @param keys The keys to search for.
+	 * @return An array containing, for each key in <code>keys</code>,
+	 *  the record stored under that key, or <code>null</code> if no
+	 *  record with that key could be found.
+	 * @see Cdb#getAll(byte[][])
+	 */
+	public final byte[][] getAll(byte[][] keys) {
+		Generation generation = acquire();
+		try {
+			return generation.cdb_.getAll(keys);
+		} finally {
+			generation.release();
+		}
+	}
+
+
+	/**
+	 * Takes a reference on the current generation.  This never blocks:
+	 * it only retries if the generation it saw was retired at the same
+	 * moment.
+	 *
+	 * @return The current generation, which the caller must release.
+	 * @exception java.lang.IllegalStateException if the handle has been
+	 *  closed.
+	 */
+	private Generation acquire() {
+		for (;;) {
+			Generation generation = current_.get();
+			if (generation == null)
+				throw new IllegalStateException("CdbHandle is closed");
+			if (generation.retain())
+				return generation;
+		}
+	}
+
+	/**
+	 * Opens and warms up the file.
+	 *
+	 * @return The new generation.
+	 * @exception java.io.IOException if the file could not be opened.
+	 */
+	private Generation open() throws IOException {
+		/* Take the identity first: if the file is replaced while we
+		 * open it, the next check will see the change. */
+		Object identity = identity();
+		Cdb cdb = new Cdb(filepath_, flags_);
+		try {
+			cdb.warm();
+		} catch (IOException | RuntimeException exception) {
+			cdb.close();
+			throw exception;
+		}
+		return new Generation(cdb, identity);
+	}
+
+	/**
+	 * Returns a value which changes whenever the file or one of its
+	 * sidecars is replaced.  Cdb only uses sidecars whose fingerprint
+	 * matches the file, so a generation opened while the file and its
+	 * sidecars were being renamed into place might be missing them; the
+	 * sidecars' identities make the next check open it again once they
+	 * have settled.
+	 *
+	 * @return The identity of the file and its sidecars.
+	 * @exception java.io.IOException if the file could not be examined.
+	 */
+	private Object identity() throws IOException {
+		StringBuilder identity = new StringBuilder(
+			identity(Paths.get(filepath_)));
+
+		String[] suffixes = { CdbBloomFilter.SUFFIX, CdbKeyIndex.SUFFIX };
+		for (int i = 0; i < suffixes.length; i++) {
+			identity.append(' ');
+			try {
+				identity.append(
+					identity(Paths.get(filepath_ + suffixes[i])));
+			} catch (NoSuchFileException noSuchFileException) {
+				identity.append('-');
+			}
+		}
+
+		return identity.toString();
+	}
+
+	/**
+	 * Returns a value which changes whenever the given file is
+	 * replaced.
+	 *
+	 * @param path The path to the file.
+	 * @return The identity of the file.
+	 * @exception java.io.IOException if the file could not be examined.
+	 */
+	private static String identity(Path path) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(path,
+			BasicFileAttributes.class);
+		return attributes.fileKey() + "/" + attributes.size() + "/"
+			+ attributes.lastModifiedTime().toMillis();
+	}
+
+
+	/**
+	 * One opened version of the file, with a count of the references
+	 * to it.  The handle holds one reference while the generation is
+	 * current and each lookup holds one while it runs.
+	 */
+	private static final class Generation {
+		/** The opened file. */
+		final Cdb cdb_;
+
+		/** The identity of the file when it was opened. */
+		final Object identity_;
+
+		/** The number of references; zero once closed. */
+		private final AtomicInteger refs_ = new AtomicInteger(1);
+
+
+		/**
+		 * Creates a generation for the given file.
+		 *
+		 * @param cdb The opened file.
+		 * @param identity The identity of the file.
+		 */
+		Generation(Cdb cdb, Object identity) {
+			cdb_ = cdb;
+			identity_ = identity;
+		}
+
+
+		/**
+		 * Takes a reference, unless the generation has already been
+		 * closed.
+		 *
+		 * @return <code>true</code> if a reference was taken.
+		 */
+		boolean retain() {
+			for (;;) {
+				int refs = refs_.get();
+				if (refs == 0)
+					return false;
+				if (refs_.compareAndSet(refs, refs + 1))
+					return true;
+			}
+		}
+
+		/**
+		 * Drops a reference, closing the file with the last one.
+		 */
+		void release() {
+			if (refs_.decrementAndGet() == 0)
+				cdb_.close();
+		}
+	}
+}
@@ -0,0 +1,926 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * CdbKeyIndex is a sorted index over the keys of a constant database,
+ * which lets Cdb iterate over a range of keys, or all of the keys with
+ * a given prefix, in order.  CdbMake can write one to a sidecar file
+ * next to the database; Cdb loads its top level at open.
+ *
+ * <p>The sidecar starts with a 40-byte little-endian header: the magic
+ * number, the number of blocks, the position of the top-level index,
+ * the length of the CDB file it belongs to, the number of keys and the
+ * fingerprint of the CDB file (see <code>CdbStore.fingerprint</code>).
+ * Cdb ignores a sidecar whose length or fingerprint does not match, as
+ * one left over from an older database would return the wrong keys.
+ * The blocks follow, each holding a run of (key, record position)
+ * entries in unsigned byte order.  A block starts with the number of
+ * entries as a varint; each entry is the length of the prefix it
+ * shares with the previous key in the block, the length of the rest
+ * of the key, the rest of the key and the position of the record, the
+ * numbers all as unsigned LEB128 varints.  The top-level index at the
+ * end of the file holds the position, length and first key of each
+ * block, so finding a key takes a binary search in memory and a read
+ * of a single block.  Records with the same key appear in file order.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+final class CdbKeyIndex {
+	/** The suffix of the sidecar file name. */
+	static final String SUFFIX = ".idx";
+
+	/** The magic number at the start of the sidecar ("cdbi" in
+	 * little-endian order). */
+	private static final int MAGIC = 0x69626463;
+
+	/** The size of the sidecar header. */
+	private static final int HEADER_SIZE = 40;
+
+	/** The size at which a block is closed off. */
+	private static final int BLOCK_SIZE = 4096;
+
+
+	/** The sidecar file.  It is read through a CdbFileStore, whose
+	 * reads survive the reading thread being interrupted, so that one
+	 * interrupted scan cannot close the index for every other one. */
+	private final CdbStore file_;
+
+	/** The position of each block. */
+	private final long[] blockPos_;
+
+	/** The length of each block. */
+	private final int[] blockLen_;
+
+	/** The first key in each block. */
+	private final byte[][] firstKey_;
+
+
+	/**
+	 * Creates an index over the blocks of an open sidecar file.
+	 *
+	 * @param file The sidecar file.
+	 * @param blockPos The position of each block.
+	 * @param blockLen The length of each block.
+	 * @param firstKey The first key in each block.
+	 */
+	private CdbKeyIndex(CdbStore file, long[] blockPos,
+		int[] blockLen, byte[][] firstKey)
+	{
+		file_ = file;
+		blockPos_ = blockPos;
+		blockLen_ = blockLen;
+		firstKey_ = firstKey;
+	}
+
+
+	/**
+	 * Opens the index in a sidecar file.
+	 *
+	 * @param filepath The path of the sidecar file.
+	 * @param store The CDB file being opened.
+	 * @return The index, or <code>null</code> if there is no sidecar
+	 *  or it does not belong to the CDB file.
+	 */
+	static CdbKeyIndex read(String filepath, CdbStore store) {
+		File sidecar = new File(filepath);
+		if (!sidecar.isFile())
+			return null;
+
+		CdbStore file = null;
+		try {
+			long cdbLength = store.length();
+			long fingerprint = store.fingerprint();
+
+			file = new CdbFileStore(filepath);
+			ByteBuffer header = read(file, 0, HEADER_SIZE);
+
+			/* Check that the sidecar is ours. */
+			int blocks = header.getInt(4);
+			long indexPos = header.getLong(8);
+			long size = file.length();
+			if ((header.getInt(0) != MAGIC)
+					|| (header.getLong(16) != cdbLength)
+					|| (header.getLong(32) != fingerprint)
+					|| (blocks < 0) || (indexPos < HEADER_SIZE)
+					|| (size - indexPos > Integer.MAX_VALUE))
+				throw new IOException("invalid key index");
+
+			/* Read the top-level index. */
+			ByteBuffer index = read(file, indexPos, (int)(size - indexPos));
+
+			long[] blockPos = new long[blocks];
+			int[] blockLen = new int[blocks];
+			byte[][] firstKey = new byte[blocks][];
+			for (int i = 0; i < blocks; i++) {
+				blockPos[i] = index.getLong();
+				blockLen[i] = index.getInt();
+				firstKey[i] = new byte[index.getInt()];
+				index.get(firstKey[i]);
+				if ((blockPos[i] < HEADER_SIZE) || (blockLen[i] < 0)
+						|| (blockPos[i] + blockLen[i] > indexPos))
+					throw new IOException("invalid key index");
+			}
+
+			CdbKeyIndex keyIndex = new CdbKeyIndex(file, blockPos,
+				blockLen, firstKey);
+			file = null;
+			return keyIndex;
+		} catch (IOException | RuntimeException exception) {
+			return null;
+		} finally {
+			if (file != null)
+				try { file.close(); } catch (IOException ignored) {}
+		}
+	}
+
+	/**
+	 * Closes the sidecar file.
+	 */
+	void close() {
+		try {
+			file_.close();
+		} catch (IOException ignored) {}
+	}
+
+	/**
+	 * Returns an iterator over the records of <code>cdb</code> whose
+	 * keys lie in the given range, in key order.
+	 *
+	 * @param cdb The database the index belongs to.
+	 * @param from The smallest key to return, or <code>null</code> to
+	 *  start at the first key.
+	 * @param to The key to stop before, or <code>null</code> to go on
+	 *  to the last key.
+	 * @return An iterator over the records.
+	 */
+	Iterator<CdbElement> range(Cdb cdb, byte[] from, byte[] to) {
+		return new Range(cdb, from, to);
+	}
+
+
+	/**
+	 * Compares two keys as unsigned byte strings.
+	 *
+	 * @param a The first key.
+	 * @param alen The length of the first key.
+	 * @param b The second key.
+	 * @param blen The length of the second key.
+	 * @return A negative number, zero or a positive number as
+	 *  <code>a</code> sorts before, with or after <code>b</code>.
+	 */
+	static int compare(byte[] a, int alen, byte[] b, int blen) {
+		return Arrays.compareUnsigned(a, 0, alen, b, 0, blen);
+	}
+
+	/**
+	 * Returns the smallest key which sorts after every key starting
+	 * with <code>prefix</code>.
+	 *
+	 * @param prefix The prefix.
+	 * @return The key, or <code>null</code> if there is none (the
+	 *  prefix is all 0xff bytes).
+	 */
+	static byte[] successor(byte[] prefix) {
+		for (int i = prefix.length - 1; i >= 0; i--) {
+			if (prefix[i] != (byte)0xff) {
+				byte[] next = Arrays.copyOf(prefix, i + 1);
+				next[i]++;
+				return next;
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Reads a varint from a buffer.
+	 *
+	 * @param buf The buffer.
+	 * @return The value.
+	 * @exception java.lang.IllegalArgumentException if the varint is
+	 *  invalid.
+	 */
+	private static long getVarint(ByteBuffer buf) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = buf.get();
+			value |= (long)(b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("invalid key index");
+	}
+
+	/**
+	 * Writes a varint to a buffer.
+	 *
+	 * @param buf The buffer.
+	 * @param value The value, which must not be negative.
+	 */
+	private static void putVarint(ByteBuffer buf, long value) {
+		while ((value & ~0x7fL) != 0) {
+			buf.put((byte)((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte)value);
+	}
+
+	/**
+	 * Reads part of a sidecar file into a new little-endian buffer.
+	 *
+	 * @param file The sidecar file.
+	 * @param pos The position to read from.
+	 * @param len The number of bytes to read.
+	 * @return The bytes read.
+	 * @exception java.io.IOException if the file ends first.
+	 */
+	private static ByteBuffer read(CdbStore file, long pos, int len)
+		throws IOException
+	{
+		byte[] b = new byte[len];
+		file.readFully(pos, b, 0, len);
+		return ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Writes out the contents of <code>buf</code> and empties it.
+	 *
+	 * @param channel The channel to write to.
+	 * @param buf The buffer to write.
+	 * @exception java.io.IOException if the buffer could not be
+	 *  written.
+	 */
+	private static void drain(FileChannel channel, ByteBuffer buf)
+		throws IOException
+	{
+		buf.flip();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		buf.clear();
+	}
+
+
+	/**
+	 * An iterator over the records in a range of keys.
+	 */
+	private final class Range implements Iterator<CdbElement> {
+		/** The database the records are read from. */
+		private final Cdb cdb_;
+
+		/** The key to stop before, or <code>null</code>. */
+		private final byte[] to_;
+
+		/** The index of the current block. */
+		private int block_;
+
+		/** The entries of the current block not yet decoded. */
+		private ByteBuffer entries_ = null;
+
+		/** The number of entries left in the current block. */
+		private long left_ = 0;
+
+		/** The key of the next record. */
+		private byte[] key_ = new byte[64];
+
+		/** The length of the key of the next record. */
+		private int klen_ = 0;
+
+		/** The position of the next record, or -1 at the end. */
+		private long pos_ = -1;
+
+		Range(Cdb cdb, byte[] from, byte[] to) {
+			cdb_ = cdb;
+			to_ = to;
+
+			/* Find the last block starting at or before the first
+			 * key, then skip the entries ahead of it. */
+			block_ = 0;
+			if (from != null) {
+				int lo = 0, hi = firstKey_.length - 1;
+				while (lo <= hi) {
+					int mid = (lo + hi) >>> 1;
+					byte[] first = firstKey_[mid];
+					if (compare(first, first.length, from, from.length) < 0)
+						lo = mid + 1;
+					else
+						hi = mid - 1;
+				}
+				block_ = Math.max(0, lo - 1);
+			}
+
+			block_--;
+			advance();
+			while ((pos_ >= 0) && (from != null)
+					&& (compare(key_, klen_, from, from.length) < 0))
+				advance();
+		}
+
+		public boolean hasNext() {
+			return pos_ >= 0;
+		}
+
+		public CdbElement next() {
+			if (pos_ < 0)
+				throw new NoSuchElementException();
+
+			byte[] key = Arrays.copyOf(key_, klen_);
+			byte[] data;
+			try {
+				data = cdb_.readData(pos_, klen_);
+			} catch (IOException ioException) {
+				throw new IllegalArgumentException("invalid cdb format");
+			}
+
+			advance();
+			return new CdbElement(key, data);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Decodes the next entry, reading the next block if need be,
+		 * and stops at the end of the range.
+		 */
+		private void advance() {
+			while (left_ == 0) {
+				if (++block_ >= blockPos_.length) {
+					pos_ = -1;
+					return;
+				}
+				readBlock();
+			}
+
+			int shared = (int)getVarint(entries_);
+			int unshared = (int)getVarint(entries_);
+			if ((shared < 0) || (shared > klen_) || (unshared < 0))
+				throw new IllegalArgumentException("invalid key index");
+			if (key_.length < shared + unshared)
+				key_ = Arrays.copyOf(key_,
+					Math.max(shared + unshared, key_.length * 2));
+			entries_.get(key_, shared, unshared);
+			klen_ = shared + unshared;
+			pos_ = getVarint(entries_);
+			left_--;
+
+			if ((to_ != null) && (compare(key_, klen_, to_, to_.length) >= 0))
+				pos_ = -1;
+		}
+
+		/**
+		 * Reads the current block.
+		 */
+		private void readBlock() {
+			try {
+				entries_ = read(file_, blockPos_[block_], blockLen_[block_]);
+			} catch (IOException ioException) {
+				throw new IllegalArgumentException("invalid key index");
+			}
+			left_ = getVarint(entries_);
+			klen_ = 0;
+		}
+	}
+
+
+	/**
+	 * Collects the keys of a constant database as it is built and
+	 * writes them out as a sorted index.  Keys are collected in memory
+	 * until they reach <code>RUN_SIZE</code>, then sorted and spilled
+	 * to a temporary run file next to the sidecar; the runs are merged
+	 * as the index is written.  A writer therefore needs about
+	 * <code>RUN_SIZE</code> of memory, and temporary disk space of
+	 * about the size of the keys, however many keys there are.
+	 */
+	static final class Writer {
+		/** The estimated memory used by an entry beyond its key. */
+		private static final int ENTRY_OVERHEAD = 32;
+
+		/** The memory which the keys held in memory may use before they
+		 * are spilled to a run file. */
+		private static final long RUN_SIZE = 64L << 20;
+
+
+		/** The path of the sidecar file. */
+		private final String filepath_;
+
+		/** The keys held in memory, in file order. */
+		private byte[][] keys_ = new byte[1024][];
+
+		/** The record positions, parallel to <code>keys_</code>. */
+		private long[] positions_ = new long[1024];
+
+		/** The number of keys held in memory. */
+		private int count_ = 0;
+
+		/** The estimated memory used by the keys held in memory. */
+		private long size_ = 0;
+
+		/** The total number of keys. */
+		private long total_ = 0;
+
+		/** The run files spilled so far, in file order. */
+		private final List<File> runs_ = new ArrayList<>();
+
+
+		/**
+		 * Creates a writer for the given sidecar file.
+		 *
+		 * @param filepath The path of the sidecar file.
+		 */
+		Writer(String filepath) {
+			filepath_ = filepath;
+		}
+
+		/**
+		 * Adds a key.
+		 *
+		 * @param key The array containing the key.
+		 * @param off The offset of the key in <code>key</code>.
+		 * @param len The length of the key.
+		 * @param pos The position of the record.
+		 * @exception java.io.IOException if a run could not be spilled.
+		 */
+		void add(byte[] key, int off, int len, long pos) throws IOException {
+			if (count_ == keys_.length) {
+				int length = count_ + (count_ >> 1);
+				keys_ = Arrays.copyOf(keys_, length);
+				positions_ = Arrays.copyOf(positions_, length);
+			}
+			keys_[count_] = Arrays.copyOfRange(key, off, off + len);
+			positions_[count_++] = pos;
+			size_ += ENTRY_OVERHEAD + len;
+			total_++;
+
+			if (size_ >= RUN_SIZE)
+				spill();
+		}
+
+		/**
+		 * Sorts the keys and writes the index to the sidecar file.
+		 *
+		 * @param cdbLength The length of the finished CDB file.
+		 * @param fingerprint The fingerprint of the finished CDB file.
+		 * @exception java.io.IOException if the sidecar could not be
+		 *  written.
+		 */
+		void write(long cdbLength, long fingerprint) throws IOException {
+			try {
+				/* Merge the runs if we had to spill any, spilling what
+				 * is left in memory first. */
+				Entries entries;
+				if (runs_.isEmpty()) {
+					entries = new SortedEntries(this, sort());
+				} else {
+					spill();
+					entries = new MergedEntries(runs_);
+				}
+
+				try {
+					write(entries, cdbLength, fingerprint);
+				} finally {
+					entries.close();
+				}
+			} finally {
+				discard();
+			}
+		}
+
+		/**
+		 * Deletes any run files.
+		 */
+		void discard() {
+			for (int i = 0; i < runs_.size(); i++)
+				runs_.get(i).delete();
+			runs_.clear();
+			keys_ = null;
+			positions_ = null;
+		}
+
+
+		/**
+		 * Writes the sorted entries to the sidecar file.
+		 *
+		 * @param entries The entries, in key order.
+		 * @param cdbLength The length of the finished CDB file.
+		 * @param fingerprint The fingerprint of the finished CDB file.
+		 * @exception java.io.IOException if the sidecar could not be
+		 *  written.
+		 */
+		private void write(Entries entries, long cdbLength,
+			long fingerprint) throws IOException
+		{
+			RandomAccessFile file = new RandomAccessFile(filepath_, "rw");
+			try {
+				file.setLength(0);
+				FileChannel channel = file.getChannel();
+				ByteBuffer buf = ByteBuffer.allocate(1 << 16)
+					.order(ByteOrder.LITTLE_ENDIAN);
+
+				/* Write the blocks, remembering where each starts.  The
+				 * entry count goes at the front of each block, so the
+				 * entries are collected in a buffer of their own. */
+				List<Block> index = new ArrayList<>();
+				ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE * 2);
+				long pos = HEADER_SIZE;
+				channel.position(pos);
+				int entriesInBlock = 0;
+				byte[] firstKey = null;
+				byte[] prev = new byte[64];
+				int prevLen = 0;
+				boolean more = entries.next();
+				while (more || (entriesInBlock > 0)) {
+					if (!more || (block.position() >= BLOCK_SIZE)) {
+						/* Close off the block. */
+						int start = buf.position();
+						putVarint(buf, entriesInBlock);
+						buf.put(block.array(), 0, block.position());
+						int len = buf.position() - start;
+						index.add(new Block(pos, len, firstKey));
+						pos += len;
+						drain(channel, buf);
+						block.clear();
+						entriesInBlock = 0;
+						prevLen = 0;
+						continue;
+					}
+
+					/* Add the entry, sharing a prefix with the one
+					 * before it. */
+					byte[] key = entries.key_;
+					int klen = entries.klen_;
+					int max = Math.min(prevLen, klen);
+					int shared = 0;
+					while ((shared < max) && (prev[shared] == key[shared]))
+						shared++;
+					if (entriesInBlock == 0)
+						firstKey = Arrays.copyOf(key, klen);
+					if (block.remaining() < klen + 30) {
+						ByteBuffer bigger = ByteBuffer.allocate(
+							block.capacity() + klen + 30);
+						block.flip();
+						bigger.put(block);
+						block = bigger;
+					}
+					if (buf.capacity() < block.capacity() + 10)
+						buf = ByteBuffer.allocate(block.capacity() + 10)
+							.order(ByteOrder.LITTLE_ENDIAN);
+					putVarint(block, shared);
+					putVarint(block, klen - shared);
+					block.put(key, shared, klen - shared);
+					putVarint(block, entries.pos_);
+					entriesInBlock++;
+
+					if (prev.length < klen)
+						prev = new byte[Math.max(klen, prev.length * 2)];
+					System.arraycopy(key, 0, prev, 0, klen);
+					prevLen = klen;
+					more = entries.next();
+				}
+
+				/* Write the top-level index. */
+				long indexPos = pos;
+				for (int i = 0; i < index.size(); i++) {
+					Block entry = index.get(i);
+					byte[] key = entry.firstKey;
+					if (buf.remaining() < 16 + key.length) {
+						drain(channel, buf);
+						if (buf.capacity() < 16 + key.length)
+							buf = ByteBuffer.allocate(16 + key.length)
+								.order(ByteOrder.LITTLE_ENDIAN);
+					}
+					buf.putLong(entry.pos);
+					buf.putInt(entry.len);
+					buf.putInt(key.length);
+					buf.put(key);
+				}
+				drain(channel, buf);
+
+				/* Write the header. */
+				buf.putInt(MAGIC);
+				buf.putInt(index.size());
+				buf.putLong(indexPos);
+				buf.putLong(cdbLength);
+				buf.putLong(total_);
+				buf.putLong(fingerprint);
+				buf.flip();
+				channel.position(0);
+				while (buf.hasRemaining())
+					channel.write(buf);
+			} finally {
+				file.close();
+			}
+		}
+
+		/**
+		 * Sorts the keys held in memory and writes them to a new run
+		 * file.
+		 *
+		 * @exception java.io.IOException if the run could not be
+		 *  written.
+		 */
+		private void spill() throws IOException {
+			int[] order = sort();
+
+			File run = new File(filepath_ + ".run" + runs_.size());
+			runs_.add(run);
+			DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+			try {
+				out.writeInt(count_);
+				for (int i = 0; i < count_; i++) {
+					byte[] key = keys_[order[i]];
+					out.writeInt(key.length);
+					out.write(key);
+					out.writeLong(positions_[order[i]]);
+				}
+			} finally {
+				out.close();
+			}
+
+			Arrays.fill(keys_, 0, count_, null);
+			count_ = 0;
+			size_ = 0;
+		}
+
+		/**
+		 * Sorts the keys held in memory, keeping records with the same
+		 * key in file order.
+		 *
+		 * @return The record numbers in key order.
+		 */
+		private int[] sort() {
+			int[] order = new int[count_];
+			for (int i = 0; i < count_; i++)
+				order[i] = i;
+			mergeSort(order, new int[count_], 0, count_);
+			return order;
+		}
+
+		/**
+		 * Sorts a range of record numbers by key, keeping equal keys
+		 * in order.
+		 *
+		 * @param order The record numbers.
+		 * @param temp Scratch space as large as <code>order</code>.
+		 * @param lo The start of the range.
+		 * @param hi The end of the range.
+		 */
+		private void mergeSort(int[] order, int[] temp, int lo, int hi) {
+			if (hi - lo < 16) {
+				for (int i = lo + 1; i < hi; i++) {
+					int r = order[i];
+					int j = i;
+					while ((j > lo) && (compareKeys(order[j - 1], r) > 0)) {
+						order[j] = order[j - 1];
+						j--;
+					}
+					order[j] = r;
+				}
+				return;
+			}
+
+			int mid = (lo + hi) >>> 1;
+			mergeSort(order, temp, lo, mid);
+			mergeSort(order, temp, mid, hi);
+			if (compareKeys(order[mid - 1], order[mid]) <= 0)
+				return;
+
+			System.arraycopy(order, lo, temp, lo, hi - lo);
+			for (int i = lo, a = lo, b = mid; i < hi; i++) {
+				if ((b >= hi)
+						|| ((a < mid) && (compareKeys(temp[a], temp[b]) <= 0)))
+					order[i] = temp[a++];
+				else
+					order[i] = temp[b++];
+			}
+		}
+
+		/**
+		 * Compares the keys of two records.
+		 *
+		 * @param a The first record number.
+		 * @param b The second record number.
+		 * @return The order of the keys.
+		 */
+		private int compareKeys(int a, int b) {
+			return compare(keys_[a], keys_[a].length,
+				keys_[b], keys_[b].length);
+		}
+	}
+
+	/**
+	 * The position, length and first key of a block, as recorded in
+	 * the top-level index.
+	 */
+	private static final class Block {
+		/** The position of the block. */
+		final long pos;
+
+		/** The length of the block. */
+		final int len;
+
+		/** The first key in the block. */
+		final byte[] firstKey;
+
+		Block(long pos, int len, byte[] firstKey) {
+			this.pos = pos;
+			this.len = len;
+			this.firstKey = firstKey;
+		}
+	}
+
+	/**
+	 * A source of (key, record position) entries in key order.
+	 */
+	private abstract static class Entries {
+		/** The key of the current entry; only the first
+		 * <code>klen_</code> bytes are valid. */
+		byte[] key_ = null;
+
+		/** The length of the key of the current entry. */
+		int klen_ = 0;
+
+		/** The record position of the current entry. */
+		long pos_ = 0;
+
+		/**
+		 * Moves to the next entry.
+		 *
+		 * @return <code>false</code> if there are no more entries.
+		 * @exception java.io.IOException if the entry could not be
+		 *  read.
+		 */
+		abstract boolean next() throws IOException;
+
+		/**
+		 * Releases any files held by the source.
+		 */
+		void close() {
+		}
+	}
+
+	/**
+	 * The keys held in memory by a writer, in sorted order.
+	 */
+	private static final class SortedEntries extends Entries {
+		/** The writer holding the keys. */
+		private final Writer writer_;
+
+		/** The record numbers in key order. */
+		private final int[] order_;
+
+		/** The index in <code>order_</code> of the next entry. */
+		private int next_ = 0;
+
+		SortedEntries(Writer writer, int[] order) {
+			writer_ = writer;
+			order_ = order;
+		}
+
+		boolean next() {
+			if (next_ == order_.length)
+				return false;
+
+			int r = order_[next_++];
+			key_ = writer_.keys_[r];
+			klen_ = key_.length;
+			pos_ = writer_.positions_[r];
+			return true;
+		}
+	}
+
+	/**
+	 * The entries of several sorted run files, merged.  Entries with
+	 * the same key come out in run order, which is file order.
+	 */
+	private static final class MergedEntries extends Entries {
+		/** The runs which still have entries, smallest key first. */
+		private final PriorityQueue<Run> queue_ = new PriorityQueue<>();
+
+		/** Every run, for closing. */
+		private final List<Run> runs_ = new ArrayList<>();
+
+		MergedEntries(List<File> files) throws IOException {
+			try {
+				for (int i = 0; i < files.size(); i++) {
+					Run run = new Run(files.get(i), i);
+					runs_.add(run);
+					if (run.next())
+						queue_.add(run);
+				}
+			} catch (IOException ioException) {
+				close();
+				throw ioException;
+			}
+		}
+
+		boolean next() throws IOException {
+			Run run = queue_.poll();
+			if (run == null)
+				return false;
+
+			if ((key_ == null) || (key_.length < run.klen_))
+				key_ = new byte[Math.max(run.klen_, 64)];
+			System.arraycopy(run.key_, 0, key_, 0, run.klen_);
+			klen_ = run.klen_;
+			pos_ = run.pos_;
+
+			if (run.next())
+				queue_.add(run);
+			return true;
+		}
+
+		void close() {
+			for (int i = 0; i < runs_.size(); i++)
+				runs_.get(i).close();
+		}
+	}
+
+	/**
+	 * The entries of one sorted run file.
+	 */
+	private static final class Run extends Entries
+		implements Comparable<Run>
+	{
+		/** The run file. */
+		private final DataInputStream in_;
+
+		/** The number of the run, which breaks ties between equal
+		 * keys. */
+		private final int number_;
+
+		/** The number of entries not yet read. */
+		private int left_;
+
+		Run(File file, int number) throws IOException {
+			in_ = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+			number_ = number;
+			left_ = in_.readInt();
+			key_ = new byte[64];
+		}
+
+		boolean next() throws IOException {
+			if (left_ == 0)
+				return false;
+
+			klen_ = in_.readInt();
+			if (key_.length < klen_)
+				key_ = new byte[Math.max(klen_, key_.length * 2)];
+			in_.readFully(key_, 0, klen_);
+			pos_ = in_.readLong();
+			left_--;
+			return true;
+		}
+
+		void close() {
+			try {
+				in_.close();
+			} catch (IOException ignored) {}
+		}
+
+		public int compareTo(Run o) {
+			int order = compare(key_, klen_, o.key_, o.klen_);
+			return order != 0 ? order : Integer.compare(number_, o.number_);
+		}
+	}
+}
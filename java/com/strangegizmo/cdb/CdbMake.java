@@ -34,7 +34,10 @@ package com.strangegizmo.cdb;
 
 /* Java imports. */
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * CdbMake implements the database-creation side of
@@ -44,13 +47,110 @@ import java.util.*;
  * @version		1.0.0
  */
 public final class CdbMake {
+	/** Flag for <code>CdbMake(int)</code>: create a cdb64 file, with
+	 * 64-bit positions in the slot table and hash tables.  A cdb64 file
+	 * is not limited to 2 GB, but can only be read by this package. */
+	public static final int CDB64 = 0x01;
+
+	/** Flag for <code>CdbMake(int)</code>: write a Bloom filter over
+	 * the keys to a sidecar file next to the constant database, with a
+	 * false-positive rate of 1% unless <code>setBloomFilter</code> says
+	 * otherwise.  Cdb loads the filter at open and uses it to answer
+	 * most lookups of missing keys without reading the file. */
+	public static final int BLOOM = 0x02;
+
+	/** Flag for <code>CdbMake(int)</code>: compress the data of each
+	 * record with deflate against a dictionary shared by the whole
+	 * file.  The dictionary is trained from the first records added
+	 * unless <code>setCompressionDictionary</code> supplies one.  Keys
+	 * and hash tables are not compressed, so lookups are unchanged
+	 * until the data is read.  Implies <code>CDB64</code>. */
+	public static final int COMPRESS = 0x04;
+
+	/** Flag for <code>CdbMake(int)</code>: write a sorted index of the
+	 * keys to a sidecar file next to the constant database.  Cdb uses
+	 * it for <code>range</code> and <code>prefix</code>, which return
+	 * records in key order. */
+	public static final int KEY_INDEX = 0x08;
+
+	/** Flag for <code>CdbMake(int)</code>: hash keys with a 64-bit hash
+	 * which works a word at a time, rather than the DJB hash, and mark
+	 * the file as doing so.  The high bits of the hash pick the hash
+	 * table and the whole hash is checked before keys are compared.
+	 * Implies <code>CDB64</code>. */
+	public static final int HASH64 = 0x10;
+
+	/** The default false-positive rate of the Bloom filter. */
+	private static final double DEFAULT_BLOOM_FPP = 0.01;
+
+	/** The size of the buffer that records are written through. */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/** The size of the compression dictionary trained by CdbMake.
+	 * Larger dictionaries compress little better but much more slowly,
+	 * since deflate indexes the whole dictionary for every record. */
+	private static final int DICTIONARY_SIZE = 4 * 1024;
+
+	/** The amount of record data held back to train the compression
+	 * dictionary on. */
+	private static final int SAMPLE_SIZE = 1 << 20;
+
+
+	/** Set if the constant database is a cdb64 file. */
+	private final boolean wide_;
+
+	/** The false-positive rate of the Bloom filter, or zero if no
+	 * Bloom filter is to be written. */
+	private double bloomFpp_ = 0;
+
+	/** Set if keys are hashed with <code>Cdb.hash64</code>. */
+	private final boolean hash64_;
+
+	/** Set if a sorted key index is to be written. */
+	private final boolean keyIndex_;
+
+	/** Set if record data is to be compressed. */
+	private final boolean compress_;
+
+	/** The dictionary that record data is compressed against, or
+	 * <code>null</code> until it has been trained. */
+	private CdbDictionary dictionary_ = null;
+
+	/** The keys and data of the records held back to train the
+	 * dictionary on, alternating. */
+	private List<byte[]> sample_ = null;
+
+	/** The amount of data in <code>sample_</code>. */
+	private long sampleSize_ = 0;
+
+
+	/** The path to the CDB file. */
+	private String filepath_ = null;
+
+
 	/** The RandomAccessFile for the CDB file. */
 	private RandomAccessFile file_ = null;
 
+	/** The channel for the CDB file. */
+	private FileChannel channel_ = null;
+
+	/** The buffer that records are collected in before being written
+	 * to the file. */
+	private ByteBuffer buffer_ = null;
+
+
+	/** The hash pointers in the file, in their order in the constant
+	 * database.  Each pointer is packed into a long as
+	 * <code>(pos &lt;&lt; 32) | hash</code>.  A cdb64 file stores just
+	 * the positions here and the hashes in <code>hashes_</code>. */
+	private long[] hashPointers_ = null;
 
-	/** The list of hash pointers in the file, in their order in the
-	 * constant database. */
-	private Vector hashPointers_ = null;
+	/** The hash values of the records in a cdb64 file, parallel to
+	 * <code>hashPointers_</code>. */
+	private long[] hashes_ = null;
+
+	/** The number of hash pointers in <code>hashPointers_</code>. */
+	private int numHashPointers_ = 0;
 
 	/** The number of entries in each hash table. */
 	private int[] tableCount_ = null;
@@ -60,14 +160,72 @@ public final class CdbMake {
 
 
 	/** The position of the current key in the constant database. */
-	private int pos_ = -1;
+	private long pos_ = -1;
+
+	/** Scratch space which data in a buffer without an accessible
+	 * array is copied into before being added. */
+	private byte[] dataScratch_ = null;
 
 
 	/**
 	 * Constructs a CdbMake object and prepares it for the creation of a
 	 * constant database.
 	 */
-	public CdbMake() {}
+	public CdbMake() {
+		this(0);
+	}
+
+	/**
+	 * Constructs a CdbMake object and prepares it for the creation of a
+	 * constant database with the given format flags.
+	 *
+	 * @param flags Zero or more format flags (such as
+	 *  <code>CDB64</code>) or'd together.
+	 */
+	public CdbMake(int flags) {
+		keyIndex_ = (flags & KEY_INDEX) != 0;
+		compress_ = (flags & COMPRESS) != 0;
+		hash64_ = (flags & HASH64) != 0;
+		wide_ = compress_ || hash64_ || ((flags & CDB64) != 0);
+		if ((flags & BLOOM) != 0)
+			bloomFpp_ = DEFAULT_BLOOM_FPP;
+	}
+
+
+	/**
+	 * Requests a Bloom filter sidecar with the given false-positive
+	 * rate.  The filter needs about
+	 * <code>-1.44&nbsp;log2(fpp)</code> bits per key: roughly 10 bits
+	 * for 1% and 14 bits for 0.1%.
+	 *
+	 * @param fpp The false-positive rate, between 0 and 1 (exclusive),
+	 *  or zero for no Bloom filter.
+	 */
+	public void setBloomFilter(double fpp) {
+		if (!((fpp >= 0) && (fpp < 1)))
+			throw new IllegalArgumentException(
+				"false-positive rate must be in [0, 1)");
+		bloomFpp_ = fpp;
+	}
+
+
+	/**
+	 * Supplies the dictionary to compress record data against, instead
+	 * of having one trained from the first records added.  A good
+	 * dictionary holds byte strings common to many records, with the
+	 * most common ones last; only the last 32 KB are used.  Must be
+	 * called before <code>start</code>.
+	 *
+	 * @param dictionary The dictionary.
+	 * @exception java.lang.IllegalStateException if this CdbMake does
+	 *  not compress record data.
+	 */
+	public void setCompressionDictionary(byte[] dictionary) {
+		if (!compress_)
+			throw new IllegalStateException(
+				"compression was not requested");
+		dictionary_ = new CdbDictionary(dictionary.clone());
+	}
 
 
 	/**
@@ -79,7 +237,9 @@ public final class CdbMake {
 	 */
 	public void start(String filepath) throws IOException {
 		/* Initialize the class. */
-		hashPointers_ = new Vector();
+		hashPointers_ = new long[1024];
+		hashes_ = wide_ ? new long[1024] : null;
+		numHashPointers_ = 0;
 		tableCount_ = new int[256];
 		tableStart_ = new int[256];
 
@@ -88,11 +248,23 @@ public final class CdbMake {
 			tableCount_[i] = 0;
 
 		/* Open the temporary CDB file. */
+		filepath_ = filepath;
 		file_ = new RandomAccessFile(filepath, "rw");
-
-		/* Seek to the end of the header. */
-		pos_ = 2048;
-		file_.seek(pos_);
+		file_.setLength(0);
+		channel_ = file_.getChannel();
+		buffer_ = ByteBuffer.allocate(BUFFER_SIZE)
+			.order(ByteOrder.LITTLE_ENDIAN);
+
+		/* Seek to the end of the header.  The records of a compressed
+		 * file follow the dictionary, so if it is still to be trained
+		 * they are held back until it is. */
+		if (compress_ && (dictionary_ == null)) {
+			sample_ = new ArrayList<>();
+			sampleSize_ = 0;
+		} else {
+			pos_ = dataStart();
+			file_.seek(pos_);
+		}
 	}
 
 	/**
@@ -104,31 +276,287 @@ public final class CdbMake {
 	 *  to the database.
 	 */
 	public void add(byte[] key, byte[] data) throws IOException {
-		/* Write out the key length. */
-		writeLeInt(key.length);
+		add(key, 0, key.length, data, 0, data.length);
+	}
 
-		/* Write out the data length. */
-		writeLeInt(data.length);
+	/**
+	 * Adds a key to the constant database, taking the key and data from
+	 * ranges of the given arrays.
+	 *
+	 * @param key The array containing the key.
+	 * @param koff The offset of the key in <code>key</code>.
+	 * @param klen The length of the key.
+	 * @param data The array containing the data.
+	 * @param doff The offset of the data in <code>data</code>.
+	 * @param dlen The length of the data.
+	 * @exception java.io.IOException If an error occurs adding the key
+	 *  to the database.
+	 */
+	public void add(byte[] key, int koff, int klen, byte[] data, int doff,
+		int dlen) throws IOException
+	{
+		if (!compress_) {
+			write(key, koff, klen, data, doff, dlen);
+			return;
+		}
 
-		/* Write out the key. */
-		file_.write(key);
+		/* Hold the record back if the dictionary is still to be
+		 * trained. */
+		if (sample_ != null) {
+			sample_.add(Arrays.copyOfRange(key, koff, koff + klen));
+			sample_.add(Arrays.copyOfRange(data, doff, doff + dlen));
+			sampleSize_ += dlen;
+			if (sampleSize_ >= SAMPLE_SIZE)
+				trainDictionary();
+			return;
+		}
+
+		/* Compress the data and write the record. */
+		int clen = dictionary_.compress(data, doff, dlen);
+		write(key, koff, klen, dictionary_.compressed(), 0, clen);
+	}
 
-		/* Write out the data. */
-		file_.write(data);
+	/**
+	 * Adds the key in the remaining bytes of <code>key</code> to the
+	 * constant database, with the remaining bytes of <code>data</code>.
+	 * Neither buffer's position is changed.
+	 *
+	 * @param key The buffer containing the key.
+	 * @param data The buffer containing the data.
+	 * @exception java.io.IOException If an error occurs adding the key
+	 *  to the database.
+	 */
+	public void add(ByteBuffer key, ByteBuffer data) throws IOException {
+		byte[] d;
+		int doff;
+		if (data.hasArray()) {
+			d = data.array();
+			doff = data.arrayOffset() + data.position();
+		} else {
+			if ((dataScratch_ == null)
+					|| (dataScratch_.length < data.remaining()))
+				dataScratch_ = new byte[Math.max(data.remaining(), 256)];
+			data.duplicate().get(dataScratch_, 0, data.remaining());
+			d = dataScratch_;
+			doff = 0;
+		}
+
+		add(Cdb.keyBytes(key), Cdb.keyOffset(key), key.remaining(),
+			d, doff, data.remaining());
+	}
+
+	/**
+	 * Adds the UTF-8 encoding of the given key to the constant
+	 * database, encoded as <code>Cdb.get(CharSequence)</code> encodes
+	 * the keys it looks up.
+	 *
+	 * @param key The key to add to the database.
+	 * @param data The data associated with this key.
+	 * @exception java.io.IOException If an error occurs adding the key
+	 *  to the database.
+	 */
+	public void add(CharSequence key, byte[] data) throws IOException {
+		add(Cdb.keyBytes(key), 0, Cdb.utf8Length(key),
+			data, 0, data.length);
+	}
+
+	/**
+	 * Writes a record to the constant database as-is.
+	 *
+	 * @param key The array containing the key.
+	 * @param koff The offset of the key in <code>key</code>.
+	 * @param klen The length of the key.
+	 * @param data The array containing the data.
+	 * @param doff The offset of the data in <code>data</code>.
+	 * @param dlen The length of the data.
+	 * @exception java.io.IOException If an error occurs adding the key
+	 *  to the database.
+	 */
+	private void write(byte[] key, int koff, int klen, byte[] data,
+		int doff, int dlen) throws IOException
+	{
+		/* Make room for the record in the buffer. */
+		long reclen = 8L + klen + dlen;
+		if (reclen > buffer_.remaining())
+			flush();
+
+		if (reclen <= buffer_.remaining()) {
+			/* Collect the key and data lengths, the key and the data in
+			 * the buffer. */
+			buffer_.putInt(klen);
+			buffer_.putInt(dlen);
+			buffer_.put(key, koff, klen);
+			buffer_.put(data, doff, dlen);
+		} else {
+			/* The record is larger than the buffer; write the lengths,
+			 * key and data with a single gathering write instead. */
+			buffer_.putInt(klen);
+			buffer_.putInt(dlen);
+			buffer_.flip();
+
+			ByteBuffer[] record = new ByteBuffer[] {
+				buffer_,
+				ByteBuffer.wrap(key, koff, klen),
+				ByteBuffer.wrap(data, doff, dlen) };
+			for (long written = 0; written < reclen; /* below */)
+				written += channel_.write(record);
+			buffer_.clear();
+		}
 
 
 		/* Add the hash pointer to our list. */
-		int hash = Cdb.hash(key);
-		hashPointers_.addElement(new CdbHashPointer(hash, pos_));
+		long hash = hashOf(key, koff, klen);
+		if (numHashPointers_ == hashPointers_.length)
+			growHashPointers(numHashPointers_ + 1);
+		setHashPointer(numHashPointers_++, pos_, hash);
 
 		/* Add this item to the count. */
-		tableCount_[hash & 0xff]++;
+		tableCount_[(int)hash & 0xff]++;
 
 
 		/* Update the file position pointer. */
-		posplus(8);
-		posplus(key.length);
-		posplus(data.length);
+		posplus(reclen);
+	}
+
+
+	/**
+	 * Trains the compression dictionary on the records held back so
+	 * far, then writes them out after it.
+	 *
+	 * @exception java.io.IOException If an error occurs writing the
+	 *  records.
+	 */
+	private void trainDictionary() throws IOException {
+		List<byte[]> sample = sample_;
+		sample_ = null;
+
+		List<byte[]> data = new ArrayList<>(sample.size() / 2);
+		for (int i = 1; i < sample.size(); i += 2)
+			data.add(sample.get(i));
+		dictionary_ = CdbDictionary.train(data, DICTIONARY_SIZE);
+
+		pos_ = dataStart();
+		file_.seek(pos_);
+		for (int i = 0; i < sample.size(); i += 2) {
+			byte[] key = sample.get(i);
+			byte[] value = sample.get(i + 1);
+			add(key, 0, key.length, value, 0, value.length);
+		}
+	}
+
+	/**
+	 * Returns the position of the first record: the end of the slot
+	 * table, or of the dictionary in a compressed file.
+	 *
+	 * @return The position of the first record.
+	 */
+	private long dataStart() {
+		if (!wide_)
+			return 2048;
+		return Cdb.HEADER64_SIZE + Cdb.SLOTS64_SIZE
+			+ (compress_ ? dictionary_.bytes().length : 0);
+	}
+
+
+	/**
+	 * Reserves room in the constant database for records which will be
+	 * written directly to <code>channel()</code> by someone else, such
+	 * as a parallel loader.  The caller must then store a hash pointer
+	 * for each of the records with <code>setHashPointer</code> and
+	 * account for them with <code>addTableCounts</code>.
+	 *
+	 * @param length The total length of the records, including their
+	 *  key and data lengths.
+	 * @param count The number of records.
+	 * @return The index of the first reserved hash pointer.  The first
+	 *  record goes at the position returned by <code>position()</code>
+	 *  before this call.
+	 * @exception java.io.IOException If the records would make the file
+	 *  too big.
+	 * @exception java.lang.IllegalStateException If record data is to
+	 *  be compressed, which changes the length of the records.
+	 */
+	int reserve(long length, int count) throws IOException {
+		if (compress_)
+			throw new IllegalStateException(
+				"cannot reserve space in a compressed file");
+
+		/* Write out any buffered records ahead of the reserved space. */
+		flush();
+
+		/* Reserve the hash pointers. */
+		int first = numHashPointers_;
+		if (hashPointers_.length - numHashPointers_ < count)
+			growHashPointers(numHashPointers_ + count);
+		numHashPointers_ += count;
+
+		/* Reserve the space and continue writing after it. */
+		posplus(length);
+		channel_.position(pos_);
+
+		return first;
+	}
+
+	/**
+	 * Returns the position at which the next record will be written.
+	 *
+	 * @return The position of the next record.
+	 */
+	long position() {
+		return pos_;
+	}
+
+	/**
+	 * Returns the channel that the constant database is written to.
+	 *
+	 * @return The channel for the CDB file.
+	 */
+	FileChannel channel() {
+		return channel_;
+	}
+
+	/**
+	 * Stores a hash pointer reserved with <code>reserve</code>.  Calls
+	 * for different indexes may be made from different threads.
+	 *
+	 * @param index The index of the hash pointer.
+	 * @param pos The position of the record.
+	 * @param hash The hash value of the record's key.
+	 */
+	void setHashPointer(int index, long pos, long hash) {
+		if (wide_) {
+			hashPointers_[index] = pos;
+			hashes_[index] = hash;
+		} else {
+			hashPointers_[index] = (pos << 32) | (hash & 0xffffffffL);
+		}
+	}
+
+	/**
+	 * Computes the hash value that this constant database uses for the
+	 * key stored in the given range of <code>key</code>.  The hash
+	 * table is picked by its low byte.
+	 *
+	 * @param key The array containing the key.
+	 * @param off The offset of the key in <code>key</code>.
+	 * @param len The length of the key.
+	 * @return The hash value of the key.
+	 */
+	long hashOf(byte[] key, int off, int len) {
+		if (hash64_)
+			return Cdb.hash64(key, off, len);
+		return Cdb.hash(key, off, len) & 0xffffffffL;
+	}
+
+	/**
+	 * Adds the given per-table counts of reserved records to the table
+	 * counts.
+	 *
+	 * @param counts The number of records in each hash table.
+	 */
+	void addTableCounts(int[] counts) {
+		for (int i = 0; i < 256; i++)
+			tableCount_[i] += counts[i];
 	}
 
 	/**
@@ -138,110 +566,466 @@ public final class CdbMake {
 	 *  database.
 	 */
 	public void finish() throws IOException {
+		/* Write out any records held back for the dictionary, then any
+		 * buffered records. */
+		if (sample_ != null)
+			trainDictionary();
+		flush();
+		long dataEnd = pos_;
+
 		/* Find the start of each hash table. */
 		int curEntry = 0;
 		for (int i = 0; i < 256; i++) {
-			curEntry += tableCount_[i];
 			tableStart_[i] = curEntry;
+			curEntry += tableCount_[i];
 		}
 
-		/* Create a new hash pointer list in order by hash table. */
-		CdbHashPointer[] slotPointers
-			= new CdbHashPointer[hashPointers_.size()];
-		for (Enumeration e = hashPointers_.elements(); e.hasMoreElements(); ) {
-			CdbHashPointer hp = (CdbHashPointer)e.nextElement();
-			slotPointers[--tableStart_[hp.hash & 0xff]] = hp;
+		/* Sort the hash pointers into order by hash table: in place
+		 * for a classic file, through a list of record numbers for a
+		 * cdb64 file. */
+		final int[] order;
+		if (wide_) {
+			order = groupByTable(hashes_, numHashPointers_, tableStart_);
+		} else {
+			order = null;
+			bucketSort(hashPointers_, tableStart_, tableCount_);
 		}
 
-		/* Write out each of the hash tables, building the slot table in
-		 * the process. */
-		byte[] slotTable = new byte[2048];
+		/* Work out where each of the hash tables will go, building the
+		 * slot table in the process.  A cdb64 slot table follows the
+		 * cdb64 header. */
+		final long[] tablePos = new long[256];
+		ByteBuffer slotTable;
+		if (wide_) {
+			slotTable = ByteBuffer.allocate((int)dataStart());
+			slotTable.order(ByteOrder.LITTLE_ENDIAN);
+			slotTable.putInt(4, Cdb.MAGIC64);
+			slotTable.putLong(16, dataStart());
+			if (hash64_)
+				slotTable.putInt(8, Cdb.WORDHASH64);
+			if (compress_) {
+				byte[] dict = dictionary_.bytes();
+				slotTable.putInt(8, slotTable.getInt(8) | Cdb.COMPRESSED64);
+				System.arraycopy(dict, 0, slotTable.array(),
+					Cdb.HEADER64_SIZE + Cdb.SLOTS64_SIZE, dict.length);
+			}
+		} else {
+			slotTable = ByteBuffer.allocate(2048);
+			slotTable.order(ByteOrder.LITTLE_ENDIAN);
+		}
 		for (int i = 0; i < 256; i++) {
 			/* Get the length of the hashtable. */
 			int len = tableCount_[i] * 2;
 
 			/* Store the position of this table in the slot table. */
-			slotTable[(i * 8) + 0] = (byte)(pos_ & 0xff);
-			slotTable[(i * 8) + 1] = (byte)((pos_ >>>  8) & 0xff);
-			slotTable[(i * 8) + 2] = (byte)((pos_ >>> 16) & 0xff);
-			slotTable[(i * 8) + 3] = (byte)((pos_ >>> 24) & 0xff);
-			slotTable[(i * 8) + 4 + 0] = (byte)(len & 0xff);
-			slotTable[(i * 8) + 4 + 1] = (byte)((len >>>  8) & 0xff);
-			slotTable[(i * 8) + 4 + 2] = (byte)((len >>> 16) & 0xff);
-			slotTable[(i * 8) + 4 + 3] = (byte)((len >>> 24) & 0xff);
-
-			/* Build the hash table. */
-			int curSlotPointer = tableStart_[i];
-			CdbHashPointer hashTable[] = new CdbHashPointer[len];
-			for (int u = 0; u < tableCount_[i]; u++) {
-				/* Get the hash pointer. */
-				CdbHashPointer hp = slotPointers[curSlotPointer++];
-
-				/* Locate a free space in the hash table. */
-				int where = (hp.hash >>> 8) % len;
-				while (hashTable[where] != null)
-					if (++where == len)
-						where = 0;
-
-				/* Store the hash pointer. */
-				hashTable[where] = hp;
+			tablePos[i] = pos_;
+			if (wide_) {
+				slotTable.putLong(Cdb.HEADER64_SIZE + (i * 16), pos_);
+				slotTable.putLong(Cdb.HEADER64_SIZE + (i * 16) + 8, len);
+			} else {
+				slotTable.putInt((i * 8) + 0, (int)pos_);
+				slotTable.putInt((i * 8) + 4, len);
 			}
 
-			/* Write out the hash table. */
-			for (int u = 0; u < len; u++ ) {
-				CdbHashPointer hp = hashTable[u];
-				if (hp != null) {
-					writeLeInt(hashTable[u].hash);
-					writeLeInt(hashTable[u].pos);
-				} else {
-					writeLeInt(0);
-					writeLeInt(0);
+			/* Leave room for the table. */
+			posplus((long)len * (wide_ ? 16 : 8));
+		}
+
+		/* Build and write out the hash tables in parallel.  Each table
+		 * is written to its own precomputed position, so the result is
+		 * identical to building them one after another. */
+		final FileChannel channel = channel_;
+		final long[] pointers = hashPointers_;
+		RecursiveAction[] tasks = new RecursiveAction[256];
+		for (int i = 0; i < 256; i++) {
+			final int table = i;
+			tasks[i] = new RecursiveAction() {
+				protected void compute() {
+					try {
+						if (order != null)
+							writeWideHashTable(channel, order, table,
+								tablePos[table]);
+						else
+							writeHashTable(channel, pointers, table,
+								tablePos[table]);
+					} catch (IOException ioException) {
+						throw new UncheckedIOException(ioException);
+					}
 				}
-				posplus(8);
-			}
+			};
+		}
+
+		try {
+			ForkJoinTask.invokeAll(tasks);
+		} catch (UncheckedIOException uncheckedIOException) {
+			throw uncheckedIOException.getCause();
 		}
 
 		/* Seek back to the beginning of the file and write out the
-		 * slot table. */
+		 * slot table, along with the dictionary of a compressed
+		 * file. */
 		file_.seek(0);
-		file_.write(slotTable);
+		file_.write(slotTable.array());
+
+		/* Build the Bloom filter and the key index from the records
+		 * we just wrote. */
+		CdbBloomFilter bloom = null;
+		if (bloomFpp_ > 0)
+			bloom = new CdbBloomFilter(numHashPointers_, bloomFpp_);
+		CdbKeyIndex.Writer keyIndex = null;
+		if (keyIndex_)
+			keyIndex = new CdbKeyIndex.Writer(filepath_ + CdbKeyIndex.SUFFIX);
+		try {
+			if ((bloom != null) || (keyIndex != null))
+				readKeys(dataEnd, bloom, keyIndex);
+
+			/* Close the file. */
+			file_.close();
+			channel_ = null;
+			buffer_ = null;
+
+			/* Write the sidecars, or remove stale ones.  Each sidecar
+			 * records the fingerprint of the file it was built for. */
+			long fingerprint = 0;
+			if ((bloom != null) || (keyIndex != null)) {
+				CdbStore store = new CdbFileStore(filepath_);
+				try {
+					fingerprint = store.fingerprint();
+				} finally {
+					store.close();
+				}
+			}
 
-		/* Close the file. */
-		file_.close();
+			File sidecar = new File(filepath_ + CdbBloomFilter.SUFFIX);
+			if (bloom != null)
+				bloom.write(sidecar.getPath(), pos_, fingerprint);
+			else
+				sidecar.delete();
+
+			sidecar = new File(filepath_ + CdbKeyIndex.SUFFIX);
+			if (keyIndex != null)
+				keyIndex.write(pos_, fingerprint);
+			else
+				sidecar.delete();
+		} finally {
+			/* Remove the key index's sorted runs if we failed before
+			 * writing it. */
+			if (keyIndex != null)
+				keyIndex.discard();
+		}
 	}
 
 
 	/**
-	 * Writes an integer in little-endian format to the constant
-	 * database at the current file offset.
+	 * Reads the keys of the records back from the file in one
+	 * sequential pass, adding them to the Bloom filter and the key
+	 * index.
 	 *
-	 * @param v The integer to write to the file.
+	 * @param dataEnd The position following the last record.
+	 * @param bloom The Bloom filter, or <code>null</code>.
+	 * @param keyIndex The key index, or <code>null</code>.
+	 * @exception java.io.IOException If an error occurs reading the
+	 *  records.
 	 */
-	private void writeLeInt(int v) throws IOException {
-		file_.writeByte((byte)(v & 0xff));
-		file_.writeByte((byte)((v >>>  8) & 0xff));
-		file_.writeByte((byte)((v >>> 16) & 0xff));
-		file_.writeByte((byte)((v >>> 24) & 0xff));
+	private void readKeys(long dataEnd, CdbBloomFilter bloom,
+		CdbKeyIndex.Writer keyIndex) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		buf.flip();
+		byte[] key = new byte[256];
+		long pos = dataStart();
+		long next = pos;
+		while (next < dataEnd) {
+			/* Refill the buffer if the lengths are not all in it. */
+			if (buf.remaining() < 8)
+				pos = refill(buf, pos);
+			int klen = buf.getInt();
+			int dlen = buf.getInt();
+
+			/* Collect the key, which may span several refills. */
+			if (key.length < klen)
+				key = new byte[Math.max(klen, key.length * 2)];
+			for (int off = 0; off < klen; /* below */) {
+				if (!buf.hasRemaining())
+					pos = refill(buf, pos);
+				int count = Math.min(klen - off, buf.remaining());
+				buf.get(key, off, count);
+				off += count;
+			}
+			if (bloom != null)
+				bloom.add(CdbBloomFilter.hash(key, 0, klen));
+			if (keyIndex != null)
+				keyIndex.add(key, 0, klen, next);
+
+			/* Skip the data, reading past it if it is not all in the
+			 * buffer. */
+			next += 8L + klen + dlen;
+			if (dlen <= buf.remaining()) {
+				buf.position(buf.position() + dlen);
+			} else {
+				pos = next;
+				buf.clear();
+				buf.flip();
+			}
+		}
+	}
+
+	/**
+	 * Moves the unread bytes of <code>buf</code> to its start and fills
+	 * the rest of it from the file.
+	 *
+	 * @param buf The buffer to refill, ready to be read from.
+	 * @param pos The file position following the buffered bytes.
+	 * @return The new file position following the buffered bytes.
+	 * @exception java.io.IOException If an error occurs reading the
+	 *  file.
+	 */
+	private long refill(ByteBuffer buf, long pos) throws IOException {
+		buf.compact();
+		int count = channel_.read(buf, pos);
+		if (count <= 0)
+			throw new EOFException();
+		buf.flip();
+		return pos + count;
+	}
+
+	/**
+	 * Builds the given hash table and writes it out at the given
+	 * position.  This is safe to call for several tables at once.
+	 *
+	 * @param channel The channel to write the hash table to.
+	 * @param slotPointers The packed hash pointers, grouped by hash
+	 *  table.
+	 * @param table The number of the hash table to build.
+	 * @param pos The position at which to write the hash table.
+	 * @exception java.io.IOException If an error occurs writing the
+	 *  hash table.
+	 */
+	private void writeHashTable(FileChannel channel,
+		long[] slotPointers, int table, long pos)
+		throws IOException
+	{
+		/* Get the length of the hashtable. */
+		int len = tableCount_[table] * 2;
+
+		/* The bucket sort does not preserve the order of the pointers
+		 * within a table, but positions increase with every record, so
+		 * sorting the packed pointers puts them back in file order. */
+		int start = tableStart_[table];
+		int end = start + tableCount_[table];
+		Arrays.sort(slotPointers, start, end);
+
+		/* Build the hash table, placing the pointers in reverse file
+		 * order.  A packed pointer is never zero, as no record starts
+		 * at position zero. */
+		long hashTable[] = new long[len];
+		for (int u = end - 1; u >= start; u--) {
+			/* Get the hash pointer. */
+			long hp = slotPointers[u];
+
+			/* Locate a free space in the hash table. */
+			int where = ((int)hp >>> 8) % len;
+			while (hashTable[where] != 0)
+				if (++where == len)
+					where = 0;
+
+			/* Store the hash pointer. */
+			hashTable[where] = hp;
+		}
+
+		/* Write out the hash table a block at a time. */
+		ByteBuffer buf = ByteBuffer.allocate(Math.min(len, 8192) * 8)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		for (int u = 0; u < len; u++) {
+			long hp = hashTable[u];
+			buf.putInt((int)hp);
+			buf.putInt((int)(hp >>> 32));
+
+			if (!buf.hasRemaining() || (u == len - 1)) {
+				buf.flip();
+				while (buf.hasRemaining())
+					pos += channel.write(buf, pos);
+				buf.clear();
+			}
+		}
+	}
+
+	/**
+	 * Builds the given cdb64 hash table and writes it out at the given
+	 * position.  This is safe to call for several tables at once.
+	 *
+	 * @param channel The channel to write the hash table to.
+	 * @param order The record numbers, grouped by hash table and in
+	 *  file order within each table.
+	 * @param table The number of the hash table to build.
+	 * @param pos The position at which to write the hash table.
+	 * @exception java.io.IOException If an error occurs writing the
+	 *  hash table.
+	 */
+	private void writeWideHashTable(FileChannel channel, int[] order,
+		int table, long pos) throws IOException
+	{
+		/* Get the length of the hashtable. */
+		int len = tableCount_[table] * 2;
+
+		/* Build the hash table, placing the records in reverse file
+		 * order.  Each entry holds a record number plus one, so that
+		 * zero marks an empty entry. */
+		int start = tableStart_[table];
+		int end = start + tableCount_[table];
+		int hashTable[] = new int[len];
+		for (int u = end - 1; u >= start; u--) {
+			/* Locate a free space in the hash table. */
+			int record = order[u];
+			int where = (int)((hashes_[record] >>> 8) % len);
+			while (hashTable[where] != 0)
+				if (++where == len)
+					where = 0;
+
+			/* Store the record number. */
+			hashTable[where] = record + 1;
+		}
+
+		/* Write out the hash table a block at a time. */
+		ByteBuffer buf = ByteBuffer.allocate(Math.min(len, 8192) * 16)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		for (int u = 0; u < len; u++) {
+			int record = hashTable[u] - 1;
+			buf.putLong(record < 0 ? 0 : hashes_[record]);
+			buf.putLong(record < 0 ? 0 : hashPointers_[record]);
+
+			if (!buf.hasRemaining() || (u == len - 1)) {
+				buf.flip();
+				while (buf.hasRemaining())
+					pos += channel.write(buf, pos);
+				buf.clear();
+			}
+		}
+	}
+
+	/**
+	 * Groups record numbers by hash table with a stable counting sort,
+	 * so that the records of each table stay in file order.
+	 *
+	 * @param hashes The hash values of the records.
+	 * @param count The number of records.
+	 * @param tableStart The index of the first record in each table.
+	 * @return The record numbers, grouped by hash table.
+	 */
+	private static int[] groupByTable(long[] hashes, int count,
+		int[] tableStart)
+	{
+		int[] next = Arrays.copyOf(tableStart, 256);
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++)
+			order[next[(int)hashes[i] & 0xff]++] = i;
+		return order;
+	}
+
+	/**
+	 * Sorts packed hash pointers into order by hash table, in place.
+	 * The order of the pointers within each table is not preserved.
+	 *
+	 * @param pointers The packed hash pointers to sort.
+	 * @param tableStart The index of the first pointer in each table.
+	 * @param tableCount The number of pointers in each table.
+	 */
+	private static void bucketSort(long[] pointers, int[] tableStart,
+		int[] tableCount)
+	{
+		/* Track the next unsorted position in each table. */
+		int[] next = new int[256];
+		for (int i = 0; i < 256; i++)
+			next[i] = tableStart[i];
+
+		/* Fill each table in turn, swapping every misplaced pointer
+		 * along to the next free position in its own table. */
+		for (int i = 0; i < 256; i++) {
+			int end = tableStart[i] + tableCount[i];
+			while (next[i] < end) {
+				long hp = pointers[next[i]];
+				int table = (int)hp & 0xff;
+				while (table != i) {
+					long displaced = pointers[next[table]];
+					pointers[next[table]++] = hp;
+					hp = displaced;
+					table = (int)hp & 0xff;
+				}
+				pointers[next[i]++] = hp;
+			}
+		}
+	}
+
+	/**
+	 * Grows the hash pointer arrays to hold at least
+	 * <code>count</code> pointers.
+	 *
+	 * @param count The number of pointers the arrays must hold.
+	 */
+	private void growHashPointers(int count) {
+		int length = Math.max(count,
+			hashPointers_.length + (hashPointers_.length >> 1));
+		hashPointers_ = Arrays.copyOf(hashPointers_, length);
+		if (wide_)
+			hashes_ = Arrays.copyOf(hashes_, length);
+	}
+
+	/**
+	 * Writes the contents of the record buffer to the constant
+	 * database at the current file offset and empties the buffer.
+	 *
+	 * @exception java.io.IOException If an error occurs writing to the
+	 *  database.
+	 */
+	private void flush() throws IOException {
+		buffer_.flip();
+		while (buffer_.hasRemaining())
+			channel_.write(buffer_);
+		buffer_.clear();
 	}
 
 	/**
 	 * Advances the file pointer by <code>count</code> bytes, throwing
-	 * an exception if doing so would cause the file to grow beyond
-	 * 4 GB.
+	 * an exception if doing so would cause a classic file to grow
+	 * beyond 2 GB.
 	 *
 	 * @param count The count of bytes to increase the file pointer by.
 	 * @exception java.io.IOException If increasing the file pointer by
 	 *  <code>count</code> bytes would cause the file to grow beyond
-	 *  4 GB.
+	 *  what its format can address.
 	 */
-	private void posplus(int count) throws IOException {
-		int newpos = pos_ + count;
-		if (newpos < count)
+	private void posplus(long count) throws IOException {
+		long newpos = pos_ + count;
+		if ((newpos < 0) || (!wide_ && (newpos > Integer.MAX_VALUE)))
 			throw new IOException("CDB file is too big.");
 		pos_ = newpos;
 	}
 
 
+	/**
+	 * Abandons the constant database being created: closes the file
+	 * and deletes it, along with any sidecars already written for it.
+	 */
+	void abort() {
+		if (file_ != null) {
+			try {
+				file_.close();
+			} catch (IOException ignored) {}
+		}
+		file_ = null;
+		channel_ = null;
+		buffer_ = null;
+		sample_ = null;
+
+		if (filepath_ != null) {
+			new File(filepath_).delete();
+			new File(filepath_ + CdbBloomFilter.SUFFIX).delete();
+			new File(filepath_ + CdbKeyIndex.SUFFIX).delete();
+		}
+	}
+
+
 	/**
 	 * Builds a CDB file from a CDB-format text file.
 	 *
@@ -274,16 +1058,90 @@ public final class CdbMake {
 	public static void make(String dataFilepath, String cdbFilepath,
 		String tempFilepath, Cdb ignoreCdb) throws IOException
 	{
-		/* Open the data file. */
-		BufferedInputStream in
-			= new BufferedInputStream(
-				new FileInputStream(dataFilepath));
+		/* Open the data file.  The parser reads in large chunks of its
+		 * own, so there is no need to buffer the stream. */
+		InputStream in = new FileInputStream(dataFilepath);
 
 		/* Build the database. */
-		make(in, cdbFilepath, tempFilepath, ignoreCdb);
+		try {
+			make(in, cdbFilepath, tempFilepath, ignoreCdb);
+		} finally {
+			/* Close the data file. */
+			try { in.close(); } catch (Exception ignored) {}
+		}
+	}
+
+	/**
+	 * Builds a CDB file from a CDB-format text file using several
+	 * threads, excluding records with data matching keys in
+	 * `ignoreCdb'.  The data file is split into regions which are
+	 * parsed and written in parallel; the resulting CDB file is
+	 * identical to the one built by a single thread.
+	 *
+	 * @param dataFilepath The CDB data file to read.
+	 * @param cdbFilepath The CDB file to create.
+	 * @param tempFilepath The temporary file to use when creating the
+	 *  CDB file.
+	 * @param ignoreCdb If the data for an entry matches a key in this
+	 *  CDB file, the entry will not be added to the new file.  May be
+	 *  <code>null</code>.
+	 * @param threads The number of threads to use.
+	 * @exception java.io.IOException if an error occurs rebuilding the
+	 *  CDB file.
+	 */
+	public static void make(String dataFilepath, String cdbFilepath,
+		String tempFilepath, Cdb ignoreCdb, int threads) throws IOException
+	{
+		make(dataFilepath, cdbFilepath, tempFilepath, ignoreCdb, threads, 0);
+	}
 
-		/* Close the data file. */
-		try { in.close(); } catch (Exception ignored) {}
+	/**
+	 * Builds a CDB file with the given format flags from a CDB-format
+	 * text file using several threads, excluding records with data
+	 * matching keys in `ignoreCdb'.
+	 *
+	 * @param dataFilepath The CDB data file to read.
+	 * @param cdbFilepath The CDB file to create.
+	 * @param tempFilepath The temporary file to use when creating the
+	 *  CDB file.
+	 * @param ignoreCdb If the data for an entry matches a key in this
+	 *  CDB file, the entry will not be added to the new file.  May be
+	 *  <code>null</code>.
+	 * @param threads The number of threads to use.
+	 * @param flags Zero or more format flags (such as
+	 *  <code>CDB64</code>) or'd together.
+	 * @exception java.io.IOException if an error occurs rebuilding the
+	 *  CDB file.
+	 */
+	public static void make(String dataFilepath, String cdbFilepath,
+		String tempFilepath, Cdb ignoreCdb, int threads, int flags)
+		throws IOException
+	{
+		/* Use the sequential parser if we only have one thread, or if
+		 * the records are compressed and their lengths cannot be known
+		 * in advance. */
+		if ((threads <= 1) || ((flags & COMPRESS) != 0)) {
+			InputStream in = new FileInputStream(dataFilepath);
+			try {
+				make(in, cdbFilepath, tempFilepath, ignoreCdb, flags);
+			} finally {
+				try { in.close(); } catch (Exception ignored) {}
+			}
+			return;
+		}
+
+		/* Create the CDB file. */
+		CdbMake cdbMake = new CdbMake(flags);
+		cdbMake.start(tempFilepath);
+
+		/* Process the data file. */
+		CdbParallelLoader.load(cdbMake, dataFilepath, ignoreCdb, threads);
+
+		/* Finish the CDB file. */
+		cdbMake.finish();
+
+		/* Rename the data file. */
+		rename(tempFilepath, cdbFilepath);
 	}
 
 	/**
@@ -317,133 +1175,101 @@ public final class CdbMake {
 	 */
 	public static void make(InputStream in, String cdbFilepath,
 		String tempFilepath, Cdb ignoreCdb) throws IOException
+	{
+		make(in, cdbFilepath, tempFilepath, ignoreCdb, 0);
+	}
+
+	/**
+	 * Builds a CDB file with the given format flags from a CDB-format
+	 * InputStream, excluding records with data matching keys in
+	 * `ignoreCdb'.
+	 *
+	 * @param in The InputStream to read.
+	 * @param cdbFilepath The CDB file to create.
+	 * @param tempFilepath The temporary file to use when creating the
+	 *  CDB file.
+	 * @param ignoreCdb If the data for an entry matches a key in this
+	 *  CDB file, the entry will not be added to the new file.
+	 * @param flags Zero or more format flags (such as
+	 *  <code>CDB64</code>) or'd together.
+	 * @exception java.io.IOException if an error occurs rebuilding the
+	 *  CDB file.
+	 */
+	private static void make(InputStream in, String cdbFilepath,
+		String tempFilepath, Cdb ignoreCdb, int flags) throws IOException
 	{
 		/* Create the CdbMake object. */
-		CdbMake cdbMake = new CdbMake();
+		CdbMake cdbMake = new CdbMake(flags);
 
 		/* Create the CDB file. */
 		cdbMake.start(tempFilepath);
 
 		/* Process the data file. */
-		int ch;
-		for (;;) {
-			/* Read and process a byte. */
-			ch = in.read();
-			if ( ch == -1 )
-				break;
-			if ( ch == '\n' )
-				break;
-			if ( ch != '+' )
-				throw new IllegalArgumentException(
-					"input file not in correct format");
-
-			/* Get the key length. */
-			int klen = 0;
-			for (;;) {
-				ch = in.read();
-				if ( ch == ',' )
-					break;
-				if ( (ch < '0') || (ch > '9'))
-					throw new IllegalArgumentException(
-						"input file not in correct format");
-				if ( klen > 429496720 )
-					throw new IllegalArgumentException(
-						"key length is too big");
-				klen = klen * 10 + (ch - '0');
-			}
-
-			/* Get the data length. */
-			int dlen = 0;
-			for (;;) {
-				ch = in.read();
-				if ( ch == ':' )
-					break;
-				if ( (ch < '0') || (ch > '9'))
-					throw new IllegalArgumentException(
-						"input file not in correct format");
-				if ( dlen > 429496720 )
-					throw new IllegalArgumentException(
-						"data length is too big");
-				dlen = dlen * 10 + (ch - '0');
-			}
-
-			/* Read in the key. */
-			byte[] key = new byte[klen];
-			for ( int i = 0; i < klen; i++ ) {
-				/* Read the character. */
-				ch = in.read();
-				if( ch == -1 )
-				throw new IllegalArgumentException(
-					"input file is truncated");
-
-				/* Store the character. */
-				key[i] = (byte)(ch & 0xff);
-			}
-
-			/* Read key/data separator characters. */
-			ch = in.read();
-			if ( ch != '-')
-				throw new IllegalArgumentException(
-					"input file not in correct format");
-
-			ch = in.read();
-			if ( ch != '>')
-				throw new IllegalArgumentException(
-					"input file not in correct format");
-
-			/* Read in the data. */
-			byte[] data = new byte[dlen];
-			for ( int i = 0; i < dlen; i++ ) {
-				/* Read the character. */
-				ch = in.read();
-				if( ch == -1 )
-				throw new IllegalArgumentException(
-					"input file is truncated");
-
-				/* Store the character. */
-				data[i] = (byte)(ch & 0xff);
-			}
-
+		CdbTextParser parser = new CdbTextParser(in);
+		while (parser.next()) {
 			/* Add the key/data pair to the database if it is not in
 			 * ignoreCdb. */
-			if ( (ignoreCdb == null) || (ignoreCdb.find(data) == null) )
-				cdbMake.add(key, data);
-
-			/* Read the terminating LF. */
-			ch = in.read();
-			if ( ch != '\n' )
-				throw new IllegalArgumentException(
-					"input file not in correct format");
+			if ((ignoreCdb == null) || !ignored(ignoreCdb, parser)) {
+				byte[] buf = parser.buffer();
+				cdbMake.add(
+					buf, parser.keyOffset(), parser.keyLength(),
+					buf, parser.dataOffset(), parser.dataLength());
+			}
 		}
 
 		/* Finish the CDB file. */
 		cdbMake.finish();
 
 		/* Rename the data file. */
-		File tmp = new File(tempFilepath);
-		File cdb = new File(cdbFilepath);
-		tmp.renameTo(cdb);
+		rename(tempFilepath, cdbFilepath);
 	}
-}
 
 
-class CdbHashPointer {
-	/** The hash value of this entry. */
-	int hash;
-
-	/** The position in the constant database of this entry. */
-	int pos;
+	/**
+	 * Renames a newly built CDB file, along with its Bloom filter and
+	 * key index sidecars if it has them.  The sidecars go first, so
+	 * that the new file is never seen next to the old file's sidecars;
+	 * readers check each sidecar's fingerprint in any case.
+	 *
+	 * @param tempFilepath The temporary file the CDB file was built in.
+	 * @param cdbFilepath The final name of the CDB file.
+	 */
+	static void rename(String tempFilepath, String cdbFilepath) {
+		String[] suffixes = { CdbBloomFilter.SUFFIX, CdbKeyIndex.SUFFIX };
+		for (int i = 0; i < suffixes.length; i++) {
+			File tmpSidecar = new File(tempFilepath + suffixes[i]);
+			File cdbSidecar = new File(cdbFilepath + suffixes[i]);
+			if (tmpSidecar.exists())
+				tmpSidecar.renameTo(cdbSidecar);
+			else
+				cdbSidecar.delete();
+		}
 
+		File tmp = new File(tempFilepath);
+		File cdb = new File(cdbFilepath);
+		tmp.renameTo(cdb);
+	}
 
 	/**
-	 * Creates a new CdbHashPointer and initializes it with the given
-	 * hash value and position.
+	 * Returns <code>true</code> if the data of the parser's current
+	 * record is a key in <code>ignoreCdb</code>.
 	 *
-	 * @param hash The hash value for this hash pointer.
-	 * @param pos The position of this entry in the constant database.
+	 * @param ignoreCdb The CDB file of data values to ignore.
+	 * @param parser The parser positioned on a record.
+	 * @return <code>true</code> if the record should be ignored.
+	 * @exception java.io.IOException if <code>ignoreCdb</code> could
+	 *  not be read.
 	 */
-	CdbHashPointer(int hash, int pos) {
-		this.hash = hash;
-		this.pos = pos;
+	static boolean ignored(Cdb ignoreCdb, CdbTextParser parser)
+		throws IOException
+	{
+		int off = parser.dataOffset();
+		byte[] data = Arrays.copyOfRange(
+			parser.buffer(), off, off + parser.dataLength());
+		try {
+			return ignoreCdb.get(data) != null;
+		} catch (UncheckedIOException uncheckedIOException) {
+			throw uncheckedIOException.getCause();
+		}
 	}
 }
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * CdbMappedStore reads a constant database through memory-mapped
+ * segments.  Files larger than a single mapping (2 GB) are mapped as a
+ * series of segments; reads which straddle a segment boundary are
+ * stitched together from both sides.  <code>load</code> creates the
+ * same kind of store over direct buffers holding a copy of the whole
+ * file, which does not depend on the file once it has been read.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+final class CdbMappedStore extends CdbStore {
+	/** The number of bits in a segment offset. */
+	static final int SEGMENT_BITS = 30;
+
+	/** The size of each mapped segment. */
+	static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+	/** The mask which extracts a segment offset from a position. */
+	static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+
+	/** The mapped segments, in file order. */
+	private ByteBuffer[] segments_ = null;
+
+	/** Read-only views of the mapped segments, handed out to
+	 * visitors. */
+	private ByteBuffer[] views_ = null;
+
+	/** The length of the mapped file. */
+	private long length_ = 0;
+
+
+	/**
+	 * Maps the given CDB file into memory.
+	 *
+	 * @param filepath The path to the CDB file to map.
+	 * @exception java.io.IOException if the CDB file could not be
+	 *  opened or mapped.
+	 */
+	CdbMappedStore(String filepath) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filepath, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			length_ = channel.size();
+
+			/* Map the file one segment at a time.  The mappings stay
+			 * valid after the channel has been closed. */
+			int count = (int)((length_ + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+			segments_ = new ByteBuffer[count];
+			views_ = new ByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long start = (long)i << SEGMENT_BITS;
+				long size = Math.min(SEGMENT_SIZE, length_ - start);
+				segments_[i] = channel.map(
+						FileChannel.MapMode.READ_ONLY, start, size)
+					.order(ByteOrder.LITTLE_ENDIAN);
+				views_[i] = segments_[i].asReadOnlyBuffer();
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Creates a store over the given segments.
+	 *
+	 * @param segments The segments, in file order.
+	 * @param length The length of the file.
+	 */
+	private CdbMappedStore(ByteBuffer[] segments, long length) {
+		segments_ = segments;
+		length_ = length;
+		views_ = new ByteBuffer[segments.length];
+		for (int i = 0; i < segments.length; i++)
+			views_[i] = segments[i].asReadOnlyBuffer();
+	}
+
+	/**
+	 * Reads the given CDB file into direct buffers, outside of the
+	 * Java heap, and closes it.  Each segment is filled with a single
+	 * sequential read straight from the file.
+	 *
+	 * @param filepath The path to the CDB file to read.
+	 * @return A store over the copy of the file.
+	 * @exception java.io.IOException if the CDB file could not be read.
+	 */
+	static CdbMappedStore load(String filepath) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filepath, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long length = channel.size();
+
+			int count = (int)((length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+			ByteBuffer[] segments = new ByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long start = (long)i << SEGMENT_BITS;
+				int size = (int)Math.min(SEGMENT_SIZE, length - start);
+				ByteBuffer seg = ByteBuffer.allocateDirect(size);
+				while (seg.hasRemaining())
+					if (channel.read(seg, start + seg.position()) < 0)
+						throw new EOFException();
+				seg.clear();
+				segments[i] = seg.order(ByteOrder.LITTLE_ENDIAN);
+			}
+
+			return new CdbMappedStore(segments, length);
+		} finally {
+			file.close();
+		}
+	}
+
+
+	long length() {
+		return length_;
+	}
+
+	int readLeInt(long pos) throws IOException {
+		/* Fast path: the integer lies entirely within one segment. */
+		int off = (int)(pos & SEGMENT_MASK);
+		if ((off <= SEGMENT_SIZE - 4) && (pos + 4 <= length_))
+			return segment(pos).getInt(off);
+
+		/* Slow path: assemble the integer a byte at a time. */
+		return (readByte(pos) & 0xff)
+			| ((readByte(pos + 1) & 0xff) <<  8)
+			| ((readByte(pos + 2) & 0xff) << 16)
+			| ((readByte(pos + 3) & 0xff) << 24);
+	}
+
+	long readLeLong(long pos) throws IOException {
+		/* Fast path: the long lies entirely within one segment. */
+		int off = (int)(pos & SEGMENT_MASK);
+		if ((off <= SEGMENT_SIZE - 8) && (pos + 8 <= length_))
+			return segment(pos).getLong(off);
+
+		/* Slow path: assemble the long from two integers. */
+		return (readLeInt(pos) & 0xffffffffL)
+			| ((long)readLeInt(pos + 4) << 32);
+	}
+
+	void readFully(long pos, byte[] b, int off, int len)
+		throws IOException
+	{
+		if ((pos < 0) || (pos + len > length_))
+			throw new EOFException();
+
+		/* Bulk-copy the bytes out of each segment that the range
+		 * touches.  The copies go through duplicates so that the shared
+		 * segment buffers are never repositioned. */
+		while (len > 0) {
+			ByteBuffer seg = segments_[(int)(pos >>> SEGMENT_BITS)];
+			int segOff = (int)(pos & SEGMENT_MASK);
+			int count = Math.min(len, seg.limit() - segOff);
+			seg.duplicate().position(segOff).get(b, off, count);
+
+			pos += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	boolean equals(long pos, byte[] key, int off, int len)
+		throws IOException
+	{
+		/* Compare byte by byte if the range straddles a segment
+		 * boundary. */
+		if (!contained(pos, len)) {
+			for (int i = 0; i < len; i++)
+				if (readByte(pos + i) != key[off + i])
+					return false;
+			return true;
+		}
+
+		/* Otherwise compare eight bytes at a time directly against the
+		 * mapping, then finish off the tail. */
+		ByteBuffer seg = segments_[(int)(pos >>> SEGMENT_BITS)];
+		int segOff = (int)(pos & SEGMENT_MASK);
+		int i = 0;
+		for (; i + 8 <= len; i += 8)
+			if (seg.getLong(segOff + i) != (long)LE_LONGS.get(key, off + i))
+				return false;
+		for (; i < len; i++)
+			if (seg.get(segOff + i) != key[off + i])
+				return false;
+		return true;
+	}
+
+	ByteBuffer slice(long pos, int len) throws IOException {
+		/* Copy the bytes if they straddle a segment boundary. */
+		if (!contained(pos, len)) {
+			byte[] b = new byte[len];
+			readFully(pos, b, 0, len);
+			return ByteBuffer.wrap(b).asReadOnlyBuffer();
+		}
+
+		/* Otherwise return a view directly over the mapping. */
+		int off = (int)(pos & SEGMENT_MASK);
+		ByteBuffer buf = views_[(int)(pos >>> SEGMENT_BITS)].duplicate();
+		buf.limit(off + len);
+		buf.position(off);
+		return buf.slice();
+	}
+
+	void visit(long pos, int len, CdbDataVisitor visitor)
+		throws IOException
+	{
+		/* Copy the bytes into scratch space if they straddle a segment
+		 * boundary. */
+		if (!contained(pos, len)) {
+			ByteBuffer buf = scratch(len);
+			readFully(pos, buf.array(), 0, len);
+			visitor.visit(buf, 0, len);
+			return;
+		}
+
+		/* Otherwise hand out the mapping itself. */
+		visitor.visit(views_[(int)(pos >>> SEGMENT_BITS)],
+			(int)(pos & SEGMENT_MASK), len);
+	}
+
+	void close() {
+		/* The mappings (or direct buffers) are released when the
+		 * buffers are collected. */
+		segments_ = null;
+		views_ = null;
+	}
+
+
+	/**
+	 * Returns <code>true</code> if the given range lies entirely within
+	 * a single segment; <code>false</code> otherwise.
+	 *
+	 * @param pos The position of the first byte.
+	 * @param len The number of bytes.
+	 * @return <code>true</code> if the range lies within one segment.
+	 * @exception java.io.IOException if the range is outside of the
+	 *  file.
+	 */
+	private boolean contained(long pos, int len) throws IOException {
+		if ((pos < 0) || (len < 0) || (pos + len > length_))
+			throw new EOFException();
+		return (pos & SEGMENT_MASK) + len <= SEGMENT_SIZE;
+	}
+
+	/**
+	 * Returns the segment containing the given position.
+	 *
+	 * @param pos The position to look up.
+	 * @return The segment containing <code>pos</code>.
+	 * @exception java.io.IOException if <code>pos</code> is outside of
+	 *  the file.
+	 */
+	private ByteBuffer segment(long pos) throws IOException {
+		if ((pos < 0) || (pos >= length_))
+			throw new EOFException();
+		return segments_[(int)(pos >>> SEGMENT_BITS)];
+	}
+
+	/**
+	 * Reads a single byte from the given position.
+	 *
+	 * @param pos The position to read from.
+	 * @return The byte stored at <code>pos</code>.
+	 * @exception java.io.IOException if <code>pos</code> is outside of
+	 *  the file.
+	 */
+	private byte readByte(long pos) throws IOException {
+		return segment(pos).get((int)(pos & SEGMENT_MASK));
+	}
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+/**
+ * CdbParallelLoader feeds a CDB-format text file into a CdbMake object
+ * using several threads.
+ *
+ * <p>The file is cut into one region per thread.  Record boundaries
+ * cannot be found without parsing from the start of the file, so each
+ * region after the first starts at a guessed boundary: a
+ * <code>\n+</code> sequence which is followed by several well-formed
+ * records.  The first pass parses every region in parallel, counting
+ * its records and their size; a guess is only trusted once the region
+ * before it has been seen to end exactly on it, and anything after a
+ * bad guess is parsed again from the last good boundary.  The space
+ * for every region is then reserved in the CdbMake object and the
+ * second pass parses the regions again in parallel, writing each one
+ * directly to its reserved position.  The result is identical to
+ * adding the records one at a time.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+final class CdbParallelLoader {
+	/** The number of records that must parse cleanly after a guessed
+	 * region boundary before it is used. */
+	private static final int SYNC_RECORDS = 3;
+
+	/** The size of the buffer that each region is written through. */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+
+	/**
+	 * Loads the records in the given CDB-format text file into
+	 * <code>cdbMake</code>.
+	 *
+	 * @param cdbMake The started CdbMake object to load.
+	 * @param dataFilepath The CDB data file to read.
+	 * @param ignoreCdb If the data for an entry matches a key in this
+	 *  CDB file, the entry will not be added.  May be <code>null</code>.
+	 * @param threads The number of threads to use.
+	 * @exception java.io.IOException if an error occurs reading the data
+	 *  file or writing the CDB file.
+	 */
+	static void load(final CdbMake cdbMake, String dataFilepath,
+		final Cdb ignoreCdb, int threads) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(dataFilepath, "r");
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			final FileChannel in = file.getChannel();
+			long size = in.size();
+
+			/* Guess a starting point for each region.  The last region
+			 * runs to the end of the records, wherever that is. */
+			final Region[] regions = new Region[threads];
+			RecursiveAction[] tasks = new RecursiveAction[threads];
+			for (int i = 0; i < threads; i++) {
+				final Region region = regions[i] = new Region();
+				final long guess = size * i / threads;
+				tasks[i] = new RecursiveAction() {
+					protected void compute() {
+						try {
+							region.start = findRecordStart(in, guess);
+						} catch (IOException ioException) {
+							region.error = ioException;
+						}
+					}
+				};
+			}
+			runAll(pool, tasks);
+
+			for (int i = 0; i < threads; i++) {
+				if (regions[i].error != null)
+					throw (IOException)regions[i].error;
+				if ((i > 0) && (regions[i].start < regions[i - 1].start))
+					regions[i].start = regions[i - 1].start;
+			}
+			for (int i = 0; i < threads - 1; i++)
+				regions[i].limit = regions[i + 1].start;
+			regions[threads - 1].limit = Long.MAX_VALUE;
+
+			/* First pass: count the records in every region. */
+			for (int i = 0; i < threads; i++) {
+				final Region region = regions[i];
+				tasks[i] = new RecursiveAction() {
+					protected void compute() {
+						try {
+							count(in, region, ignoreCdb);
+						} catch (Exception exception) {
+							region.error = exception;
+						}
+					}
+				};
+			}
+			runAll(pool, tasks);
+
+			/* Work out how many of the regions can be trusted.  Region
+			 * zero starts at a true boundary, and each later region
+			 * does too if the region before it ended exactly at its
+			 * start. */
+			int used = 0;
+			while (used < threads) {
+				Region region = regions[used++];
+				rethrow(region.error);
+
+				/* Stop at the end of the records. */
+				if (region.ended)
+					break;
+
+				/* A bad guess; parse everything from the start of this
+				 * region to the end of the records on this thread. */
+				if (region.end != region.limit) {
+					region.limit = Long.MAX_VALUE;
+					region.error = null;
+					count(in, region, ignoreCdb);
+					break;
+				}
+			}
+
+			/* Reserve space in the CDB file for every region. */
+			for (int i = 0; i < used; i++) {
+				regions[i].pos = cdbMake.position();
+				regions[i].index = cdbMake.reserve(
+					regions[i].length, regions[i].count);
+			}
+
+			/* Second pass: write out every region. */
+			tasks = new RecursiveAction[used];
+			for (int i = 0; i < used; i++) {
+				final Region region = regions[i];
+				tasks[i] = new RecursiveAction() {
+					protected void compute() {
+						try {
+							write(in, region, ignoreCdb, cdbMake);
+						} catch (Exception exception) {
+							region.error = exception;
+						}
+					}
+				};
+			}
+			runAll(pool, tasks);
+
+			for (int i = 0; i < used; i++) {
+				rethrow(regions[i].error);
+				cdbMake.addTableCounts(regions[i].tableCount);
+			}
+		} finally {
+			pool.shutdown();
+			try { file.close(); } catch (Exception ignored) {}
+		}
+	}
+
+
+	/**
+	 * Finds the first plausible record boundary at or after
+	 * <code>guess</code>.
+	 *
+	 * @param in The channel for the data file.
+	 * @param guess The position to start looking from.
+	 * @return The position of the boundary, or the size of the file if
+	 *  none could be found.
+	 * @exception java.io.IOException if an error occurs reading the data
+	 *  file.
+	 */
+	private static long findRecordStart(FileChannel in, long guess)
+		throws IOException
+	{
+		/* The first region always starts at the beginning. */
+		if (guess == 0)
+			return 0;
+
+		/* Look for a LF followed by a plus sign. */
+		ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+		long base = guess - 1;
+		for (;;) {
+			buf.clear();
+			int n = in.read(buf, base);
+			if (n < 2)
+				break;
+
+			byte[] b = buf.array();
+			for (int j = 0; j < n - 1; j++)
+				if ((b[j] == '\n') && (b[j + 1] == '+')
+						&& plausible(in, base + j + 1))
+					return base + j + 1;
+
+			base += n - 1;
+		}
+
+		return in.size();
+	}
+
+	/**
+	 * Returns <code>true</code> if several well-formed records (or the
+	 * end of the records) follow the given position.  Only the record
+	 * headers and separators are examined, so bogus lengths in a false
+	 * match cost nothing.
+	 *
+	 * @param in The channel for the data file.
+	 * @param pos The position to check.
+	 * @return <code>true</code> if <code>pos</code> looks like a
+	 *  record boundary.
+	 * @exception java.io.IOException if an error occurs reading the data
+	 *  file.
+	 */
+	private static boolean plausible(FileChannel in, long pos)
+		throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(32);
+		for (int i = 0; i < SYNC_RECORDS; i++) {
+			/* Read what should be a record header. */
+			buf.clear();
+			int n = in.read(buf, pos);
+			if ((n <= 0) || (buf.get(0) == '\n'))
+				return true;
+			if (buf.get(0) != '+')
+				return false;
+
+			/* Parse the key and data lengths. */
+			long klen = 0;
+			long dlen = 0;
+			int j = 1;
+			for (; (j < n) && (buf.get(j) >= '0') && (buf.get(j) <= '9'); j++)
+				klen = klen * 10 + (buf.get(j) - '0');
+			if ((j == 1) || (j >= n) || (buf.get(j++) != ','))
+				return false;
+
+			int digits = j;
+			for (; (j < n) && (buf.get(j) >= '0') && (buf.get(j) <= '9'); j++)
+				dlen = dlen * 10 + (buf.get(j) - '0');
+			if ((j == digits) || (j >= n) || (buf.get(j++) != ':'))
+				return false;
+
+			/* Check the key/data separator and the terminating LF. */
+			long sep = pos + j + klen;
+			if ((readByte(in, sep) != '-') || (readByte(in, sep + 1) != '>')
+					|| (readByte(in, sep + 2 + dlen) != '\n'))
+				return false;
+
+			pos = sep + 2 + dlen + 1;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads a single byte from the given position.
+	 *
+	 * @param in The channel to read.
+	 * @param pos The position to read from.
+	 * @return The byte, or -1 if <code>pos</code> is past the end of the
+	 *  channel.
+	 * @exception java.io.IOException if an error occurs reading the
+	 *  channel.
+	 */
+	private static int readByte(FileChannel in, long pos)
+		throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(1);
+		return in.read(buf, pos) == 1 ? buf.get(0) & 0xff : -1;
+	}
+
+	/**
+	 * Parses a region, counting its records and their total length in
+	 * the CDB file.
+	 *
+	 * @param in The channel for the data file.
+	 * @param region The region to count.
+	 * @param ignoreCdb The CDB file of data values to ignore, or
+	 *  <code>null</code>.
+	 * @exception java.io.IOException if an error occurs reading the data
+	 *  file.
+	 */
+	private static void count(FileChannel in, Region region,
+		Cdb ignoreCdb) throws IOException
+	{
+		CdbTextParser parser = new CdbTextParser(
+			new ChannelInputStream(in, region.start),
+			region.start, region.limit);
+
+		region.count = 0;
+		region.length = 0;
+		while (parser.next()) {
+			if ((ignoreCdb != null) && CdbMake.ignored(ignoreCdb, parser))
+				continue;
+
+			region.count++;
+			region.length += 8L + parser.keyLength() + parser.dataLength();
+		}
+
+		region.end = parser.position();
+		region.ended = parser.ended();
+	}
+
+	/**
+	 * Parses a region again, writing its records to the space reserved
+	 * for it and storing their hash pointers.
+	 *
+	 * @param in The channel for the data file.
+	 * @param region The region to write.
+	 * @param ignoreCdb The CDB file of data values to ignore, or
+	 *  <code>null</code>.
+	 * @param cdbMake The CdbMake object that the space was reserved in.
+	 * @exception java.io.IOException if an error occurs reading the data
+	 *  file or writing the CDB file.
+	 */
+	private static void write(FileChannel in, Region region,
+		Cdb ignoreCdb, CdbMake cdbMake) throws IOException
+	{
+		CdbTextParser parser = new CdbTextParser(
+			new ChannelInputStream(in, region.start),
+			region.start, region.limit);
+
+		FileChannel out = cdbMake.channel();
+		ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		long bufPos = region.pos;
+
+		long pos = region.pos;
+		int index = region.index;
+		while (parser.next()) {
+			if ((ignoreCdb != null) && CdbMake.ignored(ignoreCdb, parser))
+				continue;
+
+			byte[] b = parser.buffer();
+			int koff = parser.keyOffset();
+			int klen = parser.keyLength();
+			int doff = parser.dataOffset();
+			int dlen = parser.dataLength();
+
+			/* Make room for the record in the buffer. */
+			long reclen = 8L + klen + dlen;
+			if (reclen > buf.remaining())
+				bufPos = flush(out, buf, bufPos);
+
+			/* Collect the record in the buffer, or write it out on its
+			 * own if it is larger than the buffer. */
+			buf.putInt(klen);
+			buf.putInt(dlen);
+			if (reclen <= buf.capacity()) {
+				buf.put(b, koff, klen);
+				buf.put(b, doff, dlen);
+			} else {
+				bufPos = flush(out, buf, bufPos);
+				bufPos = writeFully(out, ByteBuffer.wrap(b, koff, klen),
+					bufPos);
+				bufPos = writeFully(out, ByteBuffer.wrap(b, doff, dlen),
+					bufPos);
+			}
+
+			/* Store the hash pointer. */
+			long hash = cdbMake.hashOf(b, koff, klen);
+			cdbMake.setHashPointer(index++, pos, hash);
+			region.tableCount[(int)hash & 0xff]++;
+
+			pos += reclen;
+		}
+		flush(out, buf, bufPos);
+	}
+
+	/**
+	 * Writes out the contents of <code>buf</code> at the given position
+	 * and empties it.
+	 *
+	 * @param out The channel to write to.
+	 * @param buf The buffer to write.
+	 * @param pos The position to write the buffer at.
+	 * @return The position following the written bytes.
+	 * @exception java.io.IOException if an error occurs writing to the
+	 *  channel.
+	 */
+	private static long flush(FileChannel out, ByteBuffer buf, long pos)
+		throws IOException
+	{
+		buf.flip();
+		pos = writeFully(out, buf, pos);
+		buf.clear();
+		return pos;
+	}
+
+	/**
+	 * Writes out the remaining bytes in <code>buf</code> at the given
+	 * position.
+	 *
+	 * @param out The channel to write to.
+	 * @param buf The buffer to write.
+	 * @param pos The position to write the buffer at.
+	 * @return The position following the written bytes.
+	 * @exception java.io.IOException if an error occurs writing to the
+	 *  channel.
+	 */
+	private static long writeFully(FileChannel out, ByteBuffer buf,
+		long pos) throws IOException
+	{
+		while (buf.hasRemaining())
+			pos += out.write(buf, pos);
+		return pos;
+	}
+
+	/**
+	 * Runs the given tasks in the pool and waits for all of them.
+	 *
+	 * @param pool The pool to run the tasks in.
+	 * @param tasks The tasks to run.
+	 */
+	private static void runAll(ForkJoinPool pool,
+		final RecursiveAction[] tasks)
+	{
+		pool.invoke(new RecursiveAction() {
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+	}
+
+	/**
+	 * Rethrows the given exception, if any.
+	 *
+	 * @param exception The exception to rethrow, or <code>null</code>.
+	 * @exception java.io.IOException if <code>exception</code> is an
+	 *  IOException.
+	 */
+	private static void rethrow(Exception exception) throws IOException {
+		if (exception instanceof IOException)
+			throw (IOException)exception;
+		if (exception instanceof RuntimeException)
+			throw (RuntimeException)exception;
+	}
+
+
+	/**
+	 * A region of the data file.
+	 */
+	private static final class Region {
+		/** The position of the first record in the region. */
+		long start = 0;
+
+		/** The position at which no record in the region may start. */
+		long limit = 0;
+
+		/** The position at which parsing the region stopped. */
+		long end = 0;
+
+		/** Set if the region contains the end of the records. */
+		boolean ended = false;
+
+		/** The number of records in the region. */
+		int count = 0;
+
+		/** The length of the region's records in the CDB file. */
+		long length = 0;
+
+		/** The position reserved for the region in the CDB file. */
+		long pos = 0;
+
+		/** The index of the region's first hash pointer. */
+		int index = 0;
+
+		/** The number of the region's records in each hash table. */
+		int[] tableCount = new int[256];
+
+		/** The error encountered processing the region, if any. */
+		Exception error = null;
+	}
+
+	/**
+	 * An InputStream which reads a FileChannel with positional reads,
+	 * so that several streams can share the channel.
+	 */
+	private static final class ChannelInputStream extends InputStream {
+		/** The channel to read. */
+		private final FileChannel channel_;
+
+		/** The position of the next byte to read. */
+		private long pos_;
+
+
+		/**
+		 * Creates a stream which reads <code>channel</code> starting
+		 * at <code>pos</code>.
+		 *
+		 * @param channel The channel to read.
+		 * @param pos The position of the first byte to read.
+		 */
+		ChannelInputStream(FileChannel channel, long pos) {
+			channel_ = channel;
+			pos_ = pos;
+		}
+
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			int count = channel_.read(ByteBuffer.wrap(b, off, len), pos_);
+			if (count > 0)
+				pos_ += count;
+			return count;
+		}
+	}
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * CdbScanner reads every record in a CDB file, in file order.  Records
+ * are read in large blocks through the database's store, so a scan is
+ * a sequential sweep of the file whether or not it is memory mapped.
+ * Records can be handed out as CdbElement objects through the
+ * <code>Iterator</code> interface or, without any per-record
+ * allocation, to a CdbRecordVisitor.
+ *
+ * <p>A scanner is not safe for use by several threads at once.
+ * Closing a scanner from <code>open</code> closes its file; a scanner
+ * from <code>Cdb.scan</code> leaves the Cdb open.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class CdbScanner implements Iterator<CdbElement>, Closeable {
+	/** The size of the blocks that records are read in. */
+	private static final int BLOCK_SIZE = 1 << 20;
+
+
+	/** The database being scanned. */
+	private Cdb cdb_ = null;
+
+	/** Set if the scanner opened the database itself. */
+	private final boolean owned_;
+
+	/** The position of the next record. */
+	private long pos_ = 0;
+
+	/** The position following the last record. */
+	private final long end_;
+
+	/** The block of records being scanned. */
+	private ByteBuffer block_ = null;
+
+	/** A read-only view of the block, handed to visitors. */
+	private ByteBuffer view_ = null;
+
+	/** The position in the file of the start of the block. */
+	private long blockPos_ = 0;
+
+	/** The dictionary that record data is compressed against, or
+	 * <code>null</code> if the data is not compressed. */
+	private final CdbDictionary dictionary_;
+
+	/** The key and decompressed data of the last record handed to a
+	 * visitor, if the data is compressed. */
+	private ByteBuffer record_ = null;
+
+
+	/**
+	 * Creates a scanner over the records of the given database.
+	 *
+	 * @param cdb The database to scan.
+	 * @param owned <code>true</code> if closing the scanner should
+	 *  close the database.
+	 */
+	CdbScanner(Cdb cdb, boolean owned) {
+		this(cdb, owned, cdb.dataStart(), cdb.dataEnd());
+	}
+
+	/**
+	 * Creates a scanner over the records in the given range of the
+	 * database.
+	 *
+	 * @param cdb The database to scan.
+	 * @param owned <code>true</code> if closing the scanner should
+	 *  close the database.
+	 * @param start The position of the first record to scan.
+	 * @param end The position following the last record to scan.
+	 */
+	CdbScanner(Cdb cdb, boolean owned, long start, long end) {
+		cdb_ = cdb;
+		owned_ = owned;
+		pos_ = start;
+		end_ = end;
+		dictionary_ = cdb.dictionary();
+
+		/* A small range, such as one split off by CdbSpliterator,
+		 * does not need a whole block. */
+		allocate((int)Math.min(BLOCK_SIZE, end - start));
+	}
+
+	/**
+	 * Opens the given CDB file and creates a scanner over its records.
+	 * Only the file itself is opened; its Bloom filter and key index
+	 * sidecars are not read.
+	 *
+	 * @param filepath The CDB file to scan.
+	 * @param flags Zero or more open flags (such as
+	 *  <code>Cdb.MMAP</code>) or'd together.
+	 * @return A scanner which closes the file when it is closed.
+	 * @exception java.io.IOException if the file could not be opened.
+	 */
+	public static CdbScanner open(String filepath, int flags)
+		throws IOException
+	{
+		return new CdbScanner(new Cdb(filepath, flags | Cdb.NO_SIDECARS),
+			true);
+	}
+
+
+	/**
+	 * Returns <code>true</code> if there are more records.
+	 *
+	 * @return <code>true</code> if there are more records.
+	 */
+	public boolean hasNext() {
+		return pos_ < end_;
+	}
+
+	/**
+	 * Returns the next record as a new CdbElement.
+	 *
+	 * @return The next record.
+	 * @exception java.util.NoSuchElementException if there are no more
+	 *  records.
+	 * @exception java.lang.IllegalArgumentException if the file is not
+	 *  a valid CDB file.
+	 */
+	public CdbElement next() {
+		int off = advance();
+		if (off < 0)
+			throw new NoSuchElementException();
+
+		int klen = block_.getInt(off);
+		int dlen = block_.getInt(off + 4);
+		byte[] key = new byte[klen];
+		byte[] data = new byte[dlen];
+		block_.position(off + 8);
+		block_.get(key);
+		block_.get(data);
+		if (dictionary_ != null)
+			data = decompress(data, 0, dlen);
+		return new CdbElement(key, data);
+	}
+
+	/**
+	 * Passes the next record to <code>visitor</code>.  Nothing is
+	 * allocated unless the record is larger than any seen before, or
+	 * the database is compressed and its data has to be decompressed.
+	 *
+	 * @param visitor The visitor to pass the record to.
+	 * @return <code>true</code> if a record was visited;
+	 *  <code>false</code> if there are no more records.
+	 * @exception java.lang.IllegalArgumentException if the file is not
+	 *  a valid CDB file.
+	 */
+	public boolean next(CdbRecordVisitor visitor) {
+		int off = advance();
+		if (off < 0)
+			return false;
+
+		int klen = block_.getInt(off);
+		int dlen = block_.getInt(off + 4);
+		if (dictionary_ == null) {
+			visitor.visit(view_, off + 8, klen, off + 8 + klen, dlen);
+			return true;
+		}
+
+		/* Put the key and the decompressed data side by side. */
+		byte[] data = decompress(block_.array(), off + 8 + klen, dlen);
+		if ((record_ == null) || (record_.capacity() < klen + data.length))
+			record_ = ByteBuffer.allocate(Math.max(klen + data.length,
+				record_ == null ? 256 : record_.capacity() * 2));
+		System.arraycopy(block_.array(), off + 8, record_.array(), 0, klen);
+		System.arraycopy(data, 0, record_.array(), klen, data.length);
+		visitor.visit(
+			record_.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN),
+			0, klen, klen, data.length);
+		return true;
+	}
+
+	/**
+	 * Passes every remaining record to <code>visitor</code>.
+	 *
+	 * @param visitor The visitor to pass the records to.
+	 * @exception java.lang.IllegalArgumentException if the file is not
+	 *  a valid CDB file.
+	 */
+	public void forEach(CdbRecordVisitor visitor) {
+		while (next(visitor))
+			/* Keep going. */;
+	}
+
+	/**
+	 * Returns the position of the next record.
+	 *
+	 * @return The position of the next record.
+	 */
+	long position() {
+		return pos_;
+	}
+
+	/**
+	 * Not supported.
+	 *
+	 * @exception java.lang.UnsupportedOperationException always.
+	 */
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Ends the scan, closing the file if the scanner opened it.
+	 */
+	public void close() {
+		if (owned_ && (cdb_ != null))
+			cdb_.close();
+		cdb_ = null;
+		pos_ = end_;
+	}
+
+
+	/**
+	 * Makes sure the next record is in the block and steps past it.
+	 *
+	 * @return The offset of the record in the block, or -1 if there
+	 *  are no more records.
+	 * @exception java.lang.IllegalArgumentException if the file is not
+	 *  a valid CDB file.
+	 */
+	private int advance() {
+		if (pos_ >= end_)
+			return -1;
+
+		try {
+			/* Read the lengths, then the whole record. */
+			ensure(8);
+			int off = (int)(pos_ - blockPos_);
+			int klen = block_.getInt(off);
+			int dlen = block_.getInt(off + 4);
+			long reclen = 8L + klen + dlen;
+			if ((klen < 0) || (dlen < 0) || (pos_ + reclen > end_)
+					|| (reclen > Integer.MAX_VALUE - 8))
+				throw new IllegalArgumentException("invalid cdb format");
+
+			ensure((int)reclen);
+			off = (int)(pos_ - blockPos_);
+			pos_ += reclen;
+			return off;
+		} catch (IOException ioException) {
+			throw new IllegalArgumentException("invalid cdb format");
+		}
+	}
+
+	/**
+	 * Makes sure that the <code>len</code> bytes at <code>pos_</code>
+	 * are in the block, reading a new block starting at
+	 * <code>pos_</code> if they are not.
+	 *
+	 * @param len The number of bytes needed.
+	 * @exception java.io.IOException if the file could not be read.
+	 */
+	private void ensure(int len) throws IOException {
+		if (pos_ + len <= blockPos_ + block_.limit())
+			return;
+
+		if (len > block_.capacity())
+			allocate(len);
+
+		if (end_ - pos_ < len)
+			throw new EOFException();
+		int count = (int)Math.min(block_.capacity(), end_ - pos_);
+		cdb_.readFully(pos_, block_.array(), 0, count);
+		block_.clear();
+		block_.limit(count);
+		blockPos_ = pos_;
+	}
+
+	/**
+	 * Decompresses the data of a record.
+	 *
+	 * @param b The array containing the compressed data.
+	 * @param off The offset of the compressed data in <code>b</code>.
+	 * @param len The length of the compressed data.
+	 * @return The decompressed data.
+	 * @exception java.lang.IllegalArgumentException if the compressed
+	 *  data is invalid.
+	 */
+	private byte[] decompress(byte[] b, int off, int len) {
+		try {
+			return dictionary_.decompress(b, off, len);
+		} catch (IOException ioException) {
+			throw new IllegalArgumentException("invalid cdb format");
+		}
+	}
+
+	/**
+	 * Replaces the block with an empty one of the given size.
+	 *
+	 * @param size The size of the block.
+	 */
+	private void allocate(int size) {
+		block_ = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		view_ = block_.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+		block_.limit(0);
+		blockPos_ = pos_;
+	}
+}
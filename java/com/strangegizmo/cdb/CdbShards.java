@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * CdbShards reads a sharded constant database: a manifest file which
+ * lists a number of ordinary CDB files, each holding the keys that are
+ * routed to it.  A key always lives in exactly one shard, so every
+ * lookup method behaves just like the matching method in
+ * {@link Cdb}.
+ *
+ * <p>The manifest is a text file.  Its first line is
+ * <code>cdbshards 1 fnv1a <i>n</i></code>, where <i>n</i> is the
+ * number of shards, and each of the following <i>n</i> lines names a
+ * shard.  Relative shard names are resolved against the directory
+ * containing the manifest.  Keys are routed by their 32-bit FNV-1a
+ * hash, which is independent of the CDB hash that picks a key's hash
+ * table within a shard.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class CdbShards {
+	/** The first word of the manifest header. */
+	static final String MAGIC = "cdbshards";
+
+	/** The version of the manifest format. */
+	static final String VERSION = "1";
+
+	/** The name of the hash function that routes keys to shards. */
+	static final String ROUTER = "fnv1a";
+
+
+	/** The shards. */
+	private Cdb[] shards_ = null;
+
+	/** The cursor used by the <code>findstart</code>/<code>findnext</code>
+	 * methods, or <code>null</code> if no search is in progress. */
+	private CdbCursor cursor_ = null;
+
+
+	/**
+	 * Opens the sharded constant database described by the given
+	 * manifest.
+	 *
+	 * @param manifestFilepath The path to the manifest file.
+	 * @exception java.io.IOException if the manifest or one of the
+	 *  shards could not be opened.
+	 */
+	public CdbShards(String manifestFilepath) throws IOException {
+		this(manifestFilepath, 0);
+	}
+
+	/**
+	 * Opens the sharded constant database described by the given
+	 * manifest, opening every shard with the given open flags.
+	 *
+	 * @param manifestFilepath The path to the manifest file.
+	 * @param flags Zero or more open flags (such as
+	 *  <code>Cdb.MMAP</code>) or'd together.
+	 * @exception java.io.IOException if the manifest or one of the
+	 *  shards could not be opened.
+	 */
+	public CdbShards(String manifestFilepath, int flags) throws IOException {
+		/* Read the manifest. */
+		String[] paths = readManifest(manifestFilepath);
+
+		/* Open the shards, closing the ones we opened if any of them
+		 * fail. */
+		shards_ = new Cdb[paths.length];
+		try {
+			for (int i = 0; i < paths.length; i++)
+				shards_[i] = new Cdb(paths[i], flags);
+		} catch (IOException ioException) {
+			close();
+			throw ioException;
+		}
+	}
+
+
+	/**
+	 * Closes every shard.
+	 */
+	public final void close() {
+		for (int i = 0; i < shards_.length; i++)
+			if (shards_[i] != null)
+				shards_[i].close();
+	}
+
+	/**
+	 * Returns the number of shards.
+	 *
+	 * @return The number of shards.
+	 */
+	public final int shardCount() {
+		return shards_.length;
+	}
+
+
+	/**
+	 * Prepares the class to search for the given key.
+	 *
+	 * @param key The key to search for.
+	 */
+	public final synchronized void findstart(byte[] key) {
+		cursor_ = null;
+	}
+
+	/**
+	 * Finds the first record stored under the given key.
+	 *
+	 * @param key The key to search for.
+	 * @return The record store under the given key, or
+	 *  <code>null</code> if no record with that key could be found.
+	 */
+	public final synchronized byte[] find(byte[] key) {
+		findstart(key);
+		return findnext(key);
+	}
+
+	/**
+	 * Finds the next record stored under the given key.  As with
+	 * {@link Cdb#findnext(byte[])}, the search position is shared by
+	 * every caller of this object.
+	 *
+	 * @param key The key to search for.
+	 * @return The next record store under the given key, or
+	 *  <code>null</code> if no record with that key could be found.
+	 */
+	public final synchronized byte[] findnext(byte[] key) {
+		if (cursor_ == null)
+			cursor_ = findAll(key);
+
+		/* Report read errors as a missing record, as Cdb does. */
+		try {
+			return cursor_.next();
+		} catch (UncheckedIOException ignored) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Finds the first record stored under the given key.
+	 *
+	 * @param key The key to search for.
+	 * @return The record stored under the given key, or
+	 *  <code>null</code> if no record with that key could be found.
+	 * @see Cdb#get(byte[])
+	 */
+	public final byte[] get(byte[] key) {
+		return shardFor(key).get(key);
+	}
+
+	/**
+	 * Finds the first record stored under the given key and returns a
+	 * read-only view of its data.
+	 *
+	 * @param key The key to search for.
+	 * @return A read-only buffer containing the record stored under
+	 *  the given key, or <code>null</code> if no record with that key
+	 *  could be found.
+	 * @see Cdb#getBuffer(byte[])
+	 */
+	public final ByteBuffer getBuffer(byte[] key) {
+		return shardFor(key).getBuffer(key);
+	}
+
+	/**
+	 * Finds the first record stored under the given key and passes its
+	 * data to <code>visitor</code>.
+	 *
+	 * @param key The key to search for.
+	 * @param visitor The visitor to pass the record's data to.
+	 * @return <code>true</code> if a record was found and visited;
+	 *  <code>false</code> otherwise.
+	 * @see Cdb#get(byte[], CdbDataVisitor)
+	 */
+	public final boolean get(byte[] key, CdbDataVisitor visitor) {
+		return shardFor(key).get(key, visitor);
+	}
+
+	/**
+	 * Finds the first record stored under each of the given keys.  The
+	 * keys are grouped by shard and each group is looked up with a
+	 * single {@link Cdb#getAll(byte[][])} call.
+	 *
+	 * @param keys The keys to search for.
+	 * @return An array containing, for each key in <code>keys</code>,
+	 *  the record stored under that key, or <code>null</code> if no
+	 *  record with that key could be found.
+	 */
+	public final byte[][] getAll(byte[][] keys) {
+		/* Count the keys routed to each shard. */
+		int n = shards_.length;
+		int[] shard = new int[keys.length];
+		int[] count = new int[n];
+		for (int i = 0; i < keys.length; i++)
+			count[shard[i] = route(keys[i], 0, keys[i].length, n)]++;
+
+		/* Group the keys by shard, remembering where each came from. */
+		int[][] index = new int[n][];
+		byte[][][] group = new byte[n][][];
+		for (int s = 0; s < n; s++) {
+			index[s] = new int[count[s]];
+			group[s] = new byte[count[s]][];
+			count[s] = 0;
+		}
+		for (int i = 0; i < keys.length; i++) {
+			int s = shard[i];
+			index[s][count[s]] = i;
+			group[s][count[s]++] = keys[i];
+		}
+
+		/* Look up each group and scatter the results. */
+		byte[][] results = new byte[keys.length][];
+		for (int s = 0; s < n; s++) {
+			if (count[s] == 0)
+				continue;
+
+			byte[][] found = shards_[s].getAll(group[s]);
+			for (int j = 0; j < found.length; j++)
+				results[index[s][j]] = found[j];
+		}
+
+		return results;
+	}
+
+	/**
+	 * Returns a cursor over every record stored under the given key.
+	 *
+	 * @param key The key to search for.
+	 * @return A cursor over the records stored under <code>key</code>.
+	 * @see Cdb#findAll(byte[])
+	 */
+	public final CdbCursor findAll(byte[] key) {
+		return shardFor(key).findAll(key);
+	}
+
+
+	/**
+	 * Returns the shard which holds the given key.
+	 *
+	 * @param key The key.
+	 * @return The shard that <code>key</code> is routed to.
+	 */
+	private Cdb shardFor(byte[] key) {
+		return shards_[route(key, 0, key.length, shards_.length)];
+	}
+
+	/**
+	 * Routes the key stored in the given range of <code>key</code> to
+	 * a shard.  The key's 32-bit FNV-1a hash is scaled onto the number
+	 * of shards, so the route depends on the high bits of the hash.
+	 *
+	 * @param key The array containing the key.
+	 * @param off The offset of the key in <code>key</code>.
+	 * @param len The length of the key.
+	 * @param shards The number of shards.
+	 * @return The number of the shard that the key belongs in.
+	 */
+	static int route(byte[] key, int off, int len, int shards) {
+		int h = 0x811c9dc5;
+		for (int i = off; i < off + len; i++) {
+			h ^= key[i] & 0xff;
+			h *= 0x01000193;
+		}
+		return (int)(((h & 0xffffffffL) * shards) >>> 32);
+	}
+
+	/**
+	 * Reads the given manifest, returning the paths of its shards.
+	 *
+	 * @param manifestFilepath The path to the manifest file.
+	 * @return The paths of the shards, in order.
+	 * @exception java.io.IOException if the manifest could not be read
+	 *  or is not a valid manifest.
+	 */
+	private static String[] readManifest(String manifestFilepath)
+		throws IOException
+	{
+		File dir = new File(manifestFilepath).getAbsoluteFile()
+			.getParentFile();
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+			new FileInputStream(manifestFilepath), "UTF-8"));
+		try {
+			/* Check the header. */
+			String line = in.readLine();
+			String[] header = line == null ? new String[0] : line.split(" ");
+			if ((header.length != 4) || !header[0].equals(MAGIC)
+					|| !header[1].equals(VERSION)
+					|| !header[2].equals(ROUTER))
+				throw new IOException("invalid cdb shard manifest");
+
+			int count;
+			try {
+				count = Integer.parseInt(header[3]);
+			} catch (NumberFormatException numberFormatException) {
+				throw new IOException("invalid cdb shard manifest");
+			}
+			if (count < 1)
+				throw new IOException("invalid cdb shard manifest");
+
+			/* Read the shard names. */
+			String[] paths = new String[count];
+			for (int i = 0; i < count; i++) {
+				line = in.readLine();
+				if ((line == null) || (line.length() == 0))
+					throw new IOException("invalid cdb shard manifest");
+
+				File shard = new File(line);
+				if (!shard.isAbsolute())
+					shard = new File(dir, line);
+				paths[i] = shard.getPath();
+			}
+
+			return paths;
+		} finally {
+			try { in.close(); } catch (Exception ignored) {}
+		}
+	}
+}
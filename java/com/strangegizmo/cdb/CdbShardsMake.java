@@ -0,0 +1,497 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * CdbShardsMake creates a sharded constant database (see
+ * {@link CdbShards}).  Each shard is built by its own CdbMake object
+ * on its own thread: records are routed to their shard and handed to
+ * that shard's thread in batches, and the shards' hash tables are then
+ * built at the same time.  Records stay in the order they were added
+ * within each shard, so duplicate keys are found in the same order as
+ * in an unsharded file.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class CdbShardsMake {
+	/** The size of the batches that records are handed to the shard
+	 * threads in. */
+	private static final int BATCH_SIZE = 1 << 20;
+
+	/** The number of batches per shard that may be waiting for the
+	 * shard's thread before <code>add</code> blocks. */
+	private static final int BATCHES_PER_SHARD = 2;
+
+
+	/** The number of shards. */
+	private final int count_;
+
+	/** The format flags passed to each shard's CdbMake object. */
+	private final int flags_;
+
+
+	/** The path to the manifest file. */
+	private String manifestFilepath_ = null;
+
+	/** The paths of the shards. */
+	private String[] paths_ = null;
+
+	/** The CdbMake object for each shard. */
+	private CdbMake[] makes_ = null;
+
+	/** The thread for each shard. */
+	private ExecutorService[] threads_ = null;
+
+	/** The batch being collected for each shard. */
+	private ByteBuffer[] batches_ = null;
+
+	/** Limits the number of batches waiting for the shard threads. */
+	private Semaphore pending_ = null;
+
+	/** The first error reported by a shard thread. */
+	private volatile Throwable error_ = null;
+
+
+	/**
+	 * Constructs a CdbShardsMake object and prepares it for the creation
+	 * of a sharded constant database.
+	 *
+	 * @param count The number of shards.
+	 */
+	public CdbShardsMake(int count) {
+		this(count, 0);
+	}
+
+	/**
+	 * Constructs a CdbShardsMake object and prepares it for the creation
+	 * of a sharded constant database whose shards have the given
+	 * format flags.
+	 *
+	 * @param count The number of shards.
+	 * @param flags Zero or more format flags (such as
+	 *  <code>CdbMake.CDB64</code>) or'd together.
+	 */
+	public CdbShardsMake(int count, int flags) {
+		if (count < 1)
+			throw new IllegalArgumentException("count must be positive");
+
+		count_ = count;
+		flags_ = flags;
+	}
+
+
+	/**
+	 * Begins the sharded constant database creation process.  Shard
+	 * <i>i</i> is written to <code>manifestFilepath.</code><i>i</i>,
+	 * through a temporary file, and the manifest itself is written
+	 * last by <code>finish</code>.
+	 *
+	 * @param manifestFilepath The path to the manifest to create.
+	 * @exception java.io.IOException If an error occurs creating the
+	 *  shard files.
+	 */
+	public void start(String manifestFilepath) throws IOException {
+		manifestFilepath_ = manifestFilepath;
+		paths_ = new String[count_];
+		makes_ = new CdbMake[count_];
+		threads_ = new ExecutorService[count_];
+		batches_ = new ByteBuffer[count_];
+		pending_ = new Semaphore(count_ * BATCHES_PER_SHARD);
+		error_ = null;
+
+		/* The shard threads are daemon threads, so that a build which
+		 * is never finished or aborted cannot keep the JVM alive. */
+		ThreadFactory threadFactory = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CdbShardsMake "
+					+ manifestFilepath_);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+
+		try {
+			for (int i = 0; i < count_; i++) {
+				paths_[i] = manifestFilepath + "." + i;
+				threads_[i] = Executors.newSingleThreadExecutor(
+					threadFactory);
+				makes_[i] = new CdbMake(flags_);
+				makes_[i].start(paths_[i] + ".tmp");
+				batches_[i] = ByteBuffer.allocate(BATCH_SIZE);
+			}
+		} catch (IOException | RuntimeException exception) {
+			abort();
+			throw exception;
+		}
+	}
+
+	/**
+	 * Adds a key to the sharded constant database.
+	 *
+	 * @param key The key to add to the database.
+	 * @param data The data associated with this key.
+	 * @exception java.io.IOException If an error occurs adding the key
+	 *  to the database.
+	 */
+	public void add(byte[] key, byte[] data) throws IOException {
+		add(key, 0, key.length, data, 0, data.length);
+	}
+
+	/**
+	 * Adds a key to the sharded constant database, taking the key and
+	 * data from ranges of the given arrays.
+	 *
+	 * @param key The array containing the key.
+	 * @param koff The offset of the key in <code>key</code>.
+	 * @param klen The length of the key.
+	 * @param data The array containing the data.
+	 * @param doff The offset of the data in <code>data</code>.
+	 * @param dlen The length of the data.
+	 * @exception java.io.IOException If an error occurs adding the key
+	 *  to the database.
+	 */
+	void add(byte[] key, int koff, int klen, byte[] data, int doff,
+		int dlen) throws IOException
+	{
+		checkError();
+
+		/* Make room for the record in its shard's batch.  A record
+		 * larger than a batch gets a batch of its own. */
+		int shard = CdbShards.route(key, koff, klen, count_);
+		long reclen = 8L + klen + dlen;
+		if (reclen > batches_[shard].remaining()) {
+			submit(shard);
+			if (reclen > BATCH_SIZE) {
+				if (reclen > Integer.MAX_VALUE)
+					throw new IOException("record is too big");
+				batches_[shard] = ByteBuffer.allocate((int)reclen);
+			}
+		}
+
+		/* Collect the record. */
+		ByteBuffer batch = batches_[shard];
+		batch.putInt(klen);
+		batch.putInt(dlen);
+		batch.put(key, koff, klen);
+		batch.put(data, doff, dlen);
+	}
+
+	/**
+	 * Finalizes the sharded constant database.  The shards' hash tables
+	 * are built at the same time, after which the shards are renamed
+	 * into place and the manifest is written.  If this fails, the
+	 * build is aborted (see <code>abort</code>).
+	 *
+	 * @exception java.io.IOException If an error occurs closing out the
+	 *  database.
+	 */
+	public void finish() throws IOException {
+		boolean finished = false;
+		try {
+			finishShards();
+			finished = true;
+		} finally {
+			if (!finished)
+				abort();
+		}
+	}
+
+	/**
+	 * Abandons the sharded constant database being created.  The shard
+	 * threads are stopped and the shards' temporary files are deleted.
+	 * Files from an earlier build under the same name are left alone.
+	 * Does nothing if the build has already finished or been aborted.
+	 */
+	public void abort() {
+		if (threads_ == null)
+			return;
+
+		/* Stop the shard threads, discarding their pending batches. */
+		boolean interrupted = false;
+		for (int i = 0; i < count_; i++)
+			if (threads_[i] != null)
+				threads_[i].shutdownNow();
+		for (int i = 0; i < count_; i++) {
+			while (threads_[i] != null) {
+				try {
+					threads_[i].awaitTermination(Long.MAX_VALUE,
+						TimeUnit.NANOSECONDS);
+					break;
+				} catch (InterruptedException interruptedException) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		/* Remove the temporary files. */
+		for (int i = 0; i < count_; i++)
+			if (makes_[i] != null)
+				makes_[i].abort();
+
+		makes_ = null;
+		threads_ = null;
+		batches_ = null;
+	}
+
+
+	/**
+	 * Finishes every shard, renames the shards into place and writes
+	 * the manifest.
+	 *
+	 * @exception java.io.IOException If an error occurs closing out the
+	 *  database.
+	 */
+	private void finishShards() throws IOException {
+		/* Hand over the last batches and finish every shard on its own
+		 * thread. */
+		try {
+			for (int i = 0; i < count_; i++) {
+				submit(i);
+
+				final CdbMake cdbMake = makes_[i];
+				threads_[i].execute(new Runnable() {
+					public void run() {
+						try {
+							cdbMake.finish();
+						} catch (Throwable throwable) {
+							fail(throwable);
+						}
+					}
+				});
+			}
+		} finally {
+			/* Wait for the shard threads. */
+			for (int i = 0; i < count_; i++) {
+				threads_[i].shutdown();
+				try {
+					threads_[i].awaitTermination(Long.MAX_VALUE,
+						TimeUnit.NANOSECONDS);
+				} catch (InterruptedException interruptedException) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+
+		checkError();
+
+		/* Rename the shards. */
+		for (int i = 0; i < count_; i++)
+			CdbMake.rename(paths_[i] + ".tmp", paths_[i]);
+
+		/* Write the manifest.  Shards are named relative to it. */
+		File manifest = new File(manifestFilepath_);
+		File tmp = new File(manifestFilepath_ + ".tmp");
+		Writer out = new OutputStreamWriter(
+			new FileOutputStream(tmp), "UTF-8");
+		try {
+			out.write(CdbShards.MAGIC + " " + CdbShards.VERSION + " "
+				+ CdbShards.ROUTER + " " + count_ + "\n");
+			for (int i = 0; i < count_; i++)
+				out.write(new File(paths_[i]).getName() + "\n");
+		} finally {
+			out.close();
+		}
+		tmp.renameTo(manifest);
+
+		makes_ = null;
+		threads_ = null;
+		batches_ = null;
+	}
+
+
+	/**
+	 * Hands the given shard's batch over to the shard's thread and
+	 * starts a new batch.  Blocks while too many batches are waiting.
+	 *
+	 * @param shard The number of the shard.
+	 * @exception java.io.IOException If the wait is interrupted.
+	 */
+	private void submit(int shard) throws IOException {
+		final ByteBuffer batch = batches_[shard];
+		if (batch.position() == 0)
+			return;
+
+		try {
+			pending_.acquire();
+		} catch (InterruptedException interruptedException) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		final CdbMake cdbMake = makes_[shard];
+		threads_[shard].execute(new Runnable() {
+			public void run() {
+				try {
+					if (error_ == null)
+						addBatch(cdbMake, batch);
+				} catch (Throwable throwable) {
+					fail(throwable);
+				} finally {
+					pending_.release();
+				}
+			}
+		});
+
+		batches_[shard] = ByteBuffer.allocate(BATCH_SIZE);
+	}
+
+	/**
+	 * Adds the records in a batch to a shard.
+	 *
+	 * @param cdbMake The shard's CdbMake object.
+	 * @param batch The batch of records.
+	 * @exception java.io.IOException If an error occurs adding the
+	 *  records.
+	 */
+	private static void addBatch(CdbMake cdbMake, ByteBuffer batch)
+		throws IOException
+	{
+		byte[] b = batch.array();
+		int end = batch.position();
+		for (int pos = 0; pos < end; /* below */) {
+			int klen = batch.getInt(pos);
+			int dlen = batch.getInt(pos + 4);
+			int koff = pos + 8;
+			int doff = koff + klen;
+			cdbMake.add(b, koff, klen, b, doff, dlen);
+			pos = doff + dlen;
+		}
+	}
+
+	/**
+	 * Records the first error reported by a shard thread.
+	 *
+	 * @param throwable The error.
+	 */
+	private synchronized void fail(Throwable throwable) {
+		if (error_ == null)
+			error_ = throwable;
+	}
+
+	/**
+	 * Rethrows the first error reported by a shard thread, if there was
+	 * one.  Unchecked exceptions and errors are rethrown as they are;
+	 * anything else is wrapped in an IOException.
+	 *
+	 * @exception java.io.IOException If a shard thread failed.
+	 */
+	private void checkError() throws IOException {
+		Throwable error = error_;
+		if (error == null)
+			return;
+
+		if (error instanceof IOException)
+			throw (IOException)error;
+		if (error instanceof RuntimeException)
+			throw (RuntimeException)error;
+		if (error instanceof Error)
+			throw (Error)error;
+		throw new IOException("shard build failed", error);
+	}
+
+
+	/**
+	 * Builds a sharded CDB file from a CDB-format text file.
+	 *
+	 * @param dataFilepath The CDB data file to read.
+	 * @param manifestFilepath The manifest to create.
+	 * @param count The number of shards.
+	 * @exception java.io.IOException if an error occurs building the
+	 *  shards.
+	 */
+	public static void make(String dataFilepath, String manifestFilepath,
+		int count) throws IOException
+	{
+		make(dataFilepath, manifestFilepath, count, null, 0);
+	}
+
+	/**
+	 * Builds a sharded CDB file from a CDB-format text file, excluding
+	 * records with data matching keys in `ignoreCdb'.
+	 *
+	 * @param dataFilepath The CDB data file to read.
+	 * @param manifestFilepath The manifest to create.
+	 * @param count The number of shards.
+	 * @param ignoreCdb If the data for an entry matches a key in this
+	 *  CDB file, the entry will not be added to the new file.  May be
+	 *  <code>null</code>.
+	 * @param flags Zero or more format flags (such as
+	 *  <code>CdbMake.CDB64</code>) or'd together.
+	 * @exception java.io.IOException if an error occurs building the
+	 *  shards.
+	 */
+	public static void make(String dataFilepath, String manifestFilepath,
+		int count, Cdb ignoreCdb, int flags) throws IOException
+	{
+		/* Create the shards. */
+		CdbShardsMake shardsMake = new CdbShardsMake(count, flags);
+		shardsMake.start(manifestFilepath);
+
+		/* Process the data file, abandoning the shards if it cannot be
+		 * read or parsed. */
+		InputStream in = null;
+		boolean added = false;
+		try {
+			in = new FileInputStream(dataFilepath);
+			CdbTextParser parser = new CdbTextParser(in);
+			while (parser.next()) {
+				if ((ignoreCdb == null)
+						|| !CdbMake.ignored(ignoreCdb, parser)) {
+					byte[] buf = parser.buffer();
+					shardsMake.add(
+						buf, parser.keyOffset(), parser.keyLength(),
+						buf, parser.dataOffset(), parser.dataLength());
+				}
+			}
+			added = true;
+		} finally {
+			if (in != null)
+				try { in.close(); } catch (Exception ignored) {}
+			if (!added)
+				shardsMake.abort();
+		}
+
+		/* Finish the shards and write the manifest. */
+		shardsMake.finish();
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * CdbSpliterator splits the records of a CDB file across threads.
+ * Record boundaries cannot be found in the middle of the data without
+ * parsing from its start, but every hash table entry points at one, so
+ * a small sample of the hash tables gives a set of known boundaries
+ * spread evenly (hash order is unrelated to file order) over the whole
+ * file.  Each split cuts its range at the sampled boundary nearest its
+ * middle, and each piece is then read in blocks by its own scanner.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+final class CdbSpliterator implements Spliterator<CdbElement> {
+	/** The number of hash table entries sampled from each table. */
+	private static final int SAMPLE_ENTRIES = 64;
+
+
+	/** The database being scanned. */
+	private final Cdb cdb_;
+
+	/** The sampled record boundaries, sorted. */
+	private final long[] boundaries_;
+
+	/** The mean size of a record, for size estimates. */
+	private final double recordSize_;
+
+	/** The position of the first record in this range. */
+	private long start_;
+
+	/** The position following the last record in this range. */
+	private final long end_;
+
+	/** The index of the first boundary after <code>start_</code>. */
+	private int lo_;
+
+	/** The index following the last boundary before
+	 * <code>end_</code>. */
+	private final int hi_;
+
+	/** The scanner for this range, created when traversal begins. */
+	private CdbScanner scanner_ = null;
+
+
+	/**
+	 * Creates a spliterator over every record in the given database.
+	 *
+	 * @param cdb The database to scan.
+	 * @exception java.io.IOException if the hash tables could not be
+	 *  read.
+	 */
+	CdbSpliterator(Cdb cdb) throws IOException {
+		cdb_ = cdb;
+		start_ = cdb.dataStart();
+		end_ = cdb.dataEnd();
+		boundaries_ = sample(cdb, start_, end_);
+		lo_ = 0;
+		hi_ = boundaries_.length;
+
+		long records = 0;
+		for (int i = 0; i < 256; i++)
+			records += cdb.tableSlots(i) / 2;
+		recordSize_ = records == 0
+			? 1 : Math.max(1.0, (double)(end_ - start_) / records);
+	}
+
+	/**
+	 * Creates a spliterator over part of another's range.
+	 *
+	 * @param parent The spliterator being split.
+	 * @param end The position following the last record.
+	 * @param hi The index following the last boundary in the range.
+	 */
+	private CdbSpliterator(CdbSpliterator parent, long end, int hi) {
+		cdb_ = parent.cdb_;
+		boundaries_ = parent.boundaries_;
+		recordSize_ = parent.recordSize_;
+		start_ = parent.start_;
+		end_ = end;
+		lo_ = parent.lo_;
+		hi_ = hi;
+	}
+
+
+	public boolean tryAdvance(Consumer<? super CdbElement> action) {
+		CdbScanner scanner = scanner();
+		if (!scanner.hasNext())
+			return false;
+
+		action.accept(scanner.next());
+		return true;
+	}
+
+	public void forEachRemaining(Consumer<? super CdbElement> action) {
+		CdbScanner scanner = scanner();
+		while (scanner.hasNext())
+			action.accept(scanner.next());
+	}
+
+	public Spliterator<CdbElement> trySplit() {
+		/* Only unstarted ranges with a boundary inside them split. */
+		if ((scanner_ != null) || (lo_ >= hi_))
+			return null;
+
+		/* Cut at the boundary nearest the middle of the range. */
+		long middle = start_ + ((end_ - start_) >>> 1);
+		int mid = Arrays.binarySearch(boundaries_, lo_, hi_, middle);
+		if (mid < 0) {
+			mid = -mid - 1;
+			if ((mid == hi_) || ((mid > lo_)
+					&& (middle - boundaries_[mid - 1]
+						< boundaries_[mid] - middle)))
+				mid--;
+		}
+
+		/* The front half goes to the new spliterator. */
+		CdbSpliterator prefix = new CdbSpliterator(this, boundaries_[mid], mid);
+		start_ = boundaries_[mid];
+		lo_ = mid + 1;
+		return prefix;
+	}
+
+	public long estimateSize() {
+		long pos = scanner_ == null ? start_ : scanner_.position();
+		return (long)Math.ceil((end_ - pos) / recordSize_);
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL | IMMUTABLE;
+	}
+
+
+	/**
+	 * Returns the scanner for this range, creating it if necessary.
+	 *
+	 * @return The scanner.
+	 */
+	private CdbScanner scanner() {
+		if (scanner_ == null)
+			scanner_ = new CdbScanner(cdb_, false, start_, end_);
+		return scanner_;
+	}
+
+	/**
+	 * Samples record boundaries from the hash tables: a run of entries
+	 * from the middle of each table.
+	 *
+	 * @param cdb The database.
+	 * @param start The position of the first record.
+	 * @param end The position following the last record.
+	 * @return The distinct sampled boundaries strictly between
+	 *  <code>start</code> and <code>end</code>, sorted.
+	 * @exception java.io.IOException if the hash tables could not be
+	 *  read.
+	 */
+	private static long[] sample(Cdb cdb, long start, long end)
+		throws IOException
+	{
+		int entrySize = cdb.entrySize();
+		byte[] block = new byte[SAMPLE_ENTRIES * entrySize];
+		ByteBuffer buf = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+
+		long[] boundaries = new long[256 * SAMPLE_ENTRIES];
+		int count = 0;
+		for (int i = 0; i < 256; i++) {
+			int slots = cdb.tableSlots(i);
+			int n = Math.min(slots, SAMPLE_ENTRIES);
+			if (n == 0)
+				continue;
+
+			long first = cdb.tablePosition(i)
+				+ (long)((slots - n) / 2) * entrySize;
+			cdb.readFully(first, block, 0, n * entrySize);
+			for (int j = 0; j < n; j++) {
+				long pos = entrySize == 16
+					? buf.getLong((j * 16) + 8)
+					: buf.getInt((j * 8) + 4) & 0xffffffffL;
+				if ((pos > start) && (pos < end))
+					boundaries[count++] = pos;
+			}
+		}
+
+		/* Sort and remove duplicates. */
+		Arrays.sort(boundaries, 0, count);
+		int distinct = 0;
+		for (int i = 0; i < count; i++)
+			if ((distinct == 0) || (boundaries[i] != boundaries[distinct - 1]))
+				boundaries[distinct++] = boundaries[i];
+		return Arrays.copyOf(boundaries, distinct);
+	}
+}
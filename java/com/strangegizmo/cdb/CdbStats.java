@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * CdbStats describes the structure of a constant database: how many
+ * records it holds, how big their keys and values are, how full each
+ * of its 256 hash tables is and how far each key had to be placed from
+ * the slot at which the search for it begins.  A key placed
+ * <i>n</i> slots away needs <i>n</i>&nbsp;+&nbsp;1 hash table reads to
+ * be found, so the probe distances show how well a key set suits the
+ * CDB hash function.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class CdbStats {
+	/** The number of hash table entries read at a time. */
+	private static final int BLOCK_ENTRIES = 8192;
+
+	/** The number of size histogram buckets: one for zero and one for
+	 * each power of two. */
+	private static final int SIZE_BUCKETS = 33;
+
+
+	/** The number of records. */
+	private long records_ = 0;
+
+	/** The number of slots in each hash table. */
+	private final int[] tableSlots_ = new int[256];
+
+	/** The number of records in each hash table. */
+	private final long[] tableRecords_ = new long[256];
+
+	/** The largest probe distance in each hash table. */
+	private final int[] tableMaxProbe_ = new int[256];
+
+	/** The histogram of key sizes. */
+	private final long[] keySizes_ = new long[SIZE_BUCKETS];
+
+	/** The histogram of value sizes. */
+	private final long[] valueSizes_ = new long[SIZE_BUCKETS];
+
+	/** The total size of the keys. */
+	private long keyBytes_ = 0;
+
+	/** The total size of the values. */
+	private long valueBytes_ = 0;
+
+	/** The histogram of probe distances. */
+	private long[] probes_ = new long[1];
+
+	/** The number of hash table reads needed by a missing key, summed
+	 * over every starting slot of every hash table. */
+	private double missReads_ = 0;
+
+	/** The size of the Bloom filter. */
+	private long bloomFilterSize_ = 0;
+
+
+	/**
+	 * Creates an empty CdbStats object.  Use <code>analyze</code> to
+	 * gather statistics.
+	 */
+	private CdbStats() {}
+
+
+	/**
+	 * Gathers statistics about the given CDB file.
+	 *
+	 * @param filepath The CDB file to analyze.
+	 * @return The statistics for the file.
+	 * @exception java.io.IOException if the file could not be read.
+	 */
+	public static CdbStats analyze(String filepath) throws IOException {
+		Cdb cdb = new Cdb(filepath);
+		try {
+			return analyze(cdb);
+		} finally {
+			cdb.close();
+		}
+	}
+
+	/**
+	 * Gathers statistics about the given open CDB file by walking its
+	 * hash tables and reading the header of every record.
+	 *
+	 * @param cdb The CDB file to analyze.
+	 * @return The statistics for the file.
+	 * @exception java.io.IOException if the file could not be read.
+	 */
+	public static CdbStats analyze(Cdb cdb) throws IOException {
+		CdbStats stats = new CdbStats();
+		for (int i = 0; i < 256; i++)
+			stats.analyzeTable(cdb, i);
+		stats.bloomFilterSize_ = cdb.bloomFilterSize();
+		return stats;
+	}
+
+
+	/**
+	 * Returns the number of records.
+	 *
+	 * @return The number of records.
+	 */
+	public final long getRecordCount() {
+		return records_;
+	}
+
+	/**
+	 * Returns the number of slots in the given hash table.
+	 *
+	 * @param table The number of the hash table.
+	 * @return The number of slots in the hash table.
+	 */
+	public final int getTableSlots(int table) {
+		return tableSlots_[table];
+	}
+
+	/**
+	 * Returns the number of records in the given hash table.
+	 *
+	 * @param table The number of the hash table.
+	 * @return The number of records in the hash table.
+	 */
+	public final long getTableRecords(int table) {
+		return tableRecords_[table];
+	}
+
+	/**
+	 * Returns the largest probe distance in the given hash table.
+	 *
+	 * @param table The number of the hash table.
+	 * @return The largest probe distance in the hash table.
+	 */
+	public final int getTableMaxProbe(int table) {
+		return tableMaxProbe_[table];
+	}
+
+	/**
+	 * Returns the histogram of key sizes.  Bucket zero counts empty
+	 * keys and bucket <i>b</i> counts keys of at least
+	 * 2<sup><i>b</i>-1</sup> and less than 2<sup><i>b</i></sup> bytes.
+	 *
+	 * @return The histogram of key sizes.
+	 */
+	public final long[] getKeySizeHistogram() {
+		return keySizes_.clone();
+	}
+
+	/**
+	 * Returns the histogram of value sizes, bucketed in the same way as
+	 * <code>getKeySizeHistogram</code>.
+	 *
+	 * @return The histogram of value sizes.
+	 */
+	public final long[] getValueSizeHistogram() {
+		return valueSizes_.clone();
+	}
+
+	/**
+	 * Returns the mean key size.
+	 *
+	 * @return The mean key size in bytes.
+	 */
+	public final double getMeanKeySize() {
+		return records_ == 0 ? 0 : (double)keyBytes_ / records_;
+	}
+
+	/**
+	 * Returns the mean value size.
+	 *
+	 * @return The mean value size in bytes.
+	 */
+	public final double getMeanValueSize() {
+		return records_ == 0 ? 0 : (double)valueBytes_ / records_;
+	}
+
+	/**
+	 * Returns the histogram of probe distances: element <i>n</i> is the
+	 * number of records placed <i>n</i> slots after the slot at which
+	 * the search for their key begins.
+	 *
+	 * @return The histogram of probe distances.
+	 */
+	public final long[] getProbeHistogram() {
+		int max = 0;
+		for (int i = 0; i < 256; i++)
+			max = Math.max(max, tableMaxProbe_[i]);
+		return Arrays.copyOf(probes_, max + 1);
+	}
+
+	/**
+	 * Returns the share of records which need more than one hash table
+	 * read to be found.
+	 *
+	 * @return The share of records with a non-zero probe distance,
+	 *  between 0 and 1.
+	 */
+	public final double getMultiReadShare() {
+		return records_ == 0 ? 0 : (double)(records_ - probes_[0]) / records_;
+	}
+
+	/**
+	 * Returns the mean number of hash table reads needed by a lookup of
+	 * a missing key, assuming its hash value is uniformly distributed.
+	 *
+	 * @return The mean number of hash table reads for a missing key.
+	 */
+	public final double getMeanMissReads() {
+		return missReads_ / 256;
+	}
+
+	/**
+	 * Returns the memory used by the database's Bloom filter.
+	 *
+	 * @return The size of the Bloom filter in bytes, or zero if the
+	 *  database has no Bloom filter.
+	 */
+	public final long getBloomFilterSize() {
+		return bloomFilterSize_;
+	}
+
+	/**
+	 * Prints a report of the statistics.
+	 *
+	 * @param out The stream to print the report to.
+	 */
+	public final void print(PrintStream out) {
+		out.println("records: " + records_);
+		out.println("key size: mean " + format(getMeanKeySize()));
+		printHistogram(out, keySizes_);
+		out.println("value size: mean " + format(getMeanValueSize()));
+		printHistogram(out, valueSizes_);
+
+		out.println("probe distance:");
+		for (int n = 0; n < probes_.length; n++)
+			if (probes_[n] != 0)
+				out.println("  " + n + ": " + probes_[n]);
+		out.println("lookups needing more than one read: "
+			+ format(100 * getMultiReadShare()) + "%");
+		out.println("mean reads for a missing key: "
+			+ format(getMeanMissReads()));
+		out.println("bloom filter: " + bloomFilterSize_ + " bytes");
+
+		out.println("tables (table: records/slots fill max-probe):");
+		for (int i = 0; i < 256; i++) {
+			double fill = tableSlots_[i] == 0
+				? 0 : (double)tableRecords_[i] / tableSlots_[i];
+			out.println("  " + i + ": " + tableRecords_[i] + "/"
+				+ tableSlots_[i] + " " + format(100 * fill) + "% "
+				+ tableMaxProbe_[i]);
+		}
+	}
+
+
+	/**
+	 * Gathers the statistics for one hash table.
+	 *
+	 * @param cdb The CDB file.
+	 * @param table The number of the hash table.
+	 * @exception java.io.IOException if the table or one of its records
+	 *  could not be read.
+	 */
+	private void analyzeTable(Cdb cdb, int table) throws IOException {
+		int len = cdb.tableSlots(table);
+		tableSlots_[table] = len;
+		if (len == 0)
+			return;
+
+		long hpos = cdb.tablePosition(table);
+		int entrySize = cdb.entrySize();
+		boolean[] used = new boolean[len];
+
+		/* Walk the table a block at a time. */
+		byte[] block = new byte[Math.min(len, BLOCK_ENTRIES) * entrySize];
+		ByteBuffer buf = ByteBuffer.wrap(block)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		byte[] header = new byte[8];
+		ByteBuffer lengths = ByteBuffer.wrap(header)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		for (int first = 0; first < len; first += BLOCK_ENTRIES) {
+			int count = Math.min(len - first, BLOCK_ENTRIES);
+			cdb.readFully(hpos + (long)first * entrySize, block, 0,
+				count * entrySize);
+
+			for (int j = 0; j < count; j++) {
+				/* Decode the entry, skipping empty slots. */
+				long hash, pos;
+				if (entrySize == 16) {
+					hash = buf.getLong(j * 16);
+					pos = buf.getLong((j * 16) + 8);
+				} else {
+					hash = buf.getInt(j * 8) & 0xffffffffL;
+					pos = buf.getInt((j * 8) + 4) & 0xffffffffL;
+				}
+				if (pos == 0)
+					continue;
+				used[first + j] = true;
+
+				/* Work out how far the entry is from its first slot. */
+				int slot = first + j;
+				int ideal = (int)((hash >>> 8) % len);
+				int distance = slot >= ideal
+					? slot - ideal : slot + len - ideal;
+				addProbe(distance);
+				if (distance > tableMaxProbe_[table])
+					tableMaxProbe_[table] = distance;
+
+				/* Read the record's key and value sizes. */
+				cdb.readFully(pos, header, 0, 8);
+				int klen = lengths.getInt(0);
+				int dlen = lengths.getInt(4);
+				keySizes_[bucket(klen)]++;
+				valueSizes_[bucket(dlen)]++;
+				keyBytes_ += klen;
+				valueBytes_ += dlen;
+
+				records_++;
+				tableRecords_[table]++;
+			}
+		}
+
+		/* A missing key reads every used slot from its first slot up
+		 * to and including the next empty one.  Walk the table
+		 * backwards twice so that runs which wrap around are counted
+		 * in full. */
+		long reads = 0;
+		int run = 0;
+		for (int k = (2 * len) - 1; k >= 0; k--) {
+			run = used[k % len] ? run + 1 : 0;
+			if (k < len)
+				reads += run + 1;
+		}
+		missReads_ += (double)reads / len;
+	}
+
+	/**
+	 * Counts a record with the given probe distance.
+	 *
+	 * @param distance The probe distance.
+	 */
+	private void addProbe(int distance) {
+		if (distance >= probes_.length)
+			probes_ = Arrays.copyOf(probes_,
+				Math.max(distance + 1, probes_.length * 2));
+		probes_[distance]++;
+	}
+
+	/**
+	 * Returns the histogram bucket for the given size.
+	 *
+	 * @param size The size.
+	 * @return The bucket that <code>size</code> belongs in.
+	 */
+	private static int bucket(int size) {
+		return 32 - Integer.numberOfLeadingZeros(size);
+	}
+
+	/**
+	 * Prints the non-empty buckets of a size histogram.
+	 *
+	 * @param out The stream to print to.
+	 * @param histogram The histogram to print.
+	 */
+	private static void printHistogram(PrintStream out, long[] histogram) {
+		for (int b = 0; b < histogram.length; b++) {
+			if (histogram[b] == 0)
+				continue;
+
+			long low = b == 0 ? 0 : 1L << (b - 1);
+			long high = b == 0 ? 0 : (1L << b) - 1;
+			out.println("  " + low + "-" + high + ": " + histogram[b]);
+		}
+	}
+
+	/**
+	 * Formats a number with two decimal places.
+	 *
+	 * @param d The number to format.
+	 * @return The formatted number.
+	 */
+	private static String format(double d) {
+		return String.format(Locale.ROOT, "%.2f", d);
+	}
+}
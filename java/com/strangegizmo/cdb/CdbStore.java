@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+
+/**
+ * CdbStore is the storage backend underneath a Cdb object.  It hides
+ * whether the constant database is read through a file handle or
+ * through memory-mapped segments.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+abstract class CdbStore {
+	/** Reads little-endian longs out of byte arrays, used for
+	 * word-at-a-time key comparisons. */
+	static final VarHandle LE_LONGS = MethodHandles.byteArrayViewVarHandle(
+		long[].class, ByteOrder.LITTLE_ENDIAN);
+
+
+	/** The number of bytes at the start of a file which go into its
+	 * fingerprint: the cdb64 header and slot table, or the classic slot
+	 * table and the first records. */
+	private static final int FINGERPRINT_HEAD =
+		Cdb.HEADER64_SIZE + Cdb.SLOTS64_SIZE;
+
+	/** The number of bytes at the end of a file, where the hash tables
+	 * end, which go into its fingerprint. */
+	private static final int FINGERPRINT_TAIL = 4096;
+
+
+	/** Per-thread scratch space for data which cannot be handed out
+	 * directly from the store. */
+	private final ThreadLocal<ByteBuffer> scratch_ = new ThreadLocal<>();
+
+
+	/**
+	 * Returns the length of the underlying constant database.
+	 *
+	 * @return The length of the constant database, in bytes.
+	 */
+	abstract long length();
+
+	/**
+	 * Reads a little-endian integer from the given position.
+	 *
+	 * @param pos The position to read from.
+	 * @return The integer stored at <code>pos</code>.
+	 * @exception java.io.IOException if the integer could not be read.
+	 */
+	abstract int readLeInt(long pos) throws IOException;
+
+	/**
+	 * Reads a little-endian long from the given position.
+	 *
+	 * @param pos The position to read from.
+	 * @return The long stored at <code>pos</code>.
+	 * @exception java.io.IOException if the long could not be read.
+	 */
+	abstract long readLeLong(long pos) throws IOException;
+
+	/**
+	 * Reads <code>len</code> bytes from the given position into
+	 * <code>b</code>.
+	 *
+	 * @param pos The position to read from.
+	 * @param b The array to read into.
+	 * @param off The offset in <code>b</code> at which to store the
+	 *  first byte.
+	 * @param len The number of bytes to read.
+	 * @exception java.io.IOException if the bytes could not be read.
+	 */
+	abstract void readFully(long pos, byte[] b, int off, int len)
+		throws IOException;
+
+	/**
+	 * Compares the <code>len</code> bytes at the given position with
+	 * <code>len</code> bytes of <code>key</code>, without copying the
+	 * stored bytes into a new array.
+	 *
+	 * @param pos The position of the stored bytes.
+	 * @param key The array containing the bytes to compare against.
+	 * @param off The offset of the first byte in <code>key</code>.
+	 * @param len The number of bytes to compare.
+	 * @return <code>true</code> if the bytes are equal;
+	 *  <code>false</code> otherwise.
+	 * @exception java.io.IOException if the stored bytes could not be
+	 *  read.
+	 */
+	abstract boolean equals(long pos, byte[] key, int off, int len)
+		throws IOException;
+
+	/**
+	 * Returns a read-only buffer containing the <code>len</code> bytes
+	 * at the given position.  The buffer's position is zero and its
+	 * limit is <code>len</code>.
+	 *
+	 * @param pos The position of the first byte.
+	 * @param len The number of bytes.
+	 * @return A read-only buffer over the bytes.
+	 * @exception java.io.IOException if the bytes could not be read.
+	 */
+	abstract ByteBuffer slice(long pos, int len) throws IOException;
+
+	/**
+	 * Passes the <code>len</code> bytes at the given position to
+	 * <code>visitor</code>.
+	 *
+	 * @param pos The position of the first byte.
+	 * @param len The number of bytes.
+	 * @param visitor The visitor to call.
+	 * @exception java.io.IOException if the bytes could not be read.
+	 */
+	abstract void visit(long pos, int len, CdbDataVisitor visitor)
+		throws IOException;
+
+	/**
+	 * Closes the store.
+	 *
+	 * @exception java.io.IOException if the store could not be closed.
+	 */
+	abstract void close() throws IOException;
+
+
+	/**
+	 * Computes a fingerprint of the constant database, which sidecar
+	 * files record so that a sidecar left over from a different build
+	 * is not used with this one.  The fingerprint covers the slot
+	 * table, which records the position and size of every hash table,
+	 * and the end of the last hash table.
+	 *
+	 * @return The fingerprint, which is never zero.
+	 * @exception java.io.IOException if the store could not be read.
+	 */
+	final long fingerprint() throws IOException {
+		long length = length();
+		int head = (int)Math.min(length, FINGERPRINT_HEAD);
+		int tail = (int)Math.min(length - head, FINGERPRINT_TAIL);
+
+		byte[] b = new byte[head + tail];
+		readFully(0, b, 0, head);
+		readFully(length - tail, b, head, tail);
+
+		long fingerprint = Cdb.hash64(b, 0, b.length) ^ length;
+		return fingerprint != 0 ? fingerprint : 1;
+	}
+
+	/**
+	 * Returns this thread's scratch buffer, grown if necessary to hold
+	 * at least <code>len</code> bytes.  The buffer is cleared and its
+	 * limit is set to <code>len</code>.
+	 *
+	 * @param len The number of bytes the buffer must hold.
+	 * @return The scratch buffer.
+	 */
+	final ByteBuffer scratch(int len) {
+		ByteBuffer buf = scratch_.get();
+		if ((buf == null) || (buf.capacity() < len)) {
+			buf = ByteBuffer.allocate(Math.max(len, 256));
+			scratch_.set(buf);
+		}
+
+		buf.clear();
+		buf.limit(len);
+		return buf;
+	}
+}
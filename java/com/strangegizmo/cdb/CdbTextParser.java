@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+
+/**
+ * CdbTextParser parses the cdbmake text format
+ * (<code>+klen,dlen:key-&gt;data\n</code>) out of an InputStream.  The
+ * input is read in large chunks and each record's key and data are
+ * handed out as ranges of an internal array rather than being copied
+ * into arrays of their own.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+final class CdbTextParser {
+	/** The size of the chunks that the input is read in. */
+	private static final int CHUNK_SIZE = 1 << 20;
+
+
+	/** The InputStream to read. */
+	private InputStream in_ = null;
+
+	/** The position in the input at which no new record may start. */
+	private long limit_ = 0;
+
+
+	/** The current chunk of input. */
+	private byte[] chunk_ = new byte[CHUNK_SIZE];
+
+	/** The index of the next unread byte in <code>chunk_</code>. */
+	private int chunkPos_ = 0;
+
+	/** The number of valid bytes in <code>chunk_</code>. */
+	private int chunkLen_ = 0;
+
+	/** The input position of the first byte in <code>chunk_</code>. */
+	private long chunkBase_ = 0;
+
+	/** Set once the InputStream has been exhausted. */
+	private boolean eof_ = false;
+
+	/** Set once the end of the records has been reached. */
+	private boolean ended_ = false;
+
+
+	/** The array containing the current record. */
+	private byte[] buf_ = null;
+
+	/** The offset of the current record's key in <code>buf_</code>. */
+	private int keyOff_ = 0;
+
+	/** The length of the current record's key. */
+	private int keyLen_ = 0;
+
+	/** The offset of the current record's data in <code>buf_</code>. */
+	private int dataOff_ = 0;
+
+	/** The length of the current record's data. */
+	private int dataLen_ = 0;
+
+
+	/**
+	 * Creates a parser which reads records from the given InputStream.
+	 *
+	 * @param in The InputStream to read.
+	 */
+	CdbTextParser(InputStream in) {
+		this(in, 0, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a parser which reads records from the given InputStream,
+	 * stopping at the first record which would start at or after
+	 * <code>limit</code>.
+	 *
+	 * @param in The InputStream to read.
+	 * @param start The input position of the first byte of
+	 *  <code>in</code>.
+	 * @param limit The input position at which no new record may start.
+	 */
+	CdbTextParser(InputStream in, long start, long limit) {
+		in_ = in;
+		chunkBase_ = start;
+		limit_ = limit;
+	}
+
+
+	/**
+	 * Parses the next record.
+	 *
+	 * @return <code>true</code> if a record was parsed;
+	 *  <code>false</code> if the end of the records or the limit was
+	 *  reached.
+	 * @exception java.io.IOException if an error occurs reading the
+	 *  input.
+	 * @exception java.lang.IllegalArgumentException if the input is not
+	 *  in the cdbmake format.
+	 */
+	boolean next() throws IOException {
+		/* Stop at the limit. */
+		if (ended_ || (position() >= limit_))
+			return false;
+
+		/* Read and process a byte. */
+		int ch = read();
+		if ((ch == -1) || (ch == '\n')) {
+			ended_ = true;
+			return false;
+		}
+		if (ch != '+')
+			throw new IllegalArgumentException(
+				"input file not in correct format");
+
+		/* Get the key and data lengths. */
+		int klen = readLength(',', "key length is too big");
+		int dlen = readLength(':', "data length is too big");
+
+		/* Make sure that the key, the separator, the data and the
+		 * terminating LF are all in the chunk if they will fit. */
+		long reclen = (long)klen + 2 + dlen + 1;
+		if (reclen <= chunk_.length)
+			fill((int)reclen);
+
+		if (chunkLen_ - chunkPos_ >= reclen) {
+			/* The record is in the chunk; point straight at it. */
+			buf_ = chunk_;
+			keyOff_ = chunkPos_;
+			dataOff_ = keyOff_ + klen + 2;
+			if ((chunk_[keyOff_ + klen] != '-')
+					|| (chunk_[keyOff_ + klen + 1] != '>'))
+				throw new IllegalArgumentException(
+					"input file not in correct format");
+			chunkPos_ += klen + 2 + dlen;
+		} else {
+			/* The record is too large for the chunk (or the input is
+			 * truncated); copy it out into an array of its own. */
+			buf_ = new byte[klen + dlen];
+			keyOff_ = 0;
+			dataOff_ = klen;
+			readFully(buf_, 0, klen);
+			if ((read() != '-') || (read() != '>'))
+				throw new IllegalArgumentException(
+					"input file not in correct format");
+			readFully(buf_, klen, dlen);
+		}
+		keyLen_ = klen;
+		dataLen_ = dlen;
+
+		/* Read the terminating LF. */
+		if (read() != '\n')
+			throw new IllegalArgumentException(
+				"input file not in correct format");
+
+		return true;
+	}
+
+
+	/**
+	 * Returns <code>true</code> if the parser stopped because it
+	 * reached the end of the records, rather than the limit.
+	 *
+	 * @return <code>true</code> if the end of the records was reached.
+	 */
+	boolean ended() {
+		return ended_;
+	}
+
+	/**
+	 * Returns the input position of the next unread byte.
+	 *
+	 * @return The current input position.
+	 */
+	long position() {
+		return chunkBase_ + chunkPos_;
+	}
+
+	/**
+	 * Returns the array containing the current record's key and data.
+	 * The array is only valid until the next call to
+	 * <code>next()</code>.
+	 *
+	 * @return The array containing the current record.
+	 */
+	byte[] buffer() {
+		return buf_;
+	}
+
+	/**
+	 * Returns the offset of the current record's key.
+	 *
+	 * @return The offset of the key in <code>buffer()</code>.
+	 */
+	int keyOffset() {
+		return keyOff_;
+	}
+
+	/**
+	 * Returns the length of the current record's key.
+	 *
+	 * @return The length of the key.
+	 */
+	int keyLength() {
+		return keyLen_;
+	}
+
+	/**
+	 * Returns the offset of the current record's data.
+	 *
+	 * @return The offset of the data in <code>buffer()</code>.
+	 */
+	int dataOffset() {
+		return dataOff_;
+	}
+
+	/**
+	 * Returns the length of the current record's data.
+	 *
+	 * @return The length of the data.
+	 */
+	int dataLength() {
+		return dataLen_;
+	}
+
+
+	/**
+	 * Reads a decimal length terminated by <code>term</code>.
+	 *
+	 * @param term The character which terminates the length.
+	 * @param tooBig The message to use if the length is too big.
+	 * @return The length.
+	 * @exception java.io.IOException if an error occurs reading the
+	 *  input.
+	 */
+	private int readLength(char term, String tooBig) throws IOException {
+		int len = 0;
+		for (;;) {
+			int ch = read();
+			if (ch == term)
+				break;
+			if ((ch < '0') || (ch > '9'))
+				throw new IllegalArgumentException(
+					"input file not in correct format");
+			if (len > 429496720)
+				throw new IllegalArgumentException(tooBig);
+			len = len * 10 + (ch - '0');
+		}
+		return len;
+	}
+
+	/**
+	 * Reads a single byte.
+	 *
+	 * @return The byte, or -1 at the end of the input.
+	 * @exception java.io.IOException if an error occurs reading the
+	 *  input.
+	 */
+	private int read() throws IOException {
+		if ((chunkPos_ == chunkLen_) && !fill(1))
+			return -1;
+		return chunk_[chunkPos_++] & 0xff;
+	}
+
+	/**
+	 * Reads exactly <code>len</code> bytes into <code>b</code>.
+	 *
+	 * @param b The array to read into.
+	 * @param off The offset at which to store the first byte.
+	 * @param len The number of bytes to read.
+	 * @exception java.io.IOException if an error occurs reading the
+	 *  input.
+	 */
+	private void readFully(byte[] b, int off, int len) throws IOException {
+		/* Use up whatever is left in the chunk first. */
+		int count = Math.min(len, chunkLen_ - chunkPos_);
+		System.arraycopy(chunk_, chunkPos_, b, off, count);
+		chunkPos_ += count;
+		off += count;
+		len -= count;
+
+		/* Read the rest straight from the stream. */
+		while (len > 0) {
+			count = in_.read(b, off, len);
+			if (count == -1)
+				throw new IllegalArgumentException(
+					"input file is truncated");
+			chunkBase_ += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Tries to make at least <code>count</code> bytes available in the
+	 * chunk, moving the unread bytes to the front of the chunk and
+	 * reading more input behind them.
+	 *
+	 * @param count The number of bytes needed; at most the size of the
+	 *  chunk.
+	 * @return <code>true</code> if the bytes are available;
+	 *  <code>false</code> if the input ended first.
+	 * @exception java.io.IOException if an error occurs reading the
+	 *  input.
+	 */
+	private boolean fill(int count) throws IOException {
+		if (chunkLen_ - chunkPos_ >= count)
+			return true;
+
+		/* Move the unread bytes to the front of the chunk. */
+		int remaining = chunkLen_ - chunkPos_;
+		System.arraycopy(chunk_, chunkPos_, chunk_, 0, remaining);
+		chunkBase_ += chunkPos_;
+		chunkPos_ = 0;
+		chunkLen_ = remaining;
+
+		/* Read until we have enough bytes or the input runs out. */
+		while (!eof_ && (chunkLen_ < count)) {
+			int n = in_.read(chunk_, chunkLen_, chunk_.length - chunkLen_);
+			if (n == -1)
+				eof_ = true;
+			else
+				chunkLen_ += n;
+		}
+
+		return chunkLen_ >= count;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.lang.management.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Checks that lookups through a CdbDataVisitor allocate nothing, with
+ * keys given as array ranges, direct buffers and strings.  Allocation
+ * is measured with the per-thread allocated-bytes counter of
+ * com.sun.management.ThreadMXBean, after a warm-up that lets the JIT
+ * compile the lookup path; the test is skipped on JVMs without it.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class AllocationTest extends CdbTest {
+	/** The number of keys looked up in each round. */
+	private static final int KEYS = 1000;
+
+	/** The number of warm-up rounds. */
+	private static final int WARMUP_ROUNDS = 100;
+
+	/** The number of measured rounds. */
+	private static final int ROUNDS = 50;
+
+	/** The most bytes the measurement itself may allocate. */
+	private static final long SLACK = 4096;
+
+
+	/**
+	 * Measures visitor lookups in every open mode.
+	 */
+	public void testVisitorLookupsAllocateNothing() throws Exception {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)
+				|| !((com.sun.management.ThreadMXBean)bean)
+					.isThreadAllocatedMemorySupported()) {
+			System.out.println("      (skipped: no allocation counter)");
+			return;
+		}
+		com.sun.management.ThreadMXBean threads
+			= (com.sun.management.ThreadMXBean)bean;
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		/* Half the keys are there and half are not. */
+		List<byte[][]> records = new ArrayList<>();
+		String[] keys = new String[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			keys[i] = "key-" + i;
+			if ((i & 1) == 0)
+				records.add(new byte[][] { utf8(keys[i]), utf8("data " + i) });
+		}
+
+		/* The same keys as array ranges and direct buffers. */
+		byte[] packed = new byte[KEYS * 16];
+		int[] offsets = new int[KEYS];
+		int[] lengths = new int[KEYS];
+		ByteBuffer[] buffers = new ByteBuffer[KEYS];
+		for (int i = 0, pos = 0; i < KEYS; i++) {
+			byte[] key = utf8(keys[i]);
+			System.arraycopy(key, 0, packed, pos, key.length);
+			offsets[i] = pos;
+			lengths[i] = key.length;
+			pos += key.length;
+			buffers[i] = ByteBuffer.allocateDirect(key.length);
+			buffers[i].put(key).flip();
+		}
+
+		final long[] sum = new long[1];
+		CdbDataVisitor visitor = new CdbDataVisitor() {
+			public void visit(ByteBuffer buf, int off, int len) {
+				sum[0] += buf.get(off + len - 1);
+			}
+		};
+
+		int[] makeFlags = { 0, CdbMake.HASH64 | CdbMake.BLOOM };
+		for (int m = 0; m < makeFlags.length; m++) {
+			String filepath = path("alloc" + m + ".cdb");
+			make(filepath, makeFlags[m], records);
+
+			for (int o = 0; o < OPEN_FLAGS.length; o++) {
+				Cdb cdb = new Cdb(filepath, OPEN_FLAGS[o]);
+				try {
+					String what = "make " + makeFlags[m] + " open "
+						+ OPEN_FLAGS[o];
+					long found = 0;
+					for (int r = 0; r < WARMUP_ROUNDS; r++)
+						found += lookUp(cdb, keys, packed, offsets, lengths,
+							buffers, visitor);
+					check(found == (long)WARMUP_ROUNDS * 3 * KEYS / 2,
+						what + " found " + found);
+
+					long tid = Thread.currentThread().getId();
+					long before = threads.getThreadAllocatedBytes(tid);
+					for (int r = 0; r < ROUNDS; r++)
+						lookUp(cdb, keys, packed, offsets, lengths, buffers,
+							visitor);
+					long allocated = threads.getThreadAllocatedBytes(tid)
+						- before;
+
+					System.out.println("      " + what + ": " + allocated
+						+ " bytes over " + ROUNDS * 3 * KEYS + " lookups");
+					check(allocated <= SLACK, what + " allocated "
+						+ allocated + " bytes");
+				} finally {
+					cdb.close();
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Looks every key up once in each form.
+	 *
+	 * @return The number of lookups that found a record.
+	 */
+	private static int lookUp(Cdb cdb, String[] keys, byte[] packed,
+		int[] offsets, int[] lengths, ByteBuffer[] buffers,
+		CdbDataVisitor visitor)
+	{
+		int found = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (cdb.get(packed, offsets[i], lengths[i], visitor))
+				found++;
+			if (cdb.get(buffers[i], visitor))
+				found++;
+			if (cdb.get(keys[i], visitor))
+				found++;
+		}
+		return found;
+	}
+}
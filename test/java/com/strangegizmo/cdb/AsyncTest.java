@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks CdbAsync: the results of its futures, lookups answered by the
+ * Bloom filter without an I/O thread, rejection when the queue is full
+ * or the CdbAsync is closed, and read errors reported as IOException.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class AsyncTest extends CdbTest {
+	/**
+	 * Checks the results of single and batched lookups.
+	 */
+	public void testResults() throws Exception {
+		List<byte[][]> records = records(2000, 21);
+		make(path("async.cdb"), 0, records);
+		Cdb cdb = new Cdb(path("async.cdb"));
+		CdbAsync async = new CdbAsync(cdb, 4, 4096);
+		try {
+			List<byte[]> keys = new ArrayList<>();
+			for (String key : byKey(records).keySet())
+				keys.add(key.getBytes("ISO-8859-1"));
+			for (int i = 0; i < 100; i++)
+				keys.add(utf8("missing-" + i));
+
+			List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+			for (int i = 0; i < keys.size(); i++)
+				futures.add(async.get(keys.get(i)));
+			for (int i = 0; i < keys.size(); i++)
+				checkEquals(cdb.get(keys.get(i)), futures.get(i).get(),
+					"get " + i);
+
+			byte[][] batch = keys.toArray(new byte[0][]);
+			byte[][] all = async.getAll(batch).get();
+			check(all.length == batch.length, "getAll length");
+			for (int i = 0; i < batch.length; i++)
+				checkEquals(cdb.get(batch[i]), all[i], "getAll " + i);
+		} finally {
+			async.close();
+			cdb.close();
+		}
+	}
+
+	/**
+	 * Checks that keys ruled out by the Bloom filter are answered at
+	 * once on the calling thread, even after the CdbAsync is closed.
+	 */
+	public void testBloomShortCircuit() throws Exception {
+		make(path("bloom.cdb"), CdbMake.BLOOM, records(2000, 22));
+		Cdb cdb = new Cdb(path("bloom.cdb"));
+		CdbAsync async = new CdbAsync(cdb, 1);
+		async.close();
+		try {
+			int answered = 0;
+			for (int i = 0; i < 1000; i++) {
+				CompletableFuture<byte[]> future
+					= async.get(utf8("missing-" + i));
+				check(future.isDone(), "lookup " + i + " not done at once");
+				if (!future.isCompletedExceptionally()) {
+					check(future.get() == null, "missing key " + i + " found");
+					answered++;
+				}
+			}
+
+			/* Only Bloom filter false positives reach the (closed)
+			 * executor. */
+			check(answered > 900, "only " + answered
+				+ " of 1000 missing keys ruled out");
+		} finally {
+			cdb.close();
+		}
+	}
+
+	/**
+	 * Checks that lookups are rejected when the queue is full and once
+	 * the CdbAsync is closed, and that accepted lookups still
+	 * complete.
+	 */
+	public void testRejected() throws Exception {
+		List<byte[][]> records = records(5000, 23);
+		make(path("rejected.cdb"), 0, records);
+		Cdb cdb = new Cdb(path("rejected.cdb"));
+		CdbAsync async = new CdbAsync(cdb, 1, 1);
+		try {
+			/* Each batch keeps the one I/O thread busy for far longer
+			 * than it takes to submit the next. */
+			byte[][] batch = new byte[records.size()][];
+			for (int i = 0; i < batch.length; i++)
+				batch[i] = records.get(i)[0];
+			List<CompletableFuture<byte[][]>> futures = new ArrayList<>();
+			for (int i = 0; i < 20; i++)
+				futures.add(async.getAll(batch));
+
+			int rejected = 0;
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					check(futures.get(i).get().length == batch.length,
+						"batch " + i);
+				} catch (ExecutionException e) {
+					check(e.getCause() instanceof RejectedExecutionException,
+						"batch " + i + " failed with " + e.getCause());
+					rejected++;
+				}
+			}
+			check(rejected > 0, "a full queue accepted every batch");
+			check(rejected < futures.size(), "every batch rejected");
+
+			/* A closed CdbAsync rejects every lookup that needs the
+			 * file. */
+			async.close();
+			try {
+				async.get(records.get(0)[0]).get();
+				throw new AssertionError("lookup accepted after close");
+			} catch (ExecutionException e) {
+				check(e.getCause() instanceof RejectedExecutionException,
+					"closed lookup failed with " + e.getCause());
+			}
+		} finally {
+			async.close();
+			cdb.close();
+		}
+	}
+
+	/**
+	 * Checks that a read error fails the future with the IOException
+	 * itself rather than the UncheckedIOException that Cdb throws.
+	 */
+	public void testReadError() throws Exception {
+		List<byte[][]> records = records(2000, 24);
+		make(path("truncated.cdb"), 0, records);
+		Cdb cdb = new Cdb(path("truncated.cdb"));
+		CdbAsync async = new CdbAsync(cdb, 2);
+		try {
+			/* Cut the file off after its slot table. */
+			RandomAccessFile file
+				= new RandomAccessFile(path("truncated.cdb"), "rw");
+			try {
+				file.setLength(2048);
+			} finally {
+				file.close();
+			}
+
+			checkReadError(async.get(records.get(0)[0]), "get");
+			checkReadError(async.getAll(new byte[][] { records.get(0)[0] }),
+				"getAll");
+		} finally {
+			async.close();
+			cdb.close();
+		}
+	}
+
+
+	/**
+	 * Checks that a future failed with an IOException.
+	 *
+	 * @param future The future.
+	 * @param what The lookup, for the failure message.
+	 */
+	private static void checkReadError(CompletableFuture<?> future,
+		String what) throws InterruptedException
+	{
+		try {
+			future.get();
+			throw new AssertionError(what + " read a truncated file");
+		} catch (ExecutionException e) {
+			check(e.getCause() instanceof IOException,
+				what + " failed with " + e.getCause());
+		}
+	}
+}
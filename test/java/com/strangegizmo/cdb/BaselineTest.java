@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Checks compatibility with files built by sg-cdb 1.0.4.  The fixture
+ * baseline.cdb was built from baseline.txt with the 1.0.4 cdb.make; it
+ * has keys with several records, binary keys with the sign bit set, an
+ * empty key, empty data and a 70 KB record.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class BaselineTest extends CdbTest {
+	/**
+	 * Checks that the 1.0.4 file reads correctly in every open mode.
+	 */
+	public void testReadBaseline() throws IOException {
+		List<byte[][]> records = readRecords(new File(dataDir_,
+			"baseline.txt"));
+		String filepath = new File(dataDir_, "baseline.cdb").getPath();
+		checkElements(filepath, records);
+
+		for (int i = 0; i < OPEN_FLAGS.length; i++) {
+			Cdb cdb = new Cdb(filepath, OPEN_FLAGS[i]);
+			try {
+				checkLookups(cdb, records, "baseline open " + OPEN_FLAGS[i]);
+			} finally {
+				cdb.close();
+			}
+		}
+	}
+
+	/**
+	 * Checks that classic files are still built byte for byte as 1.0.4
+	 * built them, by CdbMake.make on one thread and on several and by
+	 * CdbMake.add.
+	 */
+	public void testBuildMatchesBaseline() throws Exception {
+		File text = new File(dataDir_, "baseline.txt");
+		byte[] expected = Files.readAllBytes(
+			new File(dataDir_, "baseline.cdb").toPath());
+
+		CdbMake.make(text.getPath(), path("one.cdb"), path("one.tmp"));
+		checkEquals(expected, Files.readAllBytes(Paths.get(path("one.cdb"))),
+			"CdbMake.make");
+
+		CdbMake.make(text.getPath(), path("four.cdb"), path("four.tmp"),
+			null, 4);
+		checkEquals(expected, Files.readAllBytes(Paths.get(path("four.cdb"))),
+			"CdbMake.make on 4 threads");
+
+		make(path("add.cdb"), 0, readRecords(text));
+		checkEquals(expected, Files.readAllBytes(Paths.get(path("add.cdb"))),
+			"CdbMake.add");
+	}
+}
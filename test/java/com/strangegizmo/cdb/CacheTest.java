@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Checks CdbCache: hits, misses and cached misses, its counters, its
+ * byte budget, that it only evicts entries to admit another, and that
+ * a scan over many cold keys does not flush the hot ones.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class CacheTest extends CdbTest {
+	/** The number of keys in the test database. */
+	private static final int KEYS = 40000;
+
+	/** The number of keys in the hot set. */
+	private static final int HOT_KEYS = 160;
+
+	/** The budget of the cache, about twice the size of the hot
+	 * set. */
+	private static final long MAX_BYTES = 64 * 1024;
+
+
+	/** The test database. */
+	private Cdb cdb_;
+
+
+	/**
+	 * Builds the test database, with values of varying size and two
+	 * records under some keys.
+	 *
+	 * @exception java.io.IOException if the database could not be
+	 *  built.
+	 */
+	void setUp() throws IOException {
+		super.setUp();
+		List<byte[][]> records = new ArrayList<>();
+		for (int i = 0; i < KEYS; i++) {
+			records.add(new byte[][] { key(i), value(i, 0) });
+			if (i % 5 == 0)
+				records.add(new byte[][] { key(i), value(i, 1) });
+		}
+		make(path("cache.cdb"), 0, records);
+		cdb_ = new Cdb(path("cache.cdb"));
+	}
+
+	/**
+	 * Closes the test database.
+	 */
+	void tearDown() {
+		if (cdb_ != null)
+			cdb_.close();
+		super.tearDown();
+	}
+
+
+	/**
+	 * Checks hits, misses, cached misses and the counters.
+	 */
+	public void testHitsAndMisses() {
+		CdbCache cache = new CdbCache(cdb_, MAX_BYTES);
+		check(cache.getHitCount() == 0 && cache.getMissCount() == 0
+			&& cache.getSize() == 0, "new cache not empty");
+
+		/* The first lookup reads through, the second is a hit, and
+		 * both answer what the database does. */
+		for (int round = 0; round < 2; round++)
+			for (int i = 0; i < 10; i++)
+				checkEquals(cdb_.get(key(i)), cache.get(key(i)), "key " + i);
+		check(cache.getMissCount() == 10, "misses " + cache.getMissCount());
+		check(cache.getHitCount() == 10, "hits " + cache.getHitCount());
+
+		/* Missing keys are cached too. */
+		byte[] missing = utf8("missing");
+		check(cache.get(missing) == null, "missing key found");
+		check(cache.getBuffer(missing) == null, "missing key found");
+		check(cache.getMissCount() == 11, "misses " + cache.getMissCount());
+		check(cache.getHitCount() == 11, "hits " + cache.getHitCount());
+
+		/* Buffers are read-only and independent of each other, and
+		 * the cache owns its copy of the key. */
+		byte[] key = key(3);
+		ByteBuffer a = cache.getBuffer(key);
+		ByteBuffer b = cache.getBuffer(key);
+		check(a.isReadOnly(), "writable buffer");
+		a.position(a.limit());
+		check(b.position() == 0, "shared buffer position");
+		checkEquals(cdb_.get(key), bytes(b), "buffer");
+		Arrays.fill(key, (byte)0);
+		checkEquals(cdb_.get(key(3)), cache.get(key(3)), "reused key array");
+
+		check(cache.getEvictionCount() == 0, "evictions "
+			+ cache.getEvictionCount());
+		check(cache.getSize() > 0, "empty cache");
+		cache.clear();
+		check(cache.getSize() == 0, "cleared cache not empty");
+		cache.get(key(0));
+		check(cache.getMissCount() == 12, "hit after clear");
+	}
+
+	/**
+	 * Checks that the cache stays within its budget and evicts only to
+	 * admit a new entry.
+	 */
+	public void testByteBudget() {
+		CdbCache cache = new CdbCache(cdb_, MAX_BYTES);
+		Random random = new Random(15);
+		for (int n = 0; n < 100000; n++) {
+			/* Skew the lookups so that admission is contested. */
+			int i = (int)(KEYS * Math.pow(random.nextDouble(), 3));
+			long evictions = cache.getEvictionCount();
+			long misses = cache.getMissCount();
+			checkEquals(cdb_.get(key(i)), cache.get(key(i)), "key " + i);
+			check(cache.getSize() <= MAX_BYTES, "over budget: "
+				+ cache.getSize());
+
+			/* An entry refused admission must not have cost any
+			 * others their place. */
+			if (cache.getEvictionCount() > evictions) {
+				check(cache.getMissCount() == misses + 1,
+					"eviction on a hit");
+				cache.get(key(i));
+				check(cache.getMissCount() == misses + 1,
+					"evicted entries for key " + i + " but refused it");
+			}
+		}
+		check(cache.getEvictionCount() > 0, "nothing evicted");
+		check(cache.getHitCount() + cache.getMissCount() > 100000,
+			"lookups not counted");
+	}
+
+	/**
+	 * Checks that the hot set survives a scan over every other key.
+	 */
+	public void testScanResistance() {
+		CdbCache cache = new CdbCache(cdb_, MAX_BYTES);
+		for (int round = 0; round < 10; round++)
+			for (int i = 0; i < HOT_KEYS; i++)
+				cache.get(key(i));
+
+		for (int i = HOT_KEYS; i < KEYS; i++)
+			cache.get(key(i));
+
+		long misses = cache.getMissCount();
+		for (int i = 0; i < HOT_KEYS; i++)
+			cache.get(key(i));
+		long lost = cache.getMissCount() - misses;
+		check(lost <= HOT_KEYS / 10, lost + " of " + HOT_KEYS
+			+ " hot keys flushed by the scan");
+	}
+
+
+	/**
+	 * Returns a test key.
+	 *
+	 * @param i The key number.
+	 * @return The key.
+	 */
+	private static byte[] key(int i) {
+		return utf8("key-" + i);
+	}
+
+	/**
+	 * Returns a test value, between 10 and 200 bytes long.
+	 *
+	 * @param i The key number.
+	 * @param copy The record number under the key.
+	 * @return The value.
+	 */
+	private static byte[] value(int i, int copy) {
+		byte[] value = new byte[10 + (i * 37) % 191];
+		Arrays.fill(value, (byte)('a' + copy));
+		return value;
+	}
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * CdbTest is the base of the test classes run by RunTests.  It gives
+ * each test a temporary directory, builds and checks databases from
+ * lists of records, and provides the assertions.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+abstract class CdbTest {
+	/** The directory holding the test fixtures. */
+	static File dataDir_ = new File("test/data");
+
+	/** Every database format flag combination the tests build. */
+	static final int[] MAKE_FLAGS = {
+		0,
+		CdbMake.CDB64,
+		CdbMake.BLOOM,
+		CdbMake.COMPRESS,
+		CdbMake.KEY_INDEX,
+		CdbMake.HASH64,
+		CdbMake.CDB64 | CdbMake.BLOOM | CdbMake.COMPRESS
+			| CdbMake.KEY_INDEX | CdbMake.HASH64,
+	};
+
+	/** Every open mode the tests read databases with. */
+	static final int[] OPEN_FLAGS = {
+		0,
+		Cdb.MMAP,
+		Cdb.MEMORY,
+		Cdb.PIN_INDEX,
+		Cdb.MMAP | Cdb.PIN_INDEX,
+	};
+
+
+	/** The temporary directory of the current test. */
+	File dir_ = null;
+
+
+	/**
+	 * Creates the temporary directory.
+	 *
+	 * @exception java.io.IOException if the directory could not be
+	 *  created.
+	 */
+	void setUp() throws IOException {
+		dir_ = Files.createTempDirectory("cdb-test").toFile();
+	}
+
+	/**
+	 * Deletes the temporary directory and everything in it.
+	 */
+	void tearDown() {
+		if (dir_ == null)
+			return;
+
+		File[] files = dir_.listFiles();
+		if (files != null)
+			for (int i = 0; i < files.length; i++)
+				files[i].delete();
+		dir_.delete();
+	}
+
+	/**
+	 * Returns the path of a file in the temporary directory.
+	 *
+	 * @param name The name of the file.
+	 * @return The path of the file.
+	 */
+	String path(String name) {
+		return new File(dir_, name).getPath();
+	}
+
+
+	/**
+	 * Generates records with a mix of key and data shapes: keys with
+	 * several records, binary keys with the sign bit set, an empty key,
+	 * empty data, text keys with characters outside ASCII and data
+	 * larger than CdbMake's write buffer.
+	 *
+	 * @param count The number of distinct keys to generate.
+	 * @param seed The random seed.
+	 * @return The records in the order they are to be added.
+	 */
+	static List<byte[][]> records(int count, long seed) {
+		Random random = new Random(seed);
+		List<byte[][]> records = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			byte[] key;
+			switch (i % 4) {
+			case 0:
+				key = utf8("key-" + i);
+				break;
+			case 1:
+				key = utf8("clé-中-" + i);
+				break;
+			case 2:
+				key = new byte[1 + random.nextInt(12)];
+				random.nextBytes(key);
+				key[0] = (byte)(0x80 | i);
+				break;
+			default:
+				key = utf8(i + "-" + Long.toHexString(random.nextLong()));
+				break;
+			}
+
+			/* Give some keys more than one record. */
+			int copies = (i % 7 == 0) ? 1 + random.nextInt(4) : 1;
+			for (int j = 0; j < copies; j++) {
+				byte[] data = utf8("data " + i + "/" + j + " "
+					+ "abcdefgh".substring(random.nextInt(8)));
+				records.add(new byte[][] { key, data });
+			}
+		}
+
+		records.add(new byte[][] { new byte[0], utf8("empty key") });
+		records.add(new byte[][] { utf8("empty data"), new byte[0] });
+		byte[] large = new byte[(1 << 20) + 12345];
+		random.nextBytes(large);
+		records.add(new byte[][] { utf8("large"), large });
+
+		Collections.shuffle(records, random);
+		return records;
+	}
+
+	/**
+	 * Reads records in the cdbmake text format.
+	 *
+	 * @param file The file to read.
+	 * @return The records in file order.
+	 * @exception java.io.IOException if the file could not be read.
+	 */
+	static List<byte[][]> readRecords(File file) throws IOException {
+		byte[] text = Files.readAllBytes(file.toPath());
+		List<byte[][]> records = new ArrayList<>();
+		int pos = 0;
+		while (text[pos] == '+') {
+			int comma = indexOf(text, (byte)',', pos);
+			int colon = indexOf(text, (byte)':', comma);
+			int klen = Integer.parseInt(new String(text, pos + 1,
+				comma - pos - 1, StandardCharsets.US_ASCII));
+			int dlen = Integer.parseInt(new String(text, comma + 1,
+				colon - comma - 1, StandardCharsets.US_ASCII));
+			byte[] key = Arrays.copyOfRange(text, colon + 1, colon + 1 + klen);
+			pos = colon + 1 + klen + 2;
+			byte[] data = Arrays.copyOfRange(text, pos, pos + dlen);
+			pos += dlen + 1;
+			records.add(new byte[][] { key, data });
+		}
+		return records;
+	}
+
+	/**
+	 * Builds a database from records.
+	 *
+	 * @param filepath The database to create.
+	 * @param flags The CdbMake format flags.
+	 * @param records The records to add.
+	 * @exception java.io.IOException if the database could not be
+	 *  built.
+	 */
+	static void make(String filepath, int flags, List<byte[][]> records)
+		throws IOException
+	{
+		CdbMake make = new CdbMake(flags);
+		make.start(filepath);
+		for (int i = 0; i < records.size(); i++)
+			make.add(records.get(i)[0], records.get(i)[1]);
+		make.finish();
+	}
+
+	/**
+	 * Groups records by key.
+	 *
+	 * @param records The records.
+	 * @return The data stored under each key, in file order, with the
+	 *  keys in the order they first appear.
+	 */
+	static Map<String, List<byte[]>> byKey(List<byte[][]> records) {
+		Map<String, List<byte[]>> byKey = new LinkedHashMap<>();
+		for (int i = 0; i < records.size(); i++)
+			byKey.computeIfAbsent(latin1(records.get(i)[0]),
+				k -> new ArrayList<>()).add(records.get(i)[1]);
+		return byKey;
+	}
+
+
+	/**
+	 * Checks every lookup method of an open database against the
+	 * records it was built from.  As in sg-cdb 1.0.4, the hash tables
+	 * return the records stored under a key in reverse file order, so
+	 * the "first" record found is the last one added.
+	 *
+	 * @param cdb The database.
+	 * @param records The records, in the order they were added.
+	 * @param what A description of the database for failure messages.
+	 */
+	static void checkLookups(Cdb cdb, List<byte[][]> records, String what) {
+		Map<String, List<byte[]>> byKey = byKey(records);
+		final ByteArrayOutputStream visited = new ByteArrayOutputStream();
+		CdbDataVisitor visitor = new CdbDataVisitor() {
+			public void visit(ByteBuffer buf, int off, int len) {
+				for (int i = 0; i < len; i++)
+					visited.write(buf.get(off + i));
+			}
+		};
+
+		for (Map.Entry<String, List<byte[]>> entry : byKey.entrySet()) {
+			byte[] key = entry.getKey().getBytes(StandardCharsets.ISO_8859_1);
+			List<byte[]> data = new ArrayList<>(entry.getValue());
+			Collections.reverse(data);
+			String where = what + " key " + entry.getKey();
+
+			/* The first record, by every form of key. */
+			checkEquals(data.get(0), cdb.get(key), where + " get");
+			byte[] padded = new byte[key.length + 5];
+			System.arraycopy(key, 0, padded, 3, key.length);
+			checkEquals(data.get(0), cdb.get(padded, 3, key.length),
+				where + " get(off, len)");
+			ByteBuffer direct = ByteBuffer.allocateDirect(key.length + 1);
+			direct.put((byte)0).put(key).flip().position(1);
+			checkEquals(data.get(0), cdb.get(direct), where + " get(direct)");
+			check(direct.position() == 1, where + " moved the key buffer");
+			checkEquals(data.get(0), bytes(cdb.getBuffer(key)),
+				where + " getBuffer");
+			visited.reset();
+			check(cdb.get(key, visitor), where + " get(visitor) missed");
+			checkEquals(data.get(0), visited.toByteArray(),
+				where + " get(visitor)");
+
+			/* Every record, in file order. */
+			CdbCursor cursor = cdb.findAll(key);
+			for (int i = 0; i < data.size(); i++)
+				checkEquals(data.get(i), cursor.next(),
+					where + " findAll " + i);
+			check(cursor.next() == null, where + " findAll ran on");
+
+			cdb.findstart(key);
+			for (int i = 0; i < data.size(); i++)
+				checkEquals(data.get(i), cdb.findnext(key),
+					where + " findnext " + i);
+			check(cdb.findnext(key) == null, where + " findnext ran on");
+		}
+
+		/* Keys which are not there. */
+		for (int i = 0; i < 200; i++) {
+			byte[] key = utf8("missing-" + i);
+			check(cdb.get(key) == null, what + " found " + latin1(key));
+			check(cdb.getBuffer(key) == null, what + " found " + latin1(key));
+			check(!cdb.get(key, visitor), what + " visited " + latin1(key));
+			check(cdb.findAll(key).next() == null,
+				what + " findAll found " + latin1(key));
+		}
+
+		/* A batch mixing present and missing keys. */
+		List<String> keys = new ArrayList<>(byKey.keySet());
+		for (int i = 0; i < 100; i++)
+			keys.add("missing-" + i);
+		Collections.shuffle(keys, new Random(keys.size()));
+		byte[][] batch = new byte[keys.size()][];
+		for (int i = 0; i < batch.length; i++)
+			batch[i] = keys.get(i).getBytes(StandardCharsets.ISO_8859_1);
+		byte[][] found = cdb.getAll(batch);
+		for (int i = 0; i < batch.length; i++) {
+			List<byte[]> data = byKey.get(keys.get(i));
+			checkEquals(data == null ? null : data.get(data.size() - 1),
+				found[i],
+				what + " getAll " + keys.get(i));
+		}
+	}
+
+	/**
+	 * Checks that scanning a database returns its records in the order
+	 * they were added.
+	 *
+	 * @param filepath The database.
+	 * @param records The records, in the order they were added.
+	 * @exception java.io.IOException if the database could not be
+	 *  read.
+	 */
+	static void checkElements(String filepath, List<byte[][]> records)
+		throws IOException
+	{
+		Enumeration<CdbElement> elements = Cdb.elements(filepath);
+		for (int i = 0; i < records.size(); i++) {
+			check(elements.hasMoreElements(), filepath + " ended at " + i);
+			CdbElement element = elements.nextElement();
+			checkEquals(records.get(i)[0], element.getKey(),
+				filepath + " key " + i);
+			checkEquals(records.get(i)[1], element.getData(),
+				filepath + " data " + i);
+		}
+		check(!elements.hasMoreElements(), filepath + " ran on");
+	}
+
+
+	/**
+	 * Fails unless a condition holds.
+	 *
+	 * @param condition The condition.
+	 * @param message The failure message.
+	 */
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+
+	/**
+	 * Fails unless two arrays, either of which may be
+	 * <code>null</code>, are equal.
+	 *
+	 * @param expected The expected array.
+	 * @param actual The actual array.
+	 * @param message The failure message.
+	 */
+	static void checkEquals(byte[] expected, byte[] actual, String message) {
+		if (!Arrays.equals(expected, actual))
+			throw new AssertionError(message + ": expected "
+				+ describe(expected) + ", got " + describe(actual));
+	}
+
+
+	/**
+	 * Returns the UTF-8 encoding of a string.
+	 *
+	 * @param s The string.
+	 * @return The encoded string.
+	 */
+	static byte[] utf8(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns a string with one character per byte of an array, for
+	 * use as a map key.
+	 *
+	 * @param b The array.
+	 * @return The string.
+	 */
+	static String latin1(byte[] b) {
+		return new String(b, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Returns the remaining bytes of a buffer, or <code>null</code>.
+	 *
+	 * @param buf The buffer, which is not changed.
+	 * @return The bytes.
+	 */
+	static byte[] bytes(ByteBuffer buf) {
+		if (buf == null)
+			return null;
+		byte[] b = new byte[buf.remaining()];
+		buf.duplicate().get(b);
+		return b;
+	}
+
+	/**
+	 * Returns the index of a byte in an array.
+	 *
+	 * @param b The array.
+	 * @param value The byte to find.
+	 * @param from The index to start at.
+	 * @return The index of the byte.
+	 */
+	private static int indexOf(byte[] b, byte value, int from) {
+		while (b[from] != value)
+			from++;
+		return from;
+	}
+
+	/**
+	 * Describes an array for a failure message.
+	 *
+	 * @param b The array, or <code>null</code>.
+	 * @return The description.
+	 */
+	private static String describe(byte[] b) {
+		if (b == null)
+			return "null";
+		String s = latin1(Arrays.copyOf(b, Math.min(b.length, 40)));
+		return "[" + b.length + " bytes] \"" + s + "\"";
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Checks lookups made from many threads at once against one database,
+ * including threads which are interrupted while they read.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class ConcurrencyTest extends CdbTest {
+	/** The number of reader threads. */
+	private static final int THREADS = 8;
+
+	/** How long each reader runs, in milliseconds. */
+	private static final long RUN_MILLIS = 500;
+
+
+	/**
+	 * Runs get, getAll, findAll and the legacy find methods from many
+	 * threads in every open mode.
+	 */
+	public void testConcurrentReaders() throws Exception {
+		List<byte[][]> records = records(5000, 5);
+		int[] makeFlags = {
+			0, CdbMake.CDB64 | CdbMake.BLOOM | CdbMake.COMPRESS,
+		};
+		for (int i = 0; i < makeFlags.length; i++) {
+			String filepath = path("conc" + i + ".cdb");
+			make(filepath, makeFlags[i], records);
+
+			for (int j = 0; j < OPEN_FLAGS.length; j++) {
+				Cdb cdb = new Cdb(filepath, OPEN_FLAGS[j]);
+				try {
+					long lookups = read(cdb, records, false);
+					check(lookups > 0, "no lookups made");
+				} finally {
+					cdb.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Interrupts file-backed readers over and over while they read,
+	 * both through the hash tables and through the key index, and
+	 * checks that no lookup or scan fails or reports a key as missing,
+	 * that the interrupts are not lost, and that the database still
+	 * works afterwards.
+	 */
+	public void testInterruptedReaders() throws Exception {
+		List<byte[][]> records = records(5000, 6);
+		String filepath = path("intr.cdb");
+		make(filepath, CdbMake.CDB64 | CdbMake.KEY_INDEX, records);
+
+		Cdb cdb = new Cdb(filepath);
+		try {
+			read(cdb, records, true);
+			checkLookups(cdb, records, "after interrupts");
+			check(cdb.range(null, null).hasNext(), "key index closed");
+		} finally {
+			cdb.close();
+		}
+	}
+
+
+	/**
+	 * Runs random lookups against a database from several threads
+	 * for a while.
+	 *
+	 * @param cdb The database.
+	 * @param records The records it was built from.
+	 * @param interrupt Whether to interrupt the readers as they run.
+	 * @return The number of lookups made.
+	 */
+	private static long read(final Cdb cdb, List<byte[][]> records,
+		boolean interrupt) throws Exception
+	{
+		final Map<String, List<byte[]>> byKey = byKey(records);
+		final String[] keys = byKey.keySet().toArray(new String[0]);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong lookups = new AtomicLong();
+		final AtomicLong interrupts = new AtomicLong();
+		final int kinds = cdb.hasKeyIndex() ? 5 : 4;
+
+		List<Callable<Void>> readers = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			final Random random = new Random(t);
+			readers.add(new Callable<Void>() {
+				public Void call() {
+					while (!stop.get()) {
+						String k = keys[random.nextInt(keys.length)];
+						byte[] key = k.getBytes(StandardCharsets.ISO_8859_1);
+						List<byte[]> data = byKey.get(k);
+						byte[] last = data.get(data.size() - 1);
+
+						switch (random.nextInt(kinds)) {
+						case 0:
+							checkEquals(last, cdb.get(key), "get " + k);
+							break;
+						case 1:
+							checkEquals(last, bytes(cdb.getBuffer(key)),
+								"getBuffer " + k);
+							break;
+						case 2:
+							CdbCursor cursor = cdb.findAll(key);
+							for (int i = data.size() - 1; i >= 0; i--)
+								checkEquals(data.get(i), cursor.next(),
+									"findAll " + k);
+							check(cursor.next() == null, "findAll ran on");
+							break;
+						case 3:
+							byte[][] found = cdb.getAll(new byte[][] {
+								key, CdbTest.utf8("missing") });
+							checkEquals(last, found[0], "getAll " + k);
+							check(found[1] == null, "getAll found missing");
+							break;
+						case 4:
+							/* The key's own records come out of a prefix
+							 * scan in file order. */
+							Iterator<CdbElement> scan = cdb.prefix(key);
+							int n = 0;
+							while (scan.hasNext()) {
+								CdbElement element = scan.next();
+								if (Arrays.equals(key, element.getKey()))
+									checkEquals(data.get(n++),
+										element.getData(), "prefix " + k);
+							}
+							check(n == data.size(), "prefix " + k + " found "
+								+ n + " records");
+							break;
+						}
+						lookups.incrementAndGet();
+
+						/* The interrupt must still be pending. */
+						if (Thread.interrupted())
+							interrupts.incrementAndGet();
+					}
+					return null;
+				}
+			});
+		}
+
+		final List<Thread> threads = new CopyOnWriteArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "reader");
+					thread.setDaemon(true);
+					threads.add(thread);
+					return thread;
+				}
+			});
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (int i = 0; i < readers.size(); i++)
+				futures.add(executor.submit(readers.get(i)));
+
+			/* Interrupt the readers, which cancel(true) does, without
+			 * stopping them. */
+			long end = System.currentTimeMillis() + RUN_MILLIS;
+			if (interrupt) {
+				long sent = 0;
+				while (System.currentTimeMillis() < end) {
+					for (Thread thread : threads) {
+						thread.interrupt();
+						sent++;
+					}
+					Thread.sleep(1);
+				}
+				stop.set(true);
+				check(sent > 0, "no interrupts sent");
+			} else {
+				Thread.sleep(RUN_MILLIS);
+				stop.set(true);
+			}
+
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException e) {
+					throw new AssertionError("reader failed", e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+
+		if (interrupt)
+			check(interrupts.get() > 0, "interrupts were lost");
+		return lookups.get();
+	}
+}
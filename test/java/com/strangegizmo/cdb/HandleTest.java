@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Checks that CdbHandle swaps in rebuilt files, and their sidecars,
+ * while other threads look keys up.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class HandleTest extends CdbTest {
+	/** The number of keys in each generation. */
+	private static final int KEYS = 2000;
+
+	/** The number of reader threads. */
+	private static final int THREADS = 4;
+
+
+	/**
+	 * Rebuilds the file over and over while readers look keys up, and
+	 * checks that every lookup finds its key in a single generation and
+	 * that no reader ever goes back to an older generation.
+	 */
+	public void testSwapUnderLoad() throws Exception {
+		final String filepath = path("swap.cdb");
+		build(filepath, 0, CdbMake.BLOOM);
+
+		final CdbHandle handle = new CdbHandle(filepath, Cdb.MMAP);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong lookups = new AtomicLong();
+
+		List<Callable<Void>> readers = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			final Random random = new Random(t);
+			readers.add(new Callable<Void>() {
+				public Void call() {
+					int newest = 0;
+					while (!stop.get()) {
+						int i = random.nextInt(KEYS);
+						int generation;
+						if (random.nextBoolean()) {
+							generation = generation(i, handle.get(key(i)));
+						} else {
+							int j = random.nextInt(KEYS);
+							byte[][] found = handle.getAll(
+								new byte[][] { key(i), key(j) });
+							generation = generation(i, found[0]);
+							check(generation(j, found[1]) == generation,
+								"getAll mixed generations");
+						}
+						check(generation >= newest, "went back from "
+							+ newest + " to " + generation);
+						newest = generation;
+						lookups.incrementAndGet();
+					}
+					return null;
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (int i = 0; i < readers.size(); i++)
+				futures.add(executor.submit(readers.get(i)));
+
+			for (int g = 1; g <= 10; g++) {
+				build(filepath, g, CdbMake.BLOOM);
+				check(handle.reload(), "generation " + g + " not reloaded");
+				Thread.sleep(20);
+			}
+			stop.set(true);
+
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException e) {
+					throw new AssertionError("reader failed", e.getCause());
+				}
+			}
+		} finally {
+			stop.set(true);
+			executor.shutdownNow();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+
+		check(lookups.get() > 0, "no lookups made");
+		check(handle.getReloadCount() == 10,
+			"reloaded " + handle.getReloadCount() + " times");
+		check(!handle.reload(), "reloaded an unchanged file");
+		check(generation(0, handle.get(key(0))) == 10, "not at the last file");
+
+		handle.close();
+		try {
+			handle.get(key(0));
+			throw new AssertionError("closed handle still looks keys up");
+		} catch (IllegalStateException expected) {
+		}
+	}
+
+	/**
+	 * Replaces the file ahead of its Bloom filter, as a copy which
+	 * does not rename the sidecars first would, and checks that the
+	 * stale filter is not used and that the new filter is picked up
+	 * when it arrives.
+	 */
+	public void testLateSidecar() throws Exception {
+		String filepath = path("late.cdb");
+		String next = path("next.cdb");
+		build(filepath, 1, CdbMake.BLOOM);
+		CdbHandle handle = new CdbHandle(filepath, 0);
+		try {
+			/* The new file has different keys. */
+			build(next, 2, CdbMake.BLOOM, KEYS);
+			check(new File(next).renameTo(new File(filepath)),
+				"could not move the file");
+			check(handle.reload(), "new file not reloaded");
+			for (int i = 0; i < 2 * KEYS; i++)
+				check(generation(i, handle.get(key(i))) == 2,
+					"key " + i + " missing before the filter arrived");
+
+			/* Then its filter arrives. */
+			check(new File(next + CdbBloomFilter.SUFFIX).renameTo(
+					new File(filepath + CdbBloomFilter.SUFFIX)),
+				"could not move the filter");
+			check(handle.reload(), "new filter not reloaded");
+			for (int i = 0; i < 2 * KEYS; i++)
+				check(generation(i, handle.get(key(i))) == 2,
+					"key " + i + " missing after the filter arrived");
+			check(handle.get(key(2 * KEYS)) == null, "found a missing key");
+			check(!handle.reload(), "reloaded an unchanged file");
+			check(handle.getReloadCount() == 2,
+				"reloaded " + handle.getReloadCount() + " times");
+		} finally {
+			handle.close();
+		}
+	}
+
+	/**
+	 * Checks that a watching handle picks up a rebuilt file by itself.
+	 */
+	public void testWatcher() throws Exception {
+		String filepath = path("watch.cdb");
+		build(filepath, 1, 0);
+		CdbHandle handle = new CdbHandle(filepath, 0, 10);
+		try {
+			build(filepath, 2, 0);
+			long deadline = System.currentTimeMillis() + 10000;
+			while ((handle.getReloadCount() == 0)
+					&& (System.currentTimeMillis() < deadline))
+				Thread.sleep(10);
+			check(handle.getReloadCount() == 1, "watcher did not reload");
+			check(generation(7, handle.get(key(7))) == 2,
+				"watcher kept the old file");
+		} finally {
+			handle.close();
+		}
+	}
+
+
+	/**
+	 * Checks that the watcher survives a replacement file it cannot
+	 * open, reports the failure, and picks up the next good file.
+	 */
+	public void testWatcherSurvivesBadFile() throws Exception {
+		String filepath = path("bad.cdb");
+		build(filepath, 1, 0);
+		CdbHandle handle = new CdbHandle(filepath, 0, 10);
+		try {
+			/* Rename a cdb64 file whose first hash table is at a
+			 * negative position into place. */
+			build(path("broken.cdb"), 2, CdbMake.CDB64);
+			RandomAccessFile file
+				= new RandomAccessFile(path("broken.cdb"), "rw");
+			try {
+				file.seek(Cdb.HEADER64_SIZE);
+				file.writeLong(-16);
+			} finally {
+				file.close();
+			}
+			check(new File(path("broken.cdb")).renameTo(new File(filepath)),
+				"could not rename the broken file");
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while ((handle.getLastError() == null)
+					&& (System.currentTimeMillis() < deadline))
+				Thread.sleep(10);
+			check(handle.getLastError() != null, "no error reported");
+			check(generation(7, handle.get(key(7))) == 1,
+				"lost the old file");
+
+			/* A good file is still picked up, and clears the error. */
+			build(filepath, 3, 0);
+			deadline = System.currentTimeMillis() + 10000;
+			while ((handle.getReloadCount() == 0)
+					&& (System.currentTimeMillis() < deadline))
+				Thread.sleep(10);
+			check(handle.getReloadCount() == 1, "watcher stopped");
+			check(generation(7, handle.get(key(7))) == 3,
+				"watcher kept the old file");
+			Thread.sleep(50);
+			check(handle.getLastError() == null, "error not cleared: "
+				+ handle.getLastError());
+		} finally {
+			handle.close();
+		}
+	}
+
+	/**
+	 * Builds a generation of the file with CdbMake.make, which renames
+	 * it into place.
+	 */
+	private void build(String filepath, int generation, int flags)
+		throws IOException
+	{
+		build(filepath, generation, flags, 0);
+	}
+
+	/**
+	 * Builds a generation of the file with extra keys.
+	 */
+	private void build(String filepath, int generation, int flags,
+		int extra) throws IOException
+	{
+		String text = path("gen.txt");
+		OutputStream out = new BufferedOutputStream(
+			new FileOutputStream(text));
+		try {
+			for (int i = 0; i < KEYS + extra; i++) {
+				byte[] key = key(i);
+				byte[] data = utf8(generation + ":" + i);
+				out.write(utf8("+" + key.length + "," + data.length + ":"));
+				out.write(key);
+				out.write(utf8("->"));
+				out.write(data);
+				out.write('\n');
+			}
+			out.write('\n');
+		} finally {
+			out.close();
+		}
+
+		CdbMake.make(text, filepath, filepath + ".tmp", null, 1, flags);
+	}
+
+	/**
+	 * Returns the key with the given number.
+	 */
+	private static byte[] key(int i) {
+		return utf8("key-" + i);
+	}
+
+	/**
+	 * Checks that data belongs to the given key and returns the
+	 * generation it came from.
+	 */
+	private static int generation(int i, byte[] data) {
+		check(data != null, "key " + i + " missing");
+		String s = new String(data, java.nio.charset.StandardCharsets.UTF_8);
+		int colon = s.indexOf(':');
+		check(s.substring(colon + 1).equals(Integer.toString(i)),
+			"key " + i + " has data " + s);
+		return Integer.parseInt(s.substring(0, colon));
+	}
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.util.*;
+
+/**
+ * Builds databases with every format flag, reads them back in every
+ * open mode and checks every lookup method, including keys with
+ * several records.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class RoundTripTest extends CdbTest {
+	/**
+	 * Checks every lookup in every format and open mode.
+	 */
+	public void testRoundTrip() throws IOException {
+		List<byte[][]> records = records(3000, 1);
+		for (int i = 0; i < MAKE_FLAGS.length; i++) {
+			String filepath = path("rt" + i + ".cdb");
+			make(filepath, MAKE_FLAGS[i], records);
+			checkElements(filepath, records);
+
+			for (int j = 0; j < OPEN_FLAGS.length; j++) {
+				Cdb cdb = new Cdb(filepath, OPEN_FLAGS[j]);
+				try {
+					checkLookups(cdb, records, "make " + MAKE_FLAGS[i]
+						+ " open " + OPEN_FLAGS[j]);
+				} finally {
+					cdb.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks an empty database in every format and open mode.
+	 */
+	public void testEmpty() throws IOException {
+		List<byte[][]> records = new ArrayList<>();
+		for (int i = 0; i < MAKE_FLAGS.length; i++) {
+			String filepath = path("empty" + i + ".cdb");
+			make(filepath, MAKE_FLAGS[i], records);
+			checkElements(filepath, records);
+
+			for (int j = 0; j < OPEN_FLAGS.length; j++) {
+				Cdb cdb = new Cdb(filepath, OPEN_FLAGS[j]);
+				try {
+					checkLookups(cdb, records, "empty make " + MAKE_FLAGS[i]
+						+ " open " + OPEN_FLAGS[j]);
+				} finally {
+					cdb.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that keys added as strings and buffers are found by the
+	 * lookups taking the same forms and by their UTF-8 bytes.
+	 */
+	public void testKeyForms() throws IOException {
+		String[] keys = { "plain", "café", "中文", "emoji😀", "bad\ud800x", "" };
+		for (int i = 0; i < MAKE_FLAGS.length; i++) {
+			String filepath = path("forms" + i + ".cdb");
+			CdbMake make = new CdbMake(MAKE_FLAGS[i]);
+			make.start(filepath);
+			for (int k = 0; k < keys.length; k++)
+				make.add(keys[k], utf8("v" + k));
+			make.add(java.nio.ByteBuffer.wrap(utf8("..heap..")).position(2)
+					.limit(6).slice(),
+				java.nio.ByteBuffer.wrap(utf8("heap data")));
+			java.nio.ByteBuffer key = java.nio.ByteBuffer.allocateDirect(6);
+			key.put(utf8("direct")).flip();
+			java.nio.ByteBuffer data = java.nio.ByteBuffer.allocateDirect(11);
+			data.put(utf8("direct data")).flip();
+			make.add(key, data);
+			check((key.position() == 0) && (data.position() == 0),
+				"add moved a buffer");
+			make.finish();
+
+			for (int j = 0; j < OPEN_FLAGS.length; j++) {
+				Cdb cdb = new Cdb(filepath, OPEN_FLAGS[j]);
+				try {
+					for (int k = 0; k < keys.length; k++) {
+						checkEquals(utf8("v" + k), cdb.get(keys[k]),
+							"get(CharSequence) " + k);
+						checkEquals(utf8("v" + k),
+							cdb.get(new StringBuilder(keys[k])),
+							"get(StringBuilder) " + k);
+					}
+					checkEquals(utf8("v2"), cdb.get(utf8(keys[2])),
+						"get(UTF-8)");
+					checkEquals(utf8("heap data"), cdb.get(utf8("heap")),
+						"heap buffer");
+					checkEquals(utf8("direct data"), cdb.get(utf8("direct")),
+						"direct buffer");
+				} finally {
+					cdb.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks range and prefix scans against the sorted records.
+	 */
+	public void testKeyIndex() throws IOException {
+		List<byte[][]> records = records(5000, 2);
+		String filepath = path("ki.cdb");
+		make(filepath, CdbMake.KEY_INDEX, records);
+
+		/* Records with the same key stay in file order. */
+		List<byte[][]> sorted = new ArrayList<>(records);
+		sorted.sort((a, b) -> Arrays.compareUnsigned(a[0], b[0]));
+
+		Cdb cdb = new Cdb(filepath);
+		try {
+			check(cdb.hasKeyIndex(), "no key index");
+			checkRange(cdb.range(null, null), sorted, 0, sorted.size());
+
+			Random random = new Random(3);
+			for (int i = 0; i < 200; i++) {
+				byte[] from = sorted.get(random.nextInt(sorted.size()))[0];
+				byte[] prefix = Arrays.copyOf(from,
+					Math.min(from.length, random.nextInt(3)));
+				int lo = 0;
+				while ((lo < sorted.size()) && (Arrays.compareUnsigned(
+						sorted.get(lo)[0], from) < 0))
+					lo++;
+				int hi = lo;
+				while ((hi < sorted.size()) && (hi < lo + 50))
+					hi++;
+				byte[] to = hi < sorted.size() ? sorted.get(hi)[0] : null;
+				while ((hi > lo) && (to != null) && Arrays.equals(
+						sorted.get(hi - 1)[0], to))
+					hi--;
+				checkRange(cdb.range(from, to), sorted, lo, hi);
+
+				lo = 0;
+				while ((lo < sorted.size()) && !startsWith(sorted.get(lo)[0],
+						prefix))
+					lo++;
+				hi = lo;
+				while ((hi < sorted.size()) && startsWith(sorted.get(hi)[0],
+						prefix))
+					hi++;
+				checkRange(cdb.prefix(prefix), sorted, lo, hi);
+			}
+		} finally {
+			cdb.close();
+		}
+	}
+
+	/**
+	 * Checks that a key index left over from another database is
+	 * ignored.
+	 */
+	public void testStaleKeyIndex() throws IOException {
+		List<byte[][]> records = records(1000, 4);
+		String filepath = path("stale.cdb");
+		make(filepath, CdbMake.KEY_INDEX | CdbMake.BLOOM, records);
+		File idx = new File(filepath + CdbKeyIndex.SUFFIX);
+		File bloom = new File(filepath + CdbBloomFilter.SUFFIX);
+		File keptIdx = new File(path("kept.idx"));
+		File keptBloom = new File(path("kept.bloom"));
+		check(idx.renameTo(keptIdx) && bloom.renameTo(keptBloom),
+			"could not keep the sidecars");
+
+		/* Same records and length, different data. */
+		List<byte[][]> other = new ArrayList<>();
+		for (int i = 0; i < records.size(); i++) {
+			byte[] data = records.get(i)[1].clone();
+			if (data.length > 0)
+				data[0] ^= 1;
+			other.add(new byte[][] { records.get(i)[0], data });
+		}
+		make(filepath, 0, other);
+		check(keptIdx.renameTo(idx) && keptBloom.renameTo(bloom),
+			"could not restore the sidecars");
+
+		Cdb cdb = new Cdb(filepath);
+		try {
+			check(!cdb.hasKeyIndex(), "stale key index used");
+			check(cdb.bloomFilterSize() == 0, "stale Bloom filter used");
+			checkLookups(cdb, other, "stale sidecars");
+		} finally {
+			cdb.close();
+		}
+	}
+
+
+	/**
+	 * Checks that a cdb64 file with format flags this version does not
+	 * know is refused in every open mode, and that refusing it does
+	 * not leave the file open.
+	 */
+	public void testUnknownFormatFlags() throws IOException {
+		String filepath = path("future.cdb");
+		make(filepath, CdbMake.CDB64, records(100, 7));
+		RandomAccessFile file = new RandomAccessFile(filepath, "rw");
+		try {
+			file.seek(8);
+			file.write(0x80);
+		} finally {
+			file.close();
+		}
+
+		int before = openFiles();
+		for (int i = 0; i < 50; i++) {
+			for (int j = 0; j < OPEN_FLAGS.length; j++) {
+				try {
+					new Cdb(filepath, OPEN_FLAGS[j]).close();
+					throw new AssertionError("opened unknown format flags");
+				} catch (IOException expected) {
+				}
+			}
+		}
+		if (before >= 0)
+			check(openFiles() <= before, "leaked " + (openFiles() - before)
+				+ " file descriptors");
+	}
+
+	/**
+	 * Checks that scanning a file does not open its sidecars.
+	 */
+	public void testScanSkipsSidecars() throws IOException {
+		String filepath = path("sidecars.cdb");
+		List<byte[][]> records = records(500, 8);
+		make(filepath, CdbMake.BLOOM | CdbMake.KEY_INDEX, records);
+		String index = new File(filepath + CdbKeyIndex.SUFFIX)
+			.getCanonicalPath();
+
+		for (int i = 0; i < OPEN_FLAGS.length; i++) {
+			CdbScanner scanner = CdbScanner.open(filepath, OPEN_FLAGS[i]);
+			try {
+				check(!isOpen(index), "scanner opened the key index");
+				for (int j = 0; j < records.size(); j++)
+					checkEquals(records.get(j)[1], scanner.next().getData(),
+						"data " + j);
+				check(!scanner.hasNext(), "scan ran on");
+			} finally {
+				scanner.close();
+			}
+		}
+
+		Enumeration<CdbElement> elements = Cdb.elements(filepath);
+		check(!isOpen(index), "elements opened the key index");
+		while (elements.hasMoreElements())
+			elements.nextElement();
+	}
+
+	/**
+	 * Checks that CdbMake.make leaves out records whose data is a key
+	 * in the ignore file, and that it reports a failure to read the
+	 * ignore file as an IOException, with one thread or several.
+	 */
+	public void testIgnoreCdb() throws IOException {
+		/* Every third record has data that the ignore file lists. */
+		List<byte[][]> records = new ArrayList<>();
+		List<byte[][]> ignore = new ArrayList<>();
+		List<byte[][]> kept = new ArrayList<>();
+		for (int i = 0; i < 3000; i++) {
+			byte[][] record = { utf8("key-" + i), utf8("data-" + i) };
+			records.add(record);
+			if (i % 3 == 0)
+				ignore.add(new byte[][] { record[1], utf8("") });
+			else
+				kept.add(record);
+		}
+		String text = path("ignore.txt");
+		OutputStream out = new BufferedOutputStream(
+			new FileOutputStream(text));
+		try {
+			for (int i = 0; i < records.size(); i++) {
+				byte[] key = records.get(i)[0];
+				byte[] data = records.get(i)[1];
+				out.write(utf8("+" + key.length + "," + data.length + ":"));
+				out.write(key);
+				out.write(utf8("->"));
+				out.write(data);
+				out.write('\n');
+			}
+			out.write('\n');
+		} finally {
+			out.close();
+		}
+		make(path("ignore.cdb"), 0, ignore);
+
+		int[] threads = { 1, 4 };
+		for (int i = 0; i < threads.length; i++) {
+			Cdb ignoreCdb = new Cdb(path("ignore.cdb"));
+			try {
+				String filepath = path("kept" + i + ".cdb");
+				CdbMake.make(text, filepath, filepath + ".tmp", ignoreCdb,
+					threads[i]);
+				checkElements(filepath, kept);
+
+				/* Cut the ignore file off after its slot table. */
+				RandomAccessFile file
+					= new RandomAccessFile(path("ignore.cdb"), "rw");
+				try {
+					file.setLength(2048);
+				} finally {
+					file.close();
+				}
+				try {
+					CdbMake.make(text, filepath, filepath + ".tmp",
+						ignoreCdb, threads[i]);
+					throw new AssertionError("read a truncated ignore file");
+				} catch (IOException expected) {
+				}
+			} finally {
+				ignoreCdb.close();
+			}
+			make(path("ignore.cdb"), 0, ignore);
+		}
+	}
+
+	/**
+	 * Returns the number of files this process has open, or -1 if the
+	 * platform does not say.
+	 */
+	static int openFiles() {
+		String[] fds = new File("/proc/self/fd").list();
+		return fds == null ? -1 : fds.length;
+	}
+
+	/**
+	 * Returns <code>true</code> if this process has the given file
+	 * open.  Always <code>false</code> where the platform does not
+	 * say.
+	 *
+	 * @param canonicalPath The canonical path of the file.
+	 */
+	static boolean isOpen(String canonicalPath) {
+		File[] fds = new File("/proc/self/fd").listFiles();
+		if (fds == null)
+			return false;
+
+		for (int i = 0; i < fds.length; i++) {
+			try {
+				if (fds[i].getCanonicalPath().equals(canonicalPath))
+					return true;
+			} catch (IOException ignored) {
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Checks that an iterator returns exactly a run of the sorted
+	 * records.
+	 */
+	private static void checkRange(Iterator<CdbElement> range,
+		List<byte[][]> sorted, int lo, int hi)
+	{
+		for (int i = lo; i < hi; i++) {
+			check(range.hasNext(), "range ended at " + i + " of " + hi);
+			CdbElement element = range.next();
+			checkEquals(sorted.get(i)[0], element.getKey(), "range key " + i);
+			checkEquals(sorted.get(i)[1], element.getData(), "range data " + i);
+		}
+		check(!range.hasNext(), "range ran on past " + hi);
+	}
+
+	/**
+	 * Returns <code>true</code> if a key starts with a prefix.
+	 */
+	private static boolean startsWith(byte[] key, byte[] prefix) {
+		return (key.length >= prefix.length) && Arrays.equals(key, 0,
+			prefix.length, prefix, 0, prefix.length);
+	}
+}
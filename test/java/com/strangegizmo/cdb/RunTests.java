@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * RunTests runs the test classes named on the command line, or all of
+ * them.  Every public no-argument method whose name starts with
+ * "test" is run on a new instance of its class, in name order, with a
+ * fresh temporary directory.  RunTests exits with status 1 if any test
+ * fails.
+ *
+ * <p>Usage: <code>java com.strangegizmo.cdb.RunTests dataDir
+ * [class...]</code>, where <code>dataDir</code> holds the test
+ * fixtures.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class RunTests {
+	/** The test classes, in the order they are run. */
+	private static final String[] TESTS = {
+		"RoundTripTest",
+		"BaselineTest",
+		"ConcurrencyTest",
+		"HandleTest",
+		"AllocationTest",
+		"ShardsTest",
+		"CacheTest",
+		"AsyncTest",
+		"StatsTest",
+		"SpliteratorTest",
+	};
+
+
+	/**
+	 * Runs the tests.
+	 *
+	 * @param args The fixture directory, then optionally the names of
+	 *  the test classes to run.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println(
+				"Usage: java com.strangegizmo.cdb.RunTests dataDir [class...]");
+			System.exit(2);
+		}
+
+		CdbTest.dataDir_ = new File(args[0]);
+		String[] names = args.length > 1
+			? Arrays.copyOfRange(args, 1, args.length) : TESTS;
+
+		int run = 0;
+		List<String> failures = new ArrayList<>();
+		for (int i = 0; i < names.length; i++) {
+			Class<?> testClass = Class.forName(
+				"com.strangegizmo.cdb." + names[i]);
+
+			/* Find the test methods. */
+			List<Method> methods = new ArrayList<>();
+			Method[] all = testClass.getMethods();
+			for (int j = 0; j < all.length; j++)
+				if (all[j].getName().startsWith("test")
+						&& (all[j].getParameterCount() == 0))
+					methods.add(all[j]);
+			methods.sort(Comparator.comparing(Method::getName));
+
+			/* Run them. */
+			for (int j = 0; j < methods.size(); j++) {
+				String name = names[i] + "." + methods.get(j).getName();
+				long start = System.nanoTime();
+				CdbTest test = (CdbTest)testClass
+					.getDeclaredConstructor().newInstance();
+				try {
+					test.setUp();
+					methods.get(j).invoke(test);
+					System.out.println("ok    " + name + " ("
+						+ (System.nanoTime() - start) / 1000000 + " ms)");
+				} catch (InvocationTargetException e) {
+					failures.add(name);
+					System.out.println("FAIL  " + name);
+					e.getCause().printStackTrace(System.out);
+				} finally {
+					test.tearDown();
+				}
+				run++;
+			}
+		}
+
+		System.out.println(run + " tests, " + failures.size() + " failed");
+		for (int i = 0; i < failures.size(); i++)
+			System.out.println("  " + failures.get(i));
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+}
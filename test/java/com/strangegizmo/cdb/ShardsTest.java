@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Checks that sharded databases built by CdbShardsMake answer every
+ * lookup the way a single Cdb built from the same records does, that
+ * keys land in the shard they are routed to, and that failed and
+ * abandoned builds leave nothing behind.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class ShardsTest extends CdbTest {
+	/**
+	 * Builds with several shard counts and formats and compares every
+	 * lookup with a single database.
+	 */
+	public void testMatchesSingleCdb() throws IOException {
+		List<byte[][]> records = records(3000, 8);
+		Map<String, List<byte[]>> byKey = byKey(records);
+		int[] counts = { 1, 3, 8 };
+		int[] flags = { 0, CdbMake.CDB64 | CdbMake.BLOOM };
+		for (int f = 0; f < flags.length; f++) {
+			String single = path("single" + f + ".cdb");
+			make(single, flags[f], records);
+			Cdb cdb = new Cdb(single);
+
+			for (int c = 0; c < counts.length; c++) {
+				String manifest = path("shards" + f + "-" + c);
+				CdbShardsMake shardsMake = new CdbShardsMake(counts[c],
+					flags[f]);
+				shardsMake.start(manifest);
+				for (int i = 0; i < records.size(); i++)
+					shardsMake.add(records.get(i)[0], records.get(i)[1]);
+				shardsMake.finish();
+
+				CdbShards shards = new CdbShards(manifest);
+				try {
+					check(shards.shardCount() == counts[c], "shard count");
+					compare(cdb, shards, byKey, "flags " + flags[f]
+						+ " shards " + counts[c]);
+					checkRouting(manifest, counts[c], byKey);
+				} finally {
+					shards.close();
+				}
+			}
+			cdb.close();
+		}
+	}
+
+	/**
+	 * Builds shards from a text file and compares them with the 1.0.4
+	 * fixture.
+	 */
+	public void testMakeFromText() throws IOException {
+		File text = new File(dataDir_, "baseline.txt");
+		String manifest = path("text");
+		CdbShardsMake.make(text.getPath(), manifest, 4);
+
+		Cdb cdb = new Cdb(new File(dataDir_, "baseline.cdb").getPath());
+		CdbShards shards = new CdbShards(manifest, Cdb.MMAP);
+		try {
+			compare(cdb, shards, byKey(readRecords(text)), "text");
+		} finally {
+			shards.close();
+			cdb.close();
+		}
+	}
+
+	/**
+	 * Checks that a build from malformed text fails and leaves no files
+	 * or threads behind.
+	 */
+	public void testFailedBuildCleansUp() throws Exception {
+		String text = path("bad.txt");
+		OutputStream out = new FileOutputStream(text);
+		try {
+			out.write(utf8("+3,5:one->first\n+3,6:two->second\n+x,1:bad\n\n"));
+		} finally {
+			out.close();
+		}
+
+		try {
+			CdbShardsMake.make(text, path("bad"), 4);
+			throw new AssertionError("malformed text accepted");
+		} catch (IllegalArgumentException expected) {
+		}
+		checkOnly("bad.txt");
+		checkNoShardThreads();
+	}
+
+	/**
+	 * Checks that an abandoned build leaves no files or threads
+	 * behind, and that aborting twice is harmless.
+	 */
+	public void testAbort() throws Exception {
+		CdbShardsMake shardsMake = new CdbShardsMake(4);
+		shardsMake.start(path("abandoned"));
+		List<byte[][]> records = records(1000, 9);
+		for (int i = 0; i < records.size(); i++)
+			shardsMake.add(records.get(i)[0], records.get(i)[1]);
+		shardsMake.abort();
+		shardsMake.abort();
+
+		checkOnly();
+		checkNoShardThreads();
+	}
+
+
+	/**
+	 * Compares every lookup method of a sharded database with a single
+	 * database.
+	 */
+	private static void compare(Cdb cdb, CdbShards shards,
+		Map<String, List<byte[]>> byKey, String what)
+	{
+		List<String> keys = new ArrayList<>(byKey.keySet());
+		for (int i = 0; i < 100; i++)
+			keys.add("missing-" + i);
+
+		byte[][] batch = new byte[keys.size()][];
+		for (int i = 0; i < keys.size(); i++) {
+			byte[] key = keys.get(i).getBytes(StandardCharsets.ISO_8859_1);
+			String where = what + " key " + keys.get(i);
+			batch[i] = key;
+
+			checkEquals(cdb.get(key), shards.get(key), where + " get");
+			checkEquals(bytes(cdb.getBuffer(key)),
+				bytes(shards.getBuffer(key)), where + " getBuffer");
+
+			CdbCursor expected = cdb.findAll(key);
+			CdbCursor actual = shards.findAll(key);
+			byte[] data;
+			do {
+				data = expected.next();
+				checkEquals(data, actual.next(), where + " findAll");
+			} while (data != null);
+
+			cdb.findstart(key);
+			shards.findstart(key);
+			do {
+				data = cdb.findnext(key);
+				checkEquals(data, shards.findnext(key), where + " findnext");
+			} while (data != null);
+		}
+
+		byte[][] expected = cdb.getAll(batch);
+		byte[][] actual = shards.getAll(batch);
+		for (int i = 0; i < batch.length; i++)
+			checkEquals(expected[i], actual[i],
+				what + " getAll " + keys.get(i));
+	}
+
+	/**
+	 * Checks that every key is in the shard it is routed to and in no
+	 * other.
+	 */
+	private static void checkRouting(String manifest, int count,
+		Map<String, List<byte[]>> byKey) throws IOException
+	{
+		Cdb[] shards = new Cdb[count];
+		try {
+			for (int s = 0; s < count; s++)
+				shards[s] = new Cdb(manifest + "." + s);
+
+			for (String k : byKey.keySet()) {
+				byte[] key = k.getBytes(StandardCharsets.ISO_8859_1);
+				int route = CdbShards.route(key, 0, key.length, count);
+				for (int s = 0; s < count; s++)
+					check((shards[s].get(key) != null) == (s == route),
+						"key " + k + " routed to " + route + " found in " + s);
+			}
+		} finally {
+			for (int s = 0; s < count; s++)
+				if (shards[s] != null)
+					shards[s].close();
+		}
+	}
+
+	/**
+	 * Checks that the temporary directory holds only the given files.
+	 */
+	private void checkOnly(String... names) {
+		Set<String> files = new TreeSet<>(Arrays.asList(dir_.list()));
+		Set<String> expected = new TreeSet<>(Arrays.asList(names));
+		check(files.equals(expected), "left behind " + files);
+	}
+
+	/**
+	 * Checks that no shard build threads are left running.
+	 */
+	private static void checkNoShardThreads() throws InterruptedException {
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			if (thread.getName().startsWith("CdbShardsMake "))
+				thread.join(5000);
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			check(!thread.getName().startsWith("CdbShardsMake "),
+				"shard thread " + thread.getName() + " still running");
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * Checks that Cdb.stream, Cdb.parallelStream and the spliterator behind
+ * them visit every record exactly once, however the records are split
+ * between threads, including repeated records, empty files and cdb64
+ * and compressed files.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class SpliteratorTest extends CdbTest {
+	/** The formats checked. */
+	private static final int[] FLAGS = {
+		0, CdbMake.CDB64, CdbMake.COMPRESS, CdbMake.HASH64,
+	};
+
+
+	/**
+	 * Checks sequential and parallel streams in every format and open
+	 * mode.
+	 */
+	public void testStreams() throws IOException {
+		List<byte[][]> records = records(20000, 18);
+
+		/* Repeat some records exactly, key and data alike. */
+		for (int i = 0; i < 500; i++)
+			records.add(records.get(i * 7));
+
+		for (int f = 0; f < FLAGS.length; f++) {
+			String filepath = path("stream" + f + ".cdb");
+			make(filepath, FLAGS[f], records);
+			for (int o = 0; o < OPEN_FLAGS.length; o++) {
+				String what = "flags " + FLAGS[f] + " open " + OPEN_FLAGS[o];
+				Cdb cdb = new Cdb(filepath, OPEN_FLAGS[o]);
+				try {
+					/* A sequential stream is in file order. */
+					List<CdbElement> elements
+						= cdb.stream().collect(Collectors.toList());
+					check(elements.size() == records.size(), what
+						+ " stream size " + elements.size());
+					for (int i = 0; i < records.size(); i++) {
+						checkEquals(records.get(i)[0],
+							elements.get(i).getKey(), what + " key " + i);
+						checkEquals(records.get(i)[1],
+							elements.get(i).getData(), what + " data " + i);
+					}
+
+					checkExactlyOnce(records, cdb.parallelStream()
+						.map(SpliteratorTest::describe)
+						.collect(Collectors.toList()), what + " parallel");
+					checkExactlyOnce(records, splitAll(cdb.spliterator()),
+						what + " split");
+				} finally {
+					cdb.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks streams over empty files.
+	 */
+	public void testEmpty() throws IOException {
+		for (int f = 0; f < FLAGS.length; f++) {
+			String filepath = path("empty" + f + ".cdb");
+			make(filepath, FLAGS[f], new ArrayList<byte[][]>());
+			Cdb cdb = new Cdb(filepath);
+			try {
+				check(cdb.stream().count() == 0, "flags " + FLAGS[f]
+					+ " empty stream");
+				check(cdb.parallelStream().count() == 0, "flags " + FLAGS[f]
+					+ " empty parallel stream");
+				check(cdb.spliterator().trySplit() == null, "flags "
+					+ FLAGS[f] + " split an empty file");
+			} finally {
+				cdb.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Splits a spliterator as far as it will go and traverses the
+	 * pieces, alternating between tryAdvance and forEachRemaining.
+	 *
+	 * @param spliterator The spliterator.
+	 * @return The records visited, as described by
+	 *  <code>describe</code>.
+	 */
+	private static List<String> splitAll(Spliterator<CdbElement> spliterator) {
+		Deque<Spliterator<CdbElement>> pending = new ArrayDeque<>();
+		List<Spliterator<CdbElement>> pieces = new ArrayList<>();
+		pending.push(spliterator);
+		while (!pending.isEmpty()) {
+			Spliterator<CdbElement> piece = pending.pop();
+			Spliterator<CdbElement> prefix = piece.trySplit();
+			if (prefix == null) {
+				pieces.add(piece);
+			} else {
+				pending.push(piece);
+				pending.push(prefix);
+			}
+		}
+		check(pieces.size() > 1, "spliterator did not split");
+
+		final List<String> visited = new ArrayList<>();
+		Consumer<CdbElement> visit = new Consumer<CdbElement>() {
+			public void accept(CdbElement element) {
+				visited.add(describe(element));
+			}
+		};
+		for (int i = 0; i < pieces.size(); i++) {
+			if (i % 2 == 0) {
+				while (pieces.get(i).tryAdvance(visit))
+					;
+			} else {
+				pieces.get(i).forEachRemaining(visit);
+			}
+		}
+		return visited;
+	}
+
+	/**
+	 * Checks that every record was visited exactly as many times as it
+	 * was added.
+	 *
+	 * @param records The records.
+	 * @param visited The records visited, as described by
+	 *  <code>describe</code>.
+	 * @param what A description of the traversal for failure messages.
+	 */
+	private static void checkExactlyOnce(List<byte[][]> records,
+		List<String> visited, String what)
+	{
+		Map<String, Integer> counts = new HashMap<>();
+		for (int i = 0; i < records.size(); i++)
+			counts.merge(latin1(records.get(i)[0]) + "\u0000"
+				+ latin1(records.get(i)[1]), 1, Integer::sum);
+		for (int i = 0; i < visited.size(); i++) {
+			Integer count = counts.get(visited.get(i));
+			check((count != null) && (count > 0), what
+				+ " visited a record too often");
+			counts.put(visited.get(i), count - 1);
+		}
+		check(visited.size() == records.size(), what + " visited "
+			+ visited.size() + " of " + records.size());
+	}
+
+	/**
+	 * Describes a record by its key and data.
+	 *
+	 * @param element The record.
+	 * @return A string holding the key and data.
+	 */
+	private static String describe(CdbElement element) {
+		return latin1(element.getKey()) + "\u0000"
+			+ latin1(element.getData());
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2000-2001, Michael Alyn Miller <malyn@strangeGizmo.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice unmodified, this list of conditions, and the following
+ *    disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of Michael Alyn Miller nor the names of the
+ *    contributors to this software may be used to endorse or promote
+ *    products derived from this software without specific prior written
+ *    permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package com.strangegizmo.cdb;
+
+/* Java imports. */
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks CdbStats against what CdbMake wrote: the record count, the
+ * records and slots of each hash table, and the probe distance of every
+ * record, found by replaying CdbMake's placement of the keys.  Covers
+ * classic files, cdb64 files with their 16-byte hash table entries and
+ * files hashed with <code>CdbMake.HASH64</code>.
+ *
+ * @author		Michael Alyn Miller <malyn@strangeGizmo.com>
+ * @version		1.1.0
+ */
+public final class StatsTest extends CdbTest {
+	/** The formats checked. */
+	private static final int[] FLAGS = {
+		0, CdbMake.CDB64, CdbMake.HASH64, CdbMake.COMPRESS,
+	};
+
+
+	/**
+	 * Checks the statistics of files built in each format.
+	 */
+	public void testStats() throws IOException {
+		List<byte[][]> records = records(3000, 13);
+		for (int i = 0; i < FLAGS.length; i++) {
+			String filepath = path("stats" + i + ".cdb");
+			make(filepath, FLAGS[i], records);
+			check(CdbStats.analyze(filepath), records,
+				(FLAGS[i] & CdbMake.HASH64) != 0,
+				(FLAGS[i] & CdbMake.COMPRESS) == 0, "flags " + FLAGS[i]);
+		}
+	}
+
+	/**
+	 * Checks the statistics of the file built by sg-cdb 1.0.4.
+	 */
+	public void testBaseline() throws IOException {
+		List<byte[][]> records
+			= readRecords(new File(dataDir_, "baseline.txt"));
+		CdbStats stats = CdbStats.analyze(
+			new File(dataDir_, "baseline.cdb").getPath());
+		check(stats.getRecordCount() == 497, "records "
+			+ stats.getRecordCount());
+		check(stats, records, false, true, "baseline");
+	}
+
+	/**
+	 * Checks the statistics of an empty file.
+	 */
+	public void testEmpty() throws IOException {
+		make(path("empty.cdb"), 0, new ArrayList<byte[][]>());
+		CdbStats stats = CdbStats.analyze(path("empty.cdb"));
+		check(stats.getRecordCount() == 0, "records in an empty file");
+		check(stats.getProbeHistogram().length == 1
+			&& stats.getProbeHistogram()[0] == 0, "probes in an empty file");
+		check(stats.getMeanMissReads() == 0, "reads in an empty file");
+	}
+
+
+	/**
+	 * Checks statistics against the records a file was built from.
+	 *
+	 * @param stats The statistics of the file.
+	 * @param records The records, in the order they were added.
+	 * @param hash64 <code>true</code> if the keys were hashed with
+	 *  <code>Cdb.hash64</code>.
+	 * @param plain <code>true</code> if the data was not compressed,
+	 *  so that the value sizes can be checked.
+	 * @param what A description of the file for failure messages.
+	 */
+	private static void check(CdbStats stats, List<byte[][]> records,
+		boolean hash64, boolean plain, String what)
+	{
+		check(stats.getRecordCount() == records.size(), what + " records "
+			+ stats.getRecordCount() + " of " + records.size());
+
+		/* Sort the hashes into their tables, in file order. */
+		List<List<Long>> tables = new ArrayList<>();
+		for (int t = 0; t < 256; t++)
+			tables.add(new ArrayList<Long>());
+		long keyBytes = 0;
+		long valueBytes = 0;
+		for (int i = 0; i < records.size(); i++) {
+			byte[] key = records.get(i)[0];
+			long hash = hash64
+				? Cdb.hash64(key, 0, key.length)
+				: Cdb.hash(key, 0, key.length) & 0xffffffffL;
+			tables.get((int)hash & 0xff).add(hash);
+			keyBytes += key.length;
+			valueBytes += records.get(i)[1].length;
+		}
+
+		/* Replay CdbMake's placement, which inserts each table's
+		 * records in reverse file order with linear probing. */
+		long[] probes = new long[0];
+		for (int t = 0; t < 256; t++) {
+			List<Long> hashes = tables.get(t);
+			int len = hashes.size() * 2;
+			check(stats.getTableRecords(t) == hashes.size(), what
+				+ " table " + t + " records " + stats.getTableRecords(t)
+				+ " of " + hashes.size());
+			check(stats.getTableSlots(t) == len, what + " table " + t
+				+ " slots " + stats.getTableSlots(t) + " of " + len);
+
+			boolean[] used = new boolean[len];
+			int maxProbe = 0;
+			for (int u = hashes.size() - 1; u >= 0; u--) {
+				int ideal = (int)((hashes.get(u) >>> 8) % len);
+				int where = ideal;
+				while (used[where])
+					where = (where + 1) % len;
+				used[where] = true;
+
+				int distance = (where - ideal + len) % len;
+				if (distance >= probes.length)
+					probes = Arrays.copyOf(probes, distance + 1);
+				probes[distance]++;
+				maxProbe = Math.max(maxProbe, distance);
+			}
+			check(stats.getTableMaxProbe(t) == maxProbe, what + " table "
+				+ t + " max probe " + stats.getTableMaxProbe(t) + " of "
+				+ maxProbe);
+		}
+
+		long[] histogram = stats.getProbeHistogram();
+		check(Arrays.equals(histogram, probes), what + " probes "
+			+ Arrays.toString(histogram) + " of " + Arrays.toString(probes));
+		check(sum(histogram) == records.size(), what + " probe total");
+
+		/* Check the sizes. */
+		check(sum(stats.getKeySizeHistogram()) == records.size(),
+			what + " key size total");
+		check(sum(stats.getValueSizeHistogram()) == records.size(),
+			what + " value size total");
+		check(Math.abs(stats.getMeanKeySize() * records.size() - keyBytes)
+			< 0.5, what + " mean key size " + stats.getMeanKeySize());
+		if (plain)
+			check(Math.abs(stats.getMeanValueSize() * records.size()
+				- valueBytes) < 0.5, what + " mean value size "
+				+ stats.getMeanValueSize());
+
+		/* Every missing key reads at least its first slot. */
+		check(stats.getMeanMissReads() >= 1, what + " mean miss reads "
+			+ stats.getMeanMissReads());
+	}
+
+	/**
+	 * Sums a histogram.
+	 *
+	 * @param histogram The histogram.
+	 * @return The sum of its buckets.
+	 */
+	private static long sum(long[] histogram) {
+		long sum = 0;
+		for (int i = 0; i < histogram.length; i++)
+			sum += histogram[i];
+		return sum;
+	}
+}